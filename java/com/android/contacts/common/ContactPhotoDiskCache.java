@@ -0,0 +1,270 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common;
+
+import android.content.Context;
+import android.net.Uri;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+import com.android.dialer.common.LogUtil;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Size-bounded cache of the compressed bytes of contact photos in the cache directory, used by
+ * {@link ContactPhotoManagerImpl} so that photos survive process death and memory trims without
+ * reading the photo blobs from the contacts provider or downloading them again.
+ *
+ * <p>Each entry is stored with a validator: the last updated timestamp of the contact for photo
+ * ids, or the time of the download for remote photo URIs. An entry is only returned for the
+ * validator it was stored with. The least recently used entries are deleted once {@link
+ * #MAX_SIZE_BYTES} is exceeded.
+ *
+ * <p>This class is thread safe, it is used by the photo loader thread and the threads fetching
+ * photos by URI.
+ */
+@WorkerThread
+final class ContactPhotoDiskCache {
+
+  private static final String DIRECTORY = "contact_photos";
+
+  private static final int VERSION = 1;
+
+  private static final long MAX_SIZE_BYTES = 8 * 1024 * 1024;
+
+  private final File mDirectory;
+
+  /** Entries by key, in least recently used order. Null until loaded from disk. */
+  private LinkedHashMap<String, Entry> mEntries;
+
+  private long mSizeBytes;
+
+  private static final class Entry {
+    final File file;
+    final long validator;
+    final long sizeBytes;
+
+    Entry(File file, long validator, long sizeBytes) {
+      this.file = file;
+      this.validator = validator;
+      this.sizeBytes = sizeBytes;
+    }
+  }
+
+  ContactPhotoDiskCache(Context context) {
+    mDirectory = new File(context.getCacheDir(), DIRECTORY);
+  }
+
+  /** Returns the key of the thumbnail with the given photo id. */
+  static String getPhotoIdKey(long photoId) {
+    return "id:" + photoId;
+  }
+
+  /** Returns the photo id of a key returned by {@link #getPhotoIdKey(long)}, or null. */
+  @Nullable
+  static Long getPhotoId(String key) {
+    if (!key.startsWith("id:")) {
+      return null;
+    }
+    try {
+      return Long.parseLong(key.substring(3));
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  /** Returns the key of the photo at the given URI. */
+  static String getUriKey(Uri uri) {
+    return "uri:" + uri;
+  }
+
+  /** Returns the validator the entry was stored with, or null if there is no entry for the key. */
+  @Nullable
+  synchronized Long getValidator(String key) {
+    Entry entry = getEntries().get(key);
+    return entry == null ? null : entry.validator;
+  }
+
+  /**
+   * Returns the keys of the most recently used entries, most recent first, until their total size
+   * reaches {@code maxSizeBytes}.
+   */
+  synchronized List<String> getMostRecentlyUsedKeys(long maxSizeBytes) {
+    List<Map.Entry<String, Entry>> entries = new ArrayList<>(getEntries().entrySet());
+    List<String> keys = new ArrayList<>();
+    long sizeBytes = 0;
+    for (int i = entries.size() - 1; i >= 0; i--) {
+      sizeBytes += entries.get(i).getValue().sizeBytes;
+      if (sizeBytes > maxSizeBytes) {
+        break;
+      }
+      keys.add(entries.get(i).getKey());
+    }
+    return keys;
+  }
+
+  /**
+   * Returns the bytes stored for the key, or null if there are none or they were stored with a
+   * different validator.
+   */
+  @Nullable
+  synchronized byte[] get(String key, long validator) {
+    Entry entry = getEntries().get(key);
+    if (entry == null || entry.validator != validator) {
+      return null;
+    }
+    try (DataInputStream in =
+        new DataInputStream(new BufferedInputStream(new FileInputStream(entry.file)))) {
+      if (in.readInt() != VERSION || !key.equals(in.readUTF()) || in.readLong() != validator) {
+        remove(key);
+        return null;
+      }
+      // Read straight into the array handed to the caller, photos are small so mapping the file
+      // would not save anything.
+      byte[] bytes = new byte[in.readInt()];
+      in.readFully(bytes);
+      entry.file.setLastModified(System.currentTimeMillis());
+      return bytes;
+    } catch (IOException e) {
+      LogUtil.e("ContactPhotoDiskCache.get", "unable to read photo", e);
+      remove(key);
+      return null;
+    }
+  }
+
+  /** Stores the bytes for the key, replacing any previous entry. */
+  synchronized void put(String key, long validator, byte[] bytes) {
+    LinkedHashMap<String, Entry> entries = getEntries();
+    if (bytes.length > MAX_SIZE_BYTES / 8) {
+      return;
+    }
+    if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+      LogUtil.e("ContactPhotoDiskCache.put", "unable to create " + mDirectory);
+      return;
+    }
+    File file = new File(mDirectory, Integer.toHexString(key.hashCode()));
+    File tempFile = new File(mDirectory, file.getName() + ".tmp");
+    try (DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+      out.writeInt(VERSION);
+      out.writeUTF(key);
+      out.writeLong(validator);
+      out.writeInt(bytes.length);
+      out.write(bytes);
+    } catch (IOException e) {
+      LogUtil.e("ContactPhotoDiskCache.put", "unable to write photo", e);
+      tempFile.delete();
+      return;
+    }
+    // Keys with the same hash share a file, the one stored last wins.
+    removeEntriesOfFile(file);
+    if (!tempFile.renameTo(file)) {
+      tempFile.delete();
+      return;
+    }
+    Entry entry = new Entry(file, validator, file.length());
+    entries.put(key, entry);
+    mSizeBytes += entry.sizeBytes;
+    trimToSize();
+  }
+
+  private void remove(String key) {
+    Entry entry = getEntries().remove(key);
+    if (entry != null) {
+      mSizeBytes -= entry.sizeBytes;
+      entry.file.delete();
+    }
+  }
+
+  private void removeEntriesOfFile(File file) {
+    Iterator<Entry> iterator = getEntries().values().iterator();
+    while (iterator.hasNext()) {
+      Entry entry = iterator.next();
+      if (entry.file.equals(file)) {
+        mSizeBytes -= entry.sizeBytes;
+        iterator.remove();
+      }
+    }
+  }
+
+  private void trimToSize() {
+    Iterator<Entry> iterator = getEntries().values().iterator();
+    while (mSizeBytes > MAX_SIZE_BYTES && iterator.hasNext()) {
+      Entry entry = iterator.next();
+      mSizeBytes -= entry.sizeBytes;
+      entry.file.delete();
+      iterator.remove();
+    }
+  }
+
+  /** Returns the entries, reading the headers of the files on first use. */
+  private LinkedHashMap<String, Entry> getEntries() {
+    if (mEntries != null) {
+      return mEntries;
+    }
+    mEntries = new LinkedHashMap<>(16, 0.75f, true /* accessOrder */);
+    File[] files = mDirectory.listFiles();
+    if (files == null) {
+      return mEntries;
+    }
+    // Restore the least recently used order of the previous processes.
+    long[] lastModified = new long[files.length];
+    Integer[] order = new Integer[files.length];
+    for (int i = 0; i < files.length; i++) {
+      lastModified[i] = files[i].lastModified();
+      order[i] = i;
+    }
+    Arrays.sort(order, (a, b) -> Long.compare(lastModified[a], lastModified[b]));
+    for (int i : order) {
+      File file = files[i];
+      if (file.getName().endsWith(".tmp")) {
+        file.delete();
+        continue;
+      }
+      try (DataInputStream in =
+          new DataInputStream(new BufferedInputStream(new FileInputStream(file), 512))) {
+        if (in.readInt() != VERSION) {
+          file.delete();
+          continue;
+        }
+        String key = in.readUTF();
+        Entry entry = new Entry(file, in.readLong(), file.length());
+        mEntries.put(key, entry);
+        mSizeBytes += entry.sizeBytes;
+      } catch (IOException e) {
+        file.delete();
+      }
+    }
+    LogUtil.i(
+        "ContactPhotoDiskCache.getEntries",
+        "loaded " + mEntries.size() + " entries, " + mSizeBytes + " bytes");
+    trimToSize();
+    return mEntries;
+  }
+}
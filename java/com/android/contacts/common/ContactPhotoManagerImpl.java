@@ -38,6 +38,7 @@ import android.os.Handler;
 import android.os.Handler.Callback;
 import android.os.HandlerThread;
 import android.os.Message;
+import android.os.SystemClock;
 import android.provider.ContactsContract;
 import android.provider.ContactsContract.Contacts;
 import android.provider.ContactsContract.Contacts.Photo;
@@ -65,13 +66,21 @@ import java.lang.ref.SoftReference;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
 
@@ -89,7 +98,14 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
 
   private static final String[] EMPTY_STRING_ARRAY = new String[0];
 
-  private static final String[] COLUMNS = new String[] {Photo._ID, Photo.PHOTO};
+  private static final String[] COLUMNS =
+      new String[] {Photo._ID, Photo.PHOTO, Data.CONTACT_LAST_UPDATED_TIMESTAMP};
+
+  private static final String[] TIMESTAMP_COLUMNS =
+      new String[] {Photo._ID, Data.CONTACT_LAST_UPDATED_TIMESTAMP};
+
+  /** How long a downloaded photo is taken from {@link #mDiskCache} instead of downloading it. */
+  private static final long URI_PHOTO_DISK_CACHE_MAX_AGE_MILLIS = TimeUnit.DAYS.toMillis(1);
 
   /**
    * Dummy object used to indicate that a bitmap for a given key could not be stored in the cache.
@@ -99,6 +115,10 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
   private static final int HOLDER_CACHE_SIZE = 2000000;
   /** Cache size for {@link #mBitmapCache} for devices with "large" RAM. */
   private static final int BITMAP_CACHE_SIZE = 36864 * 48; // 1728K
+  /** Number of threads of {@link #mDecodeExecutor}. */
+  private static final int DECODE_THREAD_COUNT = 2;
+  /** Number of threads of {@link #mUriExecutor}. */
+  private static final int URI_THREAD_COUNT = 2;
   /** Height/width of a thumbnail image */
   private static int mThumbnailSize;
 
@@ -121,6 +141,11 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
    * #mBitmapHolderCache}.
    */
   private final LruCache<Object, Bitmap> mBitmapCache;
+  /**
+   * Level 3 cache on disk, holding the bytes of thumbnails and downloaded photos across process
+   * restarts and memory trims. Only accessed by the loader thread.
+   */
+  private final ContactPhotoDiskCache mDiskCache;
   /**
    * A map from ImageView to the corresponding photo ID or uri, encapsulated in a request. The
    * request may swapped out before the photo loading request is started.
@@ -129,6 +154,28 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
       new ConcurrentHashMap<ImageView, Request>();
   /** Handler for messages sent to the UI thread. */
   private final Handler mMainThreadHandler = new Handler(this);
+  /** Decodes loaded photos, so that decoding doesn't delay the next query of the loader thread. */
+  private final ThreadPoolExecutor mDecodeExecutor =
+      createExecutor("ContactPhotoDecoder", DECODE_THREAD_COUNT);
+  /** Fetches URI based photos, so that slow downloads don't delay thumbnails. */
+  private final ThreadPoolExecutor mUriExecutor =
+      createExecutor("ContactPhotoUriLoader", URI_THREAD_COUNT);
+  /** Keys of the photos being decoded. Requests for them are not dispatched again meanwhile. */
+  private final Set<Object> mDecodingKeys =
+      Collections.newSetFromMap(new ConcurrentHashMap<Object, Boolean>());
+  /** Keys of the photos being fetched. Requests for them are not dispatched again meanwhile. */
+  private final Set<Object> mFetchingKeys =
+      Collections.newSetFromMap(new ConcurrentHashMap<Object, Boolean>());
+  /** For debug: Largest number of photos waiting for or being decoded at once. */
+  private final AtomicInteger mMaxDecodeQueueDepth = new AtomicInteger();
+  /** For debug: Largest number of photos waiting for or being fetched by URI at once. */
+  private final AtomicInteger mMaxUriQueueDepth = new AtomicInteger();
+  /** For debug: How many photos were decoded, and how long it took in total. */
+  private final AtomicInteger mDecodeCount = new AtomicInteger();
+
+  private final AtomicLong mDecodeTimeMillis = new AtomicLong();
+  /** For debug: How many decodes and fetches were skipped because no view needed them anymore. */
+  private final AtomicInteger mCancelledCount = new AtomicInteger();
   /** For debug: How many times we had to reload cached photo for a stale entry */
   private final AtomicInteger mStaleCacheOverwrite = new AtomicInteger();
   /** For debug: How many times we had to reload cached photo for a fresh entry. Should be 0. */
@@ -185,6 +232,7 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
           }
         };
     mBitmapHolderCacheRedZoneBytes = (int) (holderCacheSize * 0.75);
+    mDiskCache = new ContactPhotoDiskCache(context);
     LogUtil.i(
         "ContactPhotoManagerImpl.ContactPhotoManagerImpl", "cache adj: " + cacheSizeAdjustment);
     if (DEBUG) {
@@ -361,6 +409,19 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
               + btk(safeDiv(bitmapBytes, numBitmaps)));
       // We don't get from L2 cache, so L2 stats is meaningless.
     }
+
+    LogUtil.d(
+        "ContactPhotoManagerImpl.dumpStats",
+        "Pools: decoded "
+            + mDecodeCount.get()
+            + " in "
+            + mDecodeTimeMillis.get()
+            + "ms, max queue depth: decode="
+            + mMaxDecodeQueueDepth.get()
+            + " uri="
+            + mMaxUriQueueDepth.get()
+            + ", cancelled: "
+            + mCancelledCount.get());
   }
 
   @Override
@@ -377,6 +438,7 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
   @Override
   public void preloadPhotosInBackground() {
     ensureLoaderThread();
+    mLoaderThread.requestWarmingFromDiskCache();
     mLoaderThread.requestPreloading();
   }
 
@@ -700,17 +762,14 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     BitmapHolder holder =
         new BitmapHolder(bytes, bytes == null ? -1 : BitmapUtil.getSmallerExtentFromBytes(bytes));
 
-    // Unless this image is being preloaded, decode it right away while
-    // we are still on the background thread.
-    if (!preloading) {
-      inflateBitmap(holder, requestedExtent);
-    }
-
     if (bytes != null) {
       mBitmapHolderCache.put(key, holder);
       if (mBitmapHolderCache.get(key) != holder) {
         LogUtil.w("ContactPhotoManagerImpl.cacheBitmap", "bitmap too big to fit in cache.");
         mBitmapHolderCache.put(key, BITMAP_UNAVAILABLE);
+      } else if (!preloading) {
+        // Unless this image is being preloaded, decode it right away in the background.
+        scheduleDecode(key, holder, requestedExtent);
       }
     } else {
       mBitmapHolderCache.put(key, BITMAP_UNAVAILABLE);
@@ -720,17 +779,82 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
   }
 
   /**
-   * Populates an array of photo IDs that need to be loaded. Also decodes bitmaps that we have
-   * already loaded
+   * Decodes the bytes of the holder on {@link #mDecodeExecutor} and notifies the main thread once
+   * done. Does nothing if the photo is already being decoded. Decoding is skipped if no view
+   * requests the photo anymore when it starts, for example because the view was scrolled off
+   * screen.
+   */
+  private void scheduleDecode(Object key, BitmapHolder holder, int requestedExtent) {
+    if (!mDecodingKeys.add(key)) {
+      return;
+    }
+    updateMaxQueueDepth(mMaxDecodeQueueDepth, mDecodeExecutor);
+    mDecodeExecutor.execute(
+        () -> {
+          try {
+            if (!isRequested(key)) {
+              mCancelledCount.incrementAndGet();
+              return;
+            }
+            long startMillis = SystemClock.elapsedRealtime();
+            inflateBitmap(holder, requestedExtent);
+            mDecodeTimeMillis.addAndGet(SystemClock.elapsedRealtime() - startMillis);
+            mDecodeCount.incrementAndGet();
+          } finally {
+            mDecodingKeys.remove(key);
+            mMainThreadHandler.sendEmptyMessage(MESSAGE_PHOTOS_LOADED);
+          }
+        });
+  }
+
+  /** Whether a view is still waiting for the photo with the key. */
+  private boolean isRequested(Object key) {
+    for (Request request : mPendingRequests.values()) {
+      if (request.getKey().equals(key)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static void updateMaxQueueDepth(
+      AtomicInteger maxQueueDepth, ThreadPoolExecutor executor) {
+    int queueDepth = executor.getQueue().size() + 1;
+    int max;
+    do {
+      max = maxQueueDepth.get();
+    } while (queueDepth > max && !maxQueueDepth.compareAndSet(max, queueDepth));
+  }
+
+  private static ThreadPoolExecutor createExecutor(String name, int threadCount) {
+    return new ThreadPoolExecutor(
+        threadCount,
+        threadCount,
+        0L,
+        TimeUnit.MILLISECONDS,
+        new LinkedBlockingQueue<>(),
+        new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, name);
+            thread.setPriority(4); // Corresponds to Process.THREAD_PRIORITY_BACKGROUND
+            return thread;
+          }
+        });
+  }
+
+  /**
+   * Populates an array of photo IDs that need to be loaded, and the requests of URIs that need to
+   * be loaded by key. Also schedules decoding bitmaps that we have already loaded. Photos which are
+   * being decoded or fetched for another request are skipped, they will be displayed for all
+   * requests once done.
    */
   private void obtainPhotoIdsAndUrisToLoad(
-      Set<Long> photoIds, Set<String> photoIdsAsStrings, Set<Request> uris) {
+      Set<Long> photoIds, Set<String> photoIdsAsStrings, Map<Object, Request> uris) {
     photoIds.clear();
     photoIdsAsStrings.clear();
     uris.clear();
 
-    boolean jpegsDecoded = false;
-
     /*
      * Since the call is made from the loader thread, the map could be
      * changing during the iteration. That's not really a problem:
@@ -742,7 +866,11 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     Iterator<Request> iterator = mPendingRequests.values().iterator();
     while (iterator.hasNext()) {
       Request request = iterator.next();
-      final BitmapHolder holder = mBitmapHolderCache.get(request.getKey());
+      final Object key = request.getKey();
+      if (mDecodingKeys.contains(key) || mFetchingKeys.contains(key)) {
+        continue;
+      }
+      final BitmapHolder holder = mBitmapHolderCache.get(key);
       if (holder == BITMAP_UNAVAILABLE) {
         continue;
       }
@@ -751,12 +879,13 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
           && holder.fresh
           && (holder.bitmapRef == null || holder.bitmapRef.get() == null)) {
         // This was previously loaded but we don't currently have the inflated Bitmap
-        inflateBitmap(holder, request.getRequestedExtent());
-        jpegsDecoded = true;
+        scheduleDecode(key, holder, request.getRequestedExtent());
       } else {
         if (holder == null || !holder.fresh) {
           if (request.isUriRequest()) {
-            uris.add(request);
+            if (!uris.containsKey(key)) {
+              uris.put(key, request);
+            }
           } else {
             photoIds.add(request.getId());
             photoIdsAsStrings.add(String.valueOf(request.mId));
@@ -764,10 +893,6 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
         }
       }
     }
-
-    if (jpegsDecoded) {
-      mMainThreadHandler.sendEmptyMessage(MESSAGE_PHOTOS_LOADED);
-    }
   }
 
   /** Maintains the state of a particular photo. */
@@ -922,6 +1047,7 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     private static final int BUFFER_SIZE = 1024 * 16;
     private static final int MESSAGE_PRELOAD_PHOTOS = 0;
     private static final int MESSAGE_LOAD_PHOTOS = 1;
+    private static final int MESSAGE_WARM_FROM_DISK_CACHE = 2;
 
     /** A pause between preload batches that yields to the UI thread. */
     private static final int PHOTO_PRELOAD_DELAY = 1000;
@@ -942,10 +1068,9 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     private final StringBuilder mStringBuilder = new StringBuilder();
     private final Set<Long> mPhotoIds = new HashSet<>();
     private final Set<String> mPhotoIdsAsStrings = new HashSet<>();
-    private final Set<Request> mPhotoUris = new HashSet<>();
+    private final Map<Object, Request> mPhotoUris = new HashMap<>();
     private final List<Long> mPreloadPhotoIds = new ArrayList<>();
     private Handler mLoaderThreadHandler;
-    private byte[] mBuffer;
     private int mPreloadStatus = PRELOAD_STATUS_NOT_STARTED;
 
     public LoaderThread(ContentResolver resolver) {
@@ -978,6 +1103,15 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
       mLoaderThreadHandler.sendEmptyMessageDelayed(MESSAGE_PRELOAD_PHOTOS, PHOTO_PRELOAD_DELAY);
     }
 
+    /**
+     * Kicks off reading the most recently used thumbnails of {@link #mDiskCache} into memory, so
+     * that the first photos shown after the process started don't wait for the contacts provider.
+     */
+    public void requestWarmingFromDiskCache() {
+      ensureHandler();
+      mLoaderThreadHandler.sendEmptyMessage(MESSAGE_WARM_FROM_DISK_CACHE);
+    }
+
     /**
      * Sends a message to this thread to load requested photos. Cancels a preloading request, if
      * any: we don't want preloading to impede loading of the photos we need to display now.
@@ -1001,6 +1135,9 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
         case MESSAGE_LOAD_PHOTOS:
           loadPhotosInBackground();
           break;
+        case MESSAGE_WARM_FROM_DISK_CACHE:
+          warmFromDiskCache();
+          break;
       }
       return true;
     }
@@ -1063,6 +1200,45 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
       requestPreloading();
     }
 
+    /**
+     * Reads up to {@link #MAX_PHOTOS_TO_PRELOAD} of the most recently used thumbnails of {@link
+     * #mDiskCache} into {@link #mBitmapHolderCache}. They are not fresh, so they are displayed
+     * right away but still checked against the contacts provider by {@link
+     * #loadThumbnailsFromDiskCache(boolean)} before being considered loaded.
+     */
+    @WorkerThread
+    private void warmFromDiskCache() {
+      if (!PermissionsUtil.hasPermission(mContext, android.Manifest.permission.READ_CONTACTS)) {
+        return;
+      }
+      int count = 0;
+      for (String key : mDiskCache.getMostRecentlyUsedKeys(mBitmapHolderCacheRedZoneBytes)) {
+        if (count == MAX_PHOTOS_TO_PRELOAD) {
+          break;
+        }
+        Long photoId = ContactPhotoDiskCache.getPhotoId(key);
+        Long validator = mDiskCache.getValidator(key);
+        if (photoId == null || validator == null || mBitmapHolderCache.get(photoId) != null) {
+          continue;
+        }
+        byte[] bytes = mDiskCache.get(key, validator);
+        if (bytes == null) {
+          continue;
+        }
+        BitmapHolder holder = new BitmapHolder(bytes, BitmapUtil.getSmallerExtentFromBytes(bytes));
+        holder.fresh = false;
+        inflateBitmap(holder, -1);
+        // Only keep the soft reference, nothing might request this photo.
+        holder.bitmap = null;
+        mBitmapHolderCache.put(photoId, holder);
+        count++;
+      }
+      LogUtil.i("ContactPhotoManagerImpl.warmFromDiskCache", "read " + count + " photos");
+      if (count > 0) {
+        mMainThreadHandler.sendEmptyMessage(MESSAGE_PHOTOS_LOADED);
+      }
+    }
+
     @WorkerThread
     private void queryPhotosForPreload() {
       Cursor cursor = null;
@@ -1126,15 +1302,11 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
         }
       }
 
-      mStringBuilder.setLength(0);
-      mStringBuilder.append(Photo._ID + " IN(");
-      for (int i = 0; i < mPhotoIds.size(); i++) {
-        if (i != 0) {
-          mStringBuilder.append(',');
-        }
-        mStringBuilder.append('?');
+      loadThumbnailsFromDiskCache(preloading);
+      if (mPhotoIds.isEmpty()) {
+        mMainThreadHandler.sendEmptyMessage(MESSAGE_PHOTOS_LOADED);
+        return;
       }
-      mStringBuilder.append(')');
 
       Cursor cursor = null;
       try {
@@ -1147,7 +1319,7 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
             mResolver.query(
                 Data.CONTENT_URI,
                 COLUMNS,
-                mStringBuilder.toString(),
+                buildPhotoIdSelection(mPhotoIdsAsStrings.size()),
                 mPhotoIdsAsStrings.toArray(EMPTY_STRING_ARRAY),
                 null);
 
@@ -1156,6 +1328,9 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
             Long id = cursor.getLong(0);
             byte[] bytes = cursor.getBlob(1);
             cacheBitmap(id, bytes, preloading, -1);
+            if (bytes != null) {
+              mDiskCache.put(ContactPhotoDiskCache.getPhotoIdKey(id), cursor.getLong(2), bytes);
+            }
             mPhotoIds.remove(id);
           }
         }
@@ -1194,69 +1369,187 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     }
 
     /**
-     * Loads photos referenced with Uris. Those can be remote thumbnails (from directory searches),
-     * display photos etc
+     * Takes the photos of {@link #mPhotoIds} that are in {@link #mDiskCache} from there, if the
+     * contact has not been updated since they were stored. This only queries the timestamps from
+     * the contacts provider instead of the photo blobs. The photos taken are removed from {@link
+     * #mPhotoIds}.
      */
     @WorkerThread
-    private void loadUriBasedPhotos() {
-      for (Request uriRequest : mPhotoUris) {
-        // Keep the original URI and use this to key into the cache.  Failure to do so will
-        // result in an image being continually reloaded into cache if the original URI
-        // has a contact type encodedFragment (eg nearby places business photo URLs).
-        Uri originalUri = uriRequest.getUri();
-
-        // Strip off the "contact type" we added to the URI to ensure it was identifiable as
-        // a business photo -- there is no need to pass this on to the server.
-        Uri uri = ContactPhotoManager.removeContactType(originalUri);
-
-        if (mBuffer == null) {
-          mBuffer = new byte[BUFFER_SIZE];
+    private void loadThumbnailsFromDiskCache(boolean preloading) {
+      List<String> cachedIds = new ArrayList<>();
+      for (Long id : mPhotoIds) {
+        if (mDiskCache.getValidator(ContactPhotoDiskCache.getPhotoIdKey(id)) != null) {
+          cachedIds.add(String.valueOf(id));
         }
-        try {
-          if (DEBUG) {
-            LogUtil.d("ContactPhotoManagerImpl.loadUriBasedPhotos", "loading " + uri);
+      }
+      if (cachedIds.isEmpty()) {
+        return;
+      }
+
+      Cursor cursor = null;
+      try {
+        cursor =
+            mResolver.query(
+                Data.CONTENT_URI,
+                TIMESTAMP_COLUMNS,
+                buildPhotoIdSelection(cachedIds.size()),
+                cachedIds.toArray(EMPTY_STRING_ARRAY),
+                null);
+        if (cursor == null) {
+          return;
+        }
+        while (cursor.moveToNext()) {
+          Long id = cursor.getLong(0);
+          long timestamp = cursor.getLong(1);
+          String key = ContactPhotoDiskCache.getPhotoIdKey(id);
+          Long validator = mDiskCache.getValidator(key);
+          if (validator == null || validator != timestamp) {
+            continue;
           }
-          final String scheme = uri.getScheme();
-          InputStream is = null;
-          if (scheme.equals("http") || scheme.equals("https")) {
-            TrafficStats.setThreadStatsTag(TrafficStatsTags.CONTACT_PHOTO_DOWNLOAD_TAG);
-            final HttpURLConnection connection =
-                (HttpURLConnection) new URL(uri.toString()).openConnection();
-
-            // Include the user agent if it is specified.
-            if (!TextUtils.isEmpty(mUserAgent)) {
-              connection.setRequestProperty("User-Agent", mUserAgent);
-            }
-            try {
-              is = connection.getInputStream();
-            } catch (IOException e) {
-              connection.disconnect();
-              is = null;
+          BitmapHolder holder = mBitmapHolderCache.get(id);
+          if (holder != null && holder != BITMAP_UNAVAILABLE) {
+            // Warmed from disk or marked unfresh by refreshCache(), and still up to date.
+            holder.fresh = true;
+            mBitmapHolderCacheAllUnfresh = false;
+            if (!preloading && (holder.bitmapRef == null || holder.bitmapRef.get() == null)) {
+              scheduleDecode(id, holder, -1);
             }
-            TrafficStats.clearThreadStatsTag();
           } else {
-            is = mResolver.openInputStream(uri);
+            byte[] bytes = mDiskCache.get(key, timestamp);
+            if (bytes == null) {
+              continue;
+            }
+            cacheBitmap(id, bytes, preloading, -1);
           }
-          if (is != null) {
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            try {
-              int size;
-              while ((size = is.read(mBuffer)) != -1) {
-                baos.write(mBuffer, 0, size);
+          mPhotoIds.remove(id);
+          mPhotoIdsAsStrings.remove(String.valueOf(id));
+        }
+      } finally {
+        if (cursor != null) {
+          cursor.close();
+        }
+      }
+    }
+
+    private String buildPhotoIdSelection(int count) {
+      mStringBuilder.setLength(0);
+      mStringBuilder.append(Photo._ID + " IN(");
+      for (int i = 0; i < count; i++) {
+        if (i != 0) {
+          mStringBuilder.append(',');
+        }
+        mStringBuilder.append('?');
+      }
+      mStringBuilder.append(')');
+      return mStringBuilder.toString();
+    }
+
+    /**
+     * Fetches the photos referenced with Uris on {@link #mUriExecutor}, so that slow downloads
+     * don't delay the thumbnails loaded by this thread. Photos already being fetched for another
+     * request are skipped.
+     */
+    @WorkerThread
+    private void loadUriBasedPhotos() {
+      for (Request uriRequest : mPhotoUris.values()) {
+        final Object key = uriRequest.getKey();
+        if (!mFetchingKeys.add(key)) {
+          continue;
+        }
+        updateMaxQueueDepth(mMaxUriQueueDepth, mUriExecutor);
+        mUriExecutor.execute(
+            () -> {
+              try {
+                if (isRequested(key)) {
+                  loadUriBasedPhoto(uriRequest);
+                } else {
+                  mCancelledCount.incrementAndGet();
+                }
+              } finally {
+                mFetchingKeys.remove(key);
+                mMainThreadHandler.sendEmptyMessage(MESSAGE_PHOTOS_LOADED);
               }
-            } finally {
-              is.close();
+            });
+      }
+    }
+
+    /**
+     * Loads a photo referenced with a Uri. Those can be remote thumbnails (from directory
+     * searches), display photos etc
+     */
+    @WorkerThread
+    private void loadUriBasedPhoto(Request uriRequest) {
+      // Keep the original URI and use this to key into the cache.  Failure to do so will
+      // result in an image being continually reloaded into cache if the original URI
+      // has a contact type encodedFragment (eg nearby places business photo URLs).
+      Uri originalUri = uriRequest.getUri();
+
+      // Strip off the "contact type" we added to the URI to ensure it was identifiable as
+      // a business photo -- there is no need to pass this on to the server.
+      Uri uri = ContactPhotoManager.removeContactType(originalUri);
+
+      try {
+        if (DEBUG) {
+          LogUtil.d("ContactPhotoManagerImpl.loadUriBasedPhoto", "loading " + uri);
+        }
+        final String scheme = uri.getScheme();
+        final boolean isRemote = scheme.equals("http") || scheme.equals("https");
+        final String diskCacheKey = ContactPhotoDiskCache.getUriKey(originalUri);
+        if (isRemote) {
+          Long downloadTimeMillis = mDiskCache.getValidator(diskCacheKey);
+          if (downloadTimeMillis != null
+              && System.currentTimeMillis() - downloadTimeMillis
+                  < URI_PHOTO_DISK_CACHE_MAX_AGE_MILLIS) {
+            byte[] bytes = mDiskCache.get(diskCacheKey, downloadTimeMillis);
+            if (bytes != null) {
+              cacheBitmap(originalUri, bytes, false, uriRequest.getRequestedExtent());
+              return;
             }
-            cacheBitmap(originalUri, baos.toByteArray(), false, uriRequest.getRequestedExtent());
-            mMainThreadHandler.sendEmptyMessage(MESSAGE_PHOTOS_LOADED);
-          } else {
-            LogUtil.v("ContactPhotoManagerImpl.loadUriBasedPhotos", "cannot load photo " + uri);
-            cacheBitmap(originalUri, null, false, uriRequest.getRequestedExtent());
           }
-        } catch (final Exception | OutOfMemoryError ex) {
-          LogUtil.v("ContactPhotoManagerImpl.loadUriBasedPhotos", "cannot load photo " + uri, ex);
+        }
+        InputStream is = null;
+        if (isRemote) {
+          TrafficStats.setThreadStatsTag(TrafficStatsTags.CONTACT_PHOTO_DOWNLOAD_TAG);
+          final HttpURLConnection connection =
+              (HttpURLConnection) new URL(uri.toString()).openConnection();
+
+          // Include the user agent if it is specified.
+          if (!TextUtils.isEmpty(mUserAgent)) {
+            connection.setRequestProperty("User-Agent", mUserAgent);
+          }
+          try {
+            is = connection.getInputStream();
+          } catch (IOException e) {
+            connection.disconnect();
+            is = null;
+          }
+          TrafficStats.clearThreadStatsTag();
+        } else {
+          is = mResolver.openInputStream(uri);
+        }
+        if (is != null) {
+          ByteArrayOutputStream baos = new ByteArrayOutputStream();
+          byte[] buffer = new byte[BUFFER_SIZE];
+          try {
+            int size;
+            while ((size = is.read(buffer)) != -1) {
+              baos.write(buffer, 0, size);
+            }
+          } finally {
+            is.close();
+          }
+          byte[] bytes = baos.toByteArray();
+          cacheBitmap(originalUri, bytes, false, uriRequest.getRequestedExtent());
+          if (isRemote) {
+            mDiskCache.put(diskCacheKey, System.currentTimeMillis(), bytes);
+          }
+        } else {
+          LogUtil.v("ContactPhotoManagerImpl.loadUriBasedPhoto", "cannot load photo " + uri);
           cacheBitmap(originalUri, null, false, uriRequest.getRequestedExtent());
         }
+      } catch (final Exception | OutOfMemoryError ex) {
+        LogUtil.v("ContactPhotoManagerImpl.loadUriBasedPhoto", "cannot load photo " + uri, ex);
+        cacheBitmap(originalUri, null, false, uriRequest.getRequestedExtent());
       }
     }
   }
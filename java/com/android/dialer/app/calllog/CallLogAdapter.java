@@ -23,10 +23,10 @@ import android.content.DialogInterface.OnCancelListener;
 import android.content.res.Resources;
 import android.database.Cursor;
 import android.net.Uri;
-import android.os.AsyncTask;
 import android.os.Build.VERSION;
 import android.os.Build.VERSION_CODES;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.os.Trace;
 import android.provider.CallLog;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
@@ -68,8 +68,6 @@ import com.android.dialer.calllogutils.PhoneAccountUtils;
 import com.android.dialer.calllogutils.PhoneCallDetails;
 import com.android.dialer.common.Assert;
 import com.android.dialer.common.LogUtil;
-import com.android.dialer.common.concurrent.AsyncTaskExecutor;
-import com.android.dialer.common.concurrent.AsyncTaskExecutors;
 import com.android.dialer.configprovider.ConfigProviderBindings;
 import com.android.dialer.enrichedcall.EnrichedCallCapabilities;
 import com.android.dialer.enrichedcall.EnrichedCallComponent;
@@ -83,6 +81,7 @@ import com.android.dialer.logging.DialerImpression;
 import com.android.dialer.logging.Logger;
 import com.android.dialer.logging.UiAction;
 import com.android.dialer.performancereport.PerformanceReport;
+import com.android.dialer.phonenumbercache.CallLogCachedInfoWriter;
 import com.android.dialer.phonenumbercache.CallLogQuery;
 import com.android.dialer.phonenumbercache.ContactInfo;
 import com.android.dialer.phonenumbercache.ContactInfoHelper;
@@ -97,7 +96,10 @@ import java.util.Set;
 
 /** Adapter class to fill in data for the Call Log. */
 public class CallLogAdapter extends GroupingListAdapter
-    implements GroupCreator, OnVoicemailDeletedListener, LightbringerListener {
+    implements GroupCreator,
+        OnVoicemailDeletedListener,
+        LightbringerListener,
+        CallLogCachedInfoWriter.Listener {
 
   // Types of activities the call log adapter is used for
   public static final int ACTIVITY_TYPE_CALL_LOG = 1;
@@ -111,8 +113,6 @@ public class CallLogAdapter extends GroupingListAdapter
   private static final String KEY_EXPANDED_ROW_ID = "expanded_row_id";
   private static final String KEY_ACTION_MODE = "action_mode_selected_items";
 
-  public static final String LOAD_DATA_TASK_IDENTIFIER = "load_data";
-
   public static final String ENABLE_CALL_LOG_MULTI_SELECT = "enable_call_log_multiselect";
   public static final boolean ENABLE_CALL_LOG_MULTI_SELECT_FLAG = true;
 
@@ -132,7 +132,13 @@ public class CallLogAdapter extends GroupingListAdapter
   /** Helper to group call log entries. */
   private final CallLogGroupBuilder mCallLogGroupBuilder;
 
-  private final AsyncTaskExecutor mAsyncTaskExecutor = AsyncTaskExecutors.createAsyncTaskExecutor();
+  private final CallLogRowLoader mRowLoader = new CallLogRowLoader();
+  /** Number of rows ahead of the scroll whose data is loaded before they are bound. */
+  private final int mPrefetchWindow;
+  /** The last bound position, used to tell in which direction the list is scrolling. */
+  private int mLastBoundPosition = RecyclerView.NO_POSITION;
+  /** Whether the call log changed while contact info was written to it. */
+  private boolean mContentChangedWhileWritingCachedInfo;
   private ContactInfoCache mContactInfoCache;
   // Tracks the position of the currently expanded list item.
   private int mCurrentlyExpandedPosition = RecyclerView.NO_POSITION;
@@ -518,8 +524,14 @@ public class CallLogAdapter extends GroupingListAdapter
         new PhoneCallDetailsHelper(mActivity, resources, mCallLogCache);
     mCallLogListItemHelper =
         new CallLogListItemHelper(phoneCallDetailsHelper, resources, mCallLogCache);
-    mCallLogGroupBuilder = new CallLogGroupBuilder(this);
+    mCallLogGroupBuilder =
+        new CallLogGroupBuilder(
+            this,
+            ConfigProviderBindings.get(mActivity)
+                .getBoolean("call_log_group_by_number_key", false));
     mFilteredNumberAsyncQueryHandler = Assert.isNotNull(filteredNumberAsyncQueryHandler);
+    mPrefetchWindow =
+        (int) ConfigProviderBindings.get(mActivity).getLong("call_log_prefetch_window", 5L);
 
     mContactsPreferences = new ContactsPreferences(mActivity);
 
@@ -616,9 +628,22 @@ public class CallLogAdapter extends GroupingListAdapter
   /** Requery on background thread when {@link Cursor} changes. */
   @Override
   protected void onContentChanged() {
+    if (CallLogCachedInfoWriter.get(mActivity).isWriting()) {
+      // Most likely caused by writing contact info to the call log, requery once it is done.
+      mContentChangedWhileWritingCachedInfo = true;
+      return;
+    }
     mCallFetcher.fetchCalls();
   }
 
+  @Override
+  public void onCachedInfoWritten() {
+    if (mContentChangedWhileWritingCachedInfo) {
+      mContentChangedWhileWritingCachedInfo = false;
+      mCallFetcher.fetchCalls();
+    }
+  }
+
   public void setLoading(boolean loading) {
     mLoading = loading;
   }
@@ -643,11 +668,14 @@ public class CallLogAdapter extends GroupingListAdapter
     mContactsPreferences.refreshValue(ContactsPreferences.DISPLAY_ORDER_KEY);
     mIsSpamEnabled = Spam.get(mActivity).isSpamEnabled();
     getLightbringer().registerListener(this);
+    CallLogCachedInfoWriter.get(mActivity).addListener(this);
     notifyDataSetChanged();
   }
 
   public void onPause() {
     getLightbringer().unregisterListener(this);
+    CallLogCachedInfoWriter.get(mActivity).removeListener(this);
+    mContentChangedWhileWritingCachedInfo = false;
     pauseCache();
     for (Uri uri : mHiddenItemUris) {
       CallLogAsyncTaskUtil.deleteVoicemail(mActivity, uri, null);
@@ -656,6 +684,7 @@ public class CallLogAdapter extends GroupingListAdapter
 
   public void onStop() {
     getEnrichedCallManager().clearCachedData();
+    mRowLoader.cancelAll();
   }
 
   public CallLogAlertManager getAlertManager() {
@@ -671,6 +700,7 @@ public class CallLogAdapter extends GroupingListAdapter
   @Override
   protected void addGroups(Cursor cursor) {
     mCallLogGroupBuilder.addGroups(cursor);
+    mRowLoader.clearPrefetchedRows();
   }
 
   @Override
@@ -738,9 +768,7 @@ public class CallLogAdapter extends GroupingListAdapter
       CallLogListItemViewHolder views = (CallLogListItemViewHolder) viewHolder;
       updateCheckMarkedStatusOfEntry(views);
 
-      if (views.asyncTask != null) {
-        views.asyncTask.cancel(true);
-      }
+      mRowLoader.cancel(views);
     }
   }
 
@@ -788,6 +816,46 @@ public class CallLogAdapter extends GroupingListAdapter
       views.inflateActionViewStub();
     }
     loadAndRender(views, views.rowId, details, callDetailsEntries);
+    prefetchRowsAhead(position);
+  }
+
+  /**
+   * Prefetches the data of the rows after {@code position} in the direction of the scroll, so that
+   * it is cached once they are bound.
+   */
+  @MainThread
+  private void prefetchRowsAhead(int position) {
+    int direction = position < mLastBoundPosition ? -1 : 1;
+    mLastBoundPosition = position;
+    for (int i = 1; i <= mPrefetchWindow; i++) {
+      int prefetchPosition = position + direction * i;
+      if (prefetchPosition < 0
+          || prefetchPosition >= getItemCount()
+          || getItemViewType(prefetchPosition) != VIEW_TYPE_CALLLOG) {
+        continue;
+      }
+      Cursor c = (Cursor) getItem(prefetchPosition);
+      if (c == null) {
+        continue;
+      }
+      final long rowId = c.getLong(CallLogQuery.ID);
+      final String number = c.getString(CallLogQuery.NUMBER);
+      final String postDialDigits =
+          (VERSION.SDK_INT >= VERSION_CODES.N) ? c.getString(CallLogQuery.POST_DIAL_DIGITS) : "";
+      final String countryIso = c.getString(CallLogQuery.COUNTRY_ISO);
+      final int numberPresentation = c.getInt(CallLogQuery.NUMBER_PRESENTATION);
+      final ContactInfo cachedContactInfo = ContactInfoHelper.getContactInfo(c);
+      mRowLoader.prefetch(
+          rowId,
+          () -> {
+            mFilteredNumberAsyncQueryHandler.getBlockedIdSynchronous(number, countryIso);
+            if (PhoneNumberHelper.canPlaceCallsTo(number, numberPresentation)) {
+              // Enqueues the lookup of the contact if it isn't cached.
+              mContactInfoCache.getValue(
+                  number + postDialDigits, countryIso, cachedContactInfo, false);
+            }
+          });
+    }
   }
 
   private void updateCheckMarkedStatusOfEntry(CallLogListItemViewHolder views) {
@@ -824,10 +892,11 @@ public class CallLogAdapter extends GroupingListAdapter
             getAllHistoricalData(views.number, callDetailsEntries));
     views.setDetailedPhoneDetails(updatedCallDetailsEntries);
     views.lightbringerReady = getLightbringer().isReachable(mActivity, views.number);
-    final AsyncTask<Void, Void, Boolean> loadDataTask =
-        new AsyncTask<Void, Void, Boolean>() {
+    mRowLoader.load(
+        views,
+        new CallLogRowLoader.Load(rowId) {
           @Override
-          protected Boolean doInBackground(Void... params) {
+          boolean doInBackground() {
             views.blockId =
                 mFilteredNumberAsyncQueryHandler.getBlockedIdSynchronous(
                     views.number, views.countryIso);
@@ -849,9 +918,11 @@ public class CallLogAdapter extends GroupingListAdapter
           }
 
           @Override
-          protected void onPostExecute(Boolean success) {
+          void onLoaded(boolean success) {
             views.isLoaded = true;
             if (success) {
+              PerformanceReport.recordBindToContentLatency(
+                  SystemClock.elapsedRealtime() - bindTimeMillis);
               int currentGroup = getDayGroupForCall(views.rowId);
               if (currentGroup != details.previousGroup) {
                 views.dayGroupHeaderVisibility = View.VISIBLE;
@@ -862,10 +933,7 @@ public class CallLogAdapter extends GroupingListAdapter
               render(views, details, rowId);
             }
           }
-        };
-
-    views.asyncTask = loadDataTask;
-    mAsyncTaskExecutor.submit(LOAD_DATA_TASK_IDENTIFIER, loadDataTask);
+        });
   }
 
   @MainThread
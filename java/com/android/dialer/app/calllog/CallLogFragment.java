@@ -64,6 +64,7 @@ import com.android.dialer.logging.DialerImpression;
 import com.android.dialer.logging.Logger;
 import com.android.dialer.oem.CequintCallerIdManager;
 import com.android.dialer.performancereport.PerformanceReport;
+import com.android.dialer.phonenumbercache.CallLogCachedInfoWriter;
 import com.android.dialer.phonenumbercache.ContactInfoHelper;
 import com.android.dialer.util.PermissionsUtil;
 import com.android.dialer.widget.EmptyContentView;
@@ -308,6 +309,15 @@ public class CallLogFragment extends Fragment
     mLayoutManager = new LinearLayoutManager(getActivity());
     mRecyclerView.setLayoutManager(mLayoutManager);
     PerformanceReport.logOnScrollStateChange(mRecyclerView);
+    mRecyclerView.addOnScrollListener(
+        new RecyclerView.OnScrollListener() {
+          @Override
+          public void onScrollStateChanged(RecyclerView recyclerView, int newState) {
+            // Contact info found while scrolling is written to the call log once it settles.
+            CallLogCachedInfoWriter.get(getContext())
+                .setScrolling(newState != RecyclerView.SCROLL_STATE_IDLE);
+          }
+        });
     mEmptyListView = (EmptyContentView) view.findViewById(R.id.empty_list_view);
     mEmptyListView.setImage(R.drawable.empty_call_log);
     mEmptyListView.setActionClickedListener(this);
@@ -414,6 +424,7 @@ public class CallLogFragment extends Fragment
     LogUtil.d("CallLogFragment.onPause", toString());
     cancelDisplayUpdate();
     mAdapter.onPause();
+    CallLogCachedInfoWriter.get(getContext()).setScrolling(false);
     super.onPause();
   }
 
@@ -19,15 +19,21 @@ package com.android.dialer.app.calllog;
 import android.database.Cursor;
 import android.os.Build.VERSION;
 import android.os.Build.VERSION_CODES;
+import android.os.SystemClock;
 import android.support.annotation.Nullable;
 import android.support.annotation.VisibleForTesting;
 import android.telephony.PhoneNumberUtils;
 import android.text.TextUtils;
 import android.text.format.Time;
 import com.android.contacts.common.util.DateUtils;
+import com.android.dialer.common.LogUtil;
 import com.android.dialer.compat.AppCompatConstants;
 import com.android.dialer.phonenumbercache.CallLogQuery;
 import com.android.dialer.phonenumberutil.PhoneNumberHelper;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Objects;
 
 /**
@@ -54,11 +60,31 @@ public class CallLogGroupBuilder {
   public static final int DAY_GROUP_OTHER = 2;
   /** Instance of the time object used for time calculations. */
   private static final Time TIME = new Time();
+  /** Key of numbers which are never grouped, such as private numbers. */
+  private static final int NO_NUMBER_KEY = -1;
+  /** Size of {@link #mNumberKeys} above which the keys are computed again. */
+  private static final int MAX_CACHED_NUMBER_KEYS = 2000;
   /** The object on which the groups are created. */
   private final GroupCreator mGroupCreator;
+  /**
+   * Whether numbers are grouped by comparing their normalized keys, which is transitive and allows
+   * updating the groups incrementally, rather than by {@link #equalNumbers(String, String)}.
+   */
+  private final boolean mGroupByNumberKey;
+  /** Keys of numbers by their country ISO and number, kept across reloads of the call log. */
+  private final Map<String, Integer> mNumberKeys = new HashMap<>();
+  /** Keys by normalized number, so that numbers normalized in the same way share a key. */
+  private final Map<String, Integer> mNormalizedNumberKeys = new HashMap<>();
+  /** The groups found by the last call to {@link #addGroups(Cursor)}, or null. */
+  @Nullable private Groups mLastGroups;
 
   public CallLogGroupBuilder(GroupCreator groupCreator) {
+    this(groupCreator, false);
+  }
+
+  public CallLogGroupBuilder(GroupCreator groupCreator, boolean groupByNumberKey) {
     mGroupCreator = groupCreator;
+    mGroupByNumberKey = groupByNumberKey;
   }
 
   /**
@@ -72,6 +98,14 @@ public class CallLogGroupBuilder {
    * @see GroupingListAdapter#addGroups(Cursor)
    */
   public void addGroups(Cursor cursor) {
+    if (mGroupByNumberKey) {
+      addGroupsByNumberKey(cursor);
+    } else {
+      addGroupsByComparingNumbers(cursor);
+    }
+  }
+
+  private void addGroupsByComparingNumbers(Cursor cursor) {
     final int count = cursor.getCount();
     if (count == 0) {
       return;
@@ -169,6 +203,154 @@ public class CallLogGroupBuilder {
     mGroupCreator.addGroup(count - groupSize, groupSize);
   }
 
+  /**
+   * Same as {@link #addGroupsByComparingNumbers(Cursor)}, but compares the keys of the numbers
+   * computed by {@link #getNumberKey(String, String)}. If the cursor only has new calls on top of
+   * those passed to the previous call, with the same values, only the new calls are grouped.
+   */
+  private void addGroupsByNumberKey(Cursor cursor) {
+    final int count = cursor.getCount();
+    if (count == 0) {
+      mLastGroups = null;
+      return;
+    }
+    long startMillis = SystemClock.elapsedRealtime();
+    if (mNumberKeys.size() > MAX_CACHED_NUMBER_KEYS) {
+      // Previous groups refer to the keys being dropped.
+      mNumberKeys.clear();
+      mNormalizedNumberKeys.clear();
+      mLastGroups = null;
+    }
+
+    // Calls can be updated in place, for example when a number is edited, so the values of every
+    // call are read and compared with the previous ones rather than only the row IDs.
+    Row[] rows = new Row[count];
+    cursor.moveToFirst();
+    for (int i = 0; i < count; i++) {
+      rows[i] = readRow(cursor);
+      cursor.moveToNext();
+    }
+    int newCallCount = getNewCallCount(rows, mLastGroups);
+
+    Groups groups = new Groups(rows);
+    Row leader = null;
+    for (int i = 0; i < newCallCount; i++) {
+      Row row = rows[i];
+      if (leader != null && leader.canGroupWith(row)) {
+        groups.sizes[groups.count - 1]++;
+      } else {
+        groups.add(i, 1, row.date);
+        leader = row;
+      }
+    }
+    if (newCallCount < count) {
+      // The remaining calls are grouped like in the previous call. As grouping by key is
+      // transitive, the first previous group either joins the last new group or stays as is.
+      Groups lastGroups = mLastGroups;
+      int firstLastGroup = 0;
+      if (leader != null && leader.canGroupWith(lastGroups.rows[0])) {
+        groups.sizes[groups.count - 1] += lastGroups.sizes[0];
+        firstLastGroup = 1;
+      }
+      for (int i = firstLastGroup; i < lastGroups.count; i++) {
+        groups.add(lastGroups.starts[i] + newCallCount, lastGroups.sizes[i], lastGroups.dates[i]);
+      }
+    }
+
+    mGroupCreator.clearDayGroups();
+    long currentTime = System.currentTimeMillis();
+    for (int i = 0; i < groups.count; i++) {
+      int start = groups.starts[i];
+      int size = groups.sizes[i];
+      int dayGroup = getDayGroup(groups.dates[i], currentTime);
+      for (int position = start; position < start + size; position++) {
+        mGroupCreator.setDayGroup(rows[position].id, dayGroup);
+      }
+      mGroupCreator.addGroup(start, size);
+    }
+    mLastGroups = groups;
+    LogUtil.i(
+        "CallLogGroupBuilder.addGroupsByNumberKey",
+        "grouped %d calls (%d new) in %d ms",
+        count,
+        newCallCount,
+        SystemClock.elapsedRealtime() - startMillis);
+  }
+
+  /**
+   * Returns how many calls on top of {@code rows} are new since {@code lastGroups}, or the number
+   * of calls if the other calls are not exactly those of {@code lastGroups}, with the same values.
+   */
+  private static int getNewCallCount(Row[] rows, @Nullable Groups lastGroups) {
+    if (lastGroups == null) {
+      return rows.length;
+    }
+    Row[] lastRows = lastGroups.rows;
+    int newCallCount = rows.length - lastRows.length;
+    if (newCallCount < 0) {
+      return rows.length;
+    }
+    for (int i = 0; i < lastRows.length; i++) {
+      if (!rows[newCallCount + i].isSameCall(lastRows[i])) {
+        return rows.length;
+      }
+    }
+    return newCallCount;
+  }
+
+  private Row readRow(Cursor cursor) {
+    Row row = new Row();
+    row.id = cursor.getLong(CallLogQuery.ID);
+    row.numberKey =
+        getNumberKey(
+            cursor.getString(CallLogQuery.NUMBER), cursor.getString(CallLogQuery.COUNTRY_ISO));
+    row.postDialDigits =
+        (VERSION.SDK_INT >= VERSION_CODES.N) ? cursor.getString(CallLogQuery.POST_DIAL_DIGITS) : "";
+    row.viaNumber =
+        (VERSION.SDK_INT >= VERSION_CODES.N) ? cursor.getString(CallLogQuery.VIA_NUMBER) : "";
+    row.callType = cursor.getInt(CallLogQuery.CALL_TYPE);
+    row.accountComponentName = cursor.getString(CallLogQuery.ACCOUNT_COMPONENT_NAME);
+    row.accountId = cursor.getString(CallLogQuery.ACCOUNT_ID);
+    row.date = cursor.getLong(CallLogQuery.DATE);
+    return row;
+  }
+
+  /**
+   * Returns a key which is the same for numbers which should be grouped together: the E164 form of
+   * phone numbers if they have one, or the number without separators. For SIP addresses the domain
+   * is compared ignoring case, like in {@link #compareSipAddresses(String, String)}.
+   */
+  private int getNumberKey(@Nullable String number, @Nullable String countryIso) {
+    if (TextUtils.isEmpty(number)) {
+      return NO_NUMBER_KEY;
+    }
+    String cacheKey = countryIso + "|" + number;
+    Integer key = mNumberKeys.get(cacheKey);
+    if (key != null) {
+      return key;
+    }
+    String normalizedNumber;
+    if (PhoneNumberHelper.isUriNumber(number)) {
+      int index = number.indexOf('@');
+      normalizedNumber =
+          index == -1
+              ? number
+              : number.substring(0, index) + number.substring(index).toLowerCase(Locale.US);
+    } else {
+      normalizedNumber = PhoneNumberUtils.formatNumberToE164(number, countryIso);
+      if (normalizedNumber == null) {
+        normalizedNumber = PhoneNumberUtils.stripSeparators(number);
+      }
+    }
+    key = mNormalizedNumberKeys.get(normalizedNumber);
+    if (key == null) {
+      key = mNormalizedNumberKeys.size();
+      mNormalizedNumberKeys.put(normalizedNumber, key);
+    }
+    mNumberKeys.put(cacheKey, key);
+    return key;
+  }
+
   @VisibleForTesting
   boolean equalNumbers(@Nullable String number1, @Nullable String number2) {
     if (PhoneNumberHelper.isUriNumber(number1) || PhoneNumberHelper.isUriNumber(number2)) {
@@ -247,6 +429,76 @@ public class CallLogGroupBuilder {
         && groupCallType == AppCompatConstants.CALLS_BLOCKED_TYPE;
   }
 
+  /** The values of a call which decide whether it is grouped with another call. */
+  private static final class Row {
+    long id;
+    int numberKey;
+    String postDialDigits;
+    String viaNumber;
+    int callType;
+    String accountComponentName;
+    String accountId;
+    long date;
+
+    boolean canGroupWith(Row other) {
+      // Never group voicemails. Only group blocked calls with other blocked calls.
+      return numberKey != NO_NUMBER_KEY
+          && numberKey == other.numberKey
+          && Objects.equals(postDialDigits, other.postDialDigits)
+          && Objects.equals(viaNumber, other.viaNumber)
+          && TextUtils.equals(accountComponentName, other.accountComponentName)
+          && TextUtils.equals(accountId, other.accountId)
+          && callType != AppCompatConstants.CALLS_VOICEMAIL_TYPE
+          && other.callType != AppCompatConstants.CALLS_VOICEMAIL_TYPE
+          && (callType == AppCompatConstants.CALLS_BLOCKED_TYPE)
+              == (other.callType == AppCompatConstants.CALLS_BLOCKED_TYPE);
+    }
+
+    /** Whether {@code other} is the same call, with the same values. */
+    boolean isSameCall(Row other) {
+      return id == other.id
+          && numberKey == other.numberKey
+          && Objects.equals(postDialDigits, other.postDialDigits)
+          && Objects.equals(viaNumber, other.viaNumber)
+          && callType == other.callType
+          && TextUtils.equals(accountComponentName, other.accountComponentName)
+          && TextUtils.equals(accountId, other.accountId)
+          && date == other.date;
+    }
+  }
+
+  /** Groups of the calls of a cursor, and the values needed to update them incrementally. */
+  private static final class Groups {
+    /** The values of each call, in cursor order. */
+    final Row[] rows;
+    /** The cursor position of the first call, the size and the date of the first call by group. */
+    int[] starts;
+    int[] sizes;
+    long[] dates;
+    int count;
+
+    Groups(Row[] rows) {
+      this.rows = rows;
+      int capacity = Math.max(1, rows.length / 2);
+      starts = new int[capacity];
+      sizes = new int[capacity];
+      dates = new long[capacity];
+    }
+
+    void add(int start, int size, long date) {
+      if (count == starts.length) {
+        int capacity = count * 2;
+        starts = Arrays.copyOf(starts, capacity);
+        sizes = Arrays.copyOf(sizes, capacity);
+        dates = Arrays.copyOf(dates, capacity);
+      }
+      starts[count] = start;
+      sizes[count] = size;
+      dates[count] = date;
+      count++;
+    }
+  }
+
   public interface GroupCreator {
 
     /**
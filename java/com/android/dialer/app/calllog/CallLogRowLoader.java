@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.dialer.app.calllog;
+
+import android.os.SystemClock;
+import android.support.annotation.MainThread;
+import android.support.annotation.WorkerThread;
+import android.util.ArraySet;
+import android.util.LongSparseArray;
+import android.view.Choreographer;
+import com.android.dialer.common.Assert;
+import com.android.dialer.common.LogUtil;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * Loads the data of the rows of the call log on a fixed pool of worker threads, and delivers the
+ * loaded rows on the main thread in batches, once per frame.
+ *
+ * <p>There is at most one load per row ID: a newer load of a row replaces the pending one, and the
+ * load of a view holder is cancelled once it is recycled or bound to another row. Rows ahead of the
+ * scroll can be prefetched. Prefetches wait in a queue of their own and only start while the pool
+ * is idle, so they never delay the loads of bound rows, and the pending ones are dropped once
+ * another row is bound.
+ */
+@MainThread
+final class CallLogRowLoader {
+
+  private static final int THREAD_COUNT = 2;
+
+  private static final ThreadPoolExecutor executor =
+      (ThreadPoolExecutor)
+          Executors.newFixedThreadPool(
+              THREAD_COUNT,
+              new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                  LogUtil.i("CallLogRowLoader.newThread", "creating row loader thread");
+                  Thread thread = new Thread(runnable, "CallLogRowLoader");
+                  thread.setPriority(4); // Corresponds to Process.THREAD_PRIORITY_BACKGROUND
+                  return thread;
+                }
+              });
+
+  /** A load of the data of a row. */
+  abstract static class Load {
+    final long rowId;
+    final long bindTimeMillis = SystemClock.elapsedRealtime();
+
+    private CallLogListItemViewHolder views;
+    private Future<?> future;
+    private volatile boolean cancelled;
+    private boolean success;
+
+    Load(long rowId) {
+      this.rowId = rowId;
+    }
+
+    /** Loads the data of the row. Should stop early and return false if {@link #isCancelled()}. */
+    @WorkerThread
+    abstract boolean doInBackground();
+
+    /** Called with the result of {@link #doInBackground()}, unless the load was cancelled. */
+    @MainThread
+    abstract void onLoaded(boolean success);
+
+    boolean isCancelled() {
+      return cancelled;
+    }
+
+    private void cancel() {
+      cancelled = true;
+      if (future != null) {
+        future.cancel(true);
+      }
+    }
+  }
+
+  private final Choreographer choreographer = Choreographer.getInstance();
+
+  /** Pending loads by row ID. */
+  private final LongSparseArray<Load> loadsByRowId = new LongSparseArray<>();
+
+  /** Row IDs which were prefetched since the last {@link #clearPrefetchedRows()}. */
+  private final ArraySet<Long> prefetchedRowIds = new ArraySet<>();
+
+  /** Prefetches waiting for the pool to be idle, in the order they were requested. */
+  private final ArrayDeque<Prefetch> pendingPrefetches = new ArrayDeque<>();
+
+  private static final class Prefetch {
+    final long rowId;
+    final Runnable runnable;
+
+    Prefetch(long rowId, Runnable runnable) {
+      this.rowId = rowId;
+      this.runnable = runnable;
+    }
+  }
+
+  private final Choreographer.FrameCallback startPrefetch =
+      new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+          maybeStartPrefetch();
+        }
+      };
+
+  /** Loads which are done, and not delivered yet. Guarded by itself. */
+  private final List<Load> loadedLoads = new ArrayList<>();
+
+  /** Whether {@link #deliverLoads} is posted. Guarded by {@link #loadedLoads}. */
+  private boolean isDeliveryPosted;
+
+  private final Choreographer.FrameCallback deliverLoads =
+      new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+          List<Load> loads;
+          synchronized (loadedLoads) {
+            loads = new ArrayList<>(loadedLoads);
+            loadedLoads.clear();
+            isDeliveryPosted = false;
+          }
+          for (Load load : loads) {
+            if (load.cancelled || loadsByRowId.get(load.rowId) != load) {
+              continue;
+            }
+            loadsByRowId.remove(load.rowId);
+            load.views.rowLoad = null;
+            load.onLoaded(load.success);
+          }
+          maybeStartPrefetch();
+        }
+      };
+
+  /**
+   * Loads the row bound to {@code views}, replacing any pending load of the same row or of the
+   * view holder.
+   */
+  void load(CallLogListItemViewHolder views, Load load) {
+    Assert.isMainThread();
+    // The rows to prefetch are requested again relative to the newly bound row.
+    pendingPrefetches.clear();
+    cancel(views);
+    Load previous = loadsByRowId.get(load.rowId);
+    if (previous != null) {
+      previous.cancel();
+      if (previous.views.rowLoad == previous) {
+        previous.views.rowLoad = null;
+      }
+    }
+    load.views = views;
+    views.rowLoad = load;
+    loadsByRowId.put(load.rowId, load);
+    load.future =
+        executor.submit(
+            () -> {
+              if (load.cancelled) {
+                return;
+              }
+              load.success = load.doInBackground();
+              if (load.cancelled) {
+                return;
+              }
+              synchronized (loadedLoads) {
+                loadedLoads.add(load);
+                if (!isDeliveryPosted) {
+                  isDeliveryPosted = true;
+                  choreographer.postFrameCallback(deliverLoads);
+                }
+              }
+            });
+  }
+
+  /** Cancels the pending load of {@code views}, for example because it was recycled. */
+  void cancel(CallLogListItemViewHolder views) {
+    Assert.isMainThread();
+    Load load = views.rowLoad;
+    if (load == null) {
+      return;
+    }
+    load.cancel();
+    views.rowLoad = null;
+    if (loadsByRowId.get(load.rowId) == load) {
+      loadsByRowId.remove(load.rowId);
+    }
+  }
+
+  /**
+   * Runs {@code prefetch} for the row once the pool is idle, unless it was prefetched already or
+   * the row is being loaded. Pending prefetches are dropped by the next {@link #load}.
+   */
+  void prefetch(long rowId, Runnable prefetch) {
+    Assert.isMainThread();
+    if (prefetchedRowIds.contains(rowId) || loadsByRowId.get(rowId) != null) {
+      return;
+    }
+    for (Prefetch pending : pendingPrefetches) {
+      if (pending.rowId == rowId) {
+        return;
+      }
+    }
+    pendingPrefetches.add(new Prefetch(rowId, prefetch));
+    maybeStartPrefetch();
+  }
+
+  /**
+   * Starts the next pending prefetch if no thread of the pool is running or waiting for work.
+   * Prefetches can't be cancelled, so one only starts when it can't delay a load.
+   */
+  private void maybeStartPrefetch() {
+    if (pendingPrefetches.isEmpty()
+        || executor.getActiveCount() > 0
+        || !executor.getQueue().isEmpty()) {
+      return;
+    }
+    Prefetch prefetch = pendingPrefetches.poll();
+    prefetchedRowIds.add(prefetch.rowId);
+    executor.execute(
+        () -> {
+          prefetch.runnable.run();
+          choreographer.postFrameCallback(startPrefetch);
+        });
+  }
+
+  /** Forgets which rows were prefetched, for example because the call log changed. */
+  void clearPrefetchedRows() {
+    Assert.isMainThread();
+    prefetchedRowIds.clear();
+    pendingPrefetches.clear();
+  }
+
+  /** Cancels all pending loads. */
+  void cancelAll() {
+    Assert.isMainThread();
+    pendingPrefetches.clear();
+    for (int i = 0; i < loadsByRowId.size(); i++) {
+      Load load = loadsByRowId.valueAt(i);
+      load.cancel();
+      if (load.views.rowLoad == load) {
+        load.views.rowLoad = null;
+      }
+    }
+    loadsByRowId.clear();
+  }
+}
@@ -20,6 +20,8 @@ import android.content.AsyncTaskLoader;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.MatrixCursor;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
 import com.android.contacts.common.list.PhoneNumberListAdapter.PhoneQuery;
 import com.android.dialer.common.LogUtil;
 import com.android.dialer.database.Database;
@@ -45,6 +47,9 @@ public class SmartDialCursorLoader extends AsyncTaskLoader<Cursor> {
 
   private boolean mShowEmptyListForNullQuery = true;
 
+  /** Signal for the load in progress, guarded by this. */
+  private CancellationSignal mCancellationSignal;
+
   public SmartDialCursorLoader(Context context) {
     super(context);
     mContext = context;
@@ -64,6 +69,7 @@ public class SmartDialCursorLoader extends AsyncTaskLoader<Cursor> {
     /** Constructs a name matcher object for matching names. */
     mNameMatcher = new SmartDialNameMatcher(mQuery, SmartDialPrefix.getMap(), mContext);
     mNameMatcher.setShouldMatchEmptyQuery(!mShowEmptyListForNullQuery);
+    mNameMatcher.setAllocationFree(true);
   }
 
   /**
@@ -81,11 +87,25 @@ public class SmartDialCursorLoader extends AsyncTaskLoader<Cursor> {
       return new MatrixCursor(PhoneQuery.PROJECTION_PRIMARY);
     }
 
+    final CancellationSignal cancellationSignal = new CancellationSignal();
+    synchronized (this) {
+      if (isLoadInBackgroundCanceled()) {
+        throw new OperationCanceledException();
+      }
+      mCancellationSignal = cancellationSignal;
+    }
+
     /** Loads results from the database helper. */
     final DialerDatabaseHelper dialerDatabaseHelper =
         Database.get(mContext).getDatabaseHelper(mContext);
-    final ArrayList<ContactNumber> allMatches =
-        dialerDatabaseHelper.getLooseMatches(mQuery, mNameMatcher);
+    final ArrayList<ContactNumber> allMatches;
+    try {
+      allMatches = dialerDatabaseHelper.getLooseMatches(mQuery, mNameMatcher, cancellationSignal);
+    } finally {
+      synchronized (this) {
+        mCancellationSignal = null;
+      }
+    }
 
     if (DEBUG) {
       LogUtil.v(TAG, "Loaded matches " + allMatches.size());
@@ -107,6 +127,18 @@ public class SmartDialCursorLoader extends AsyncTaskLoader<Cursor> {
     return cursor;
   }
 
+  @Override
+  public void cancelLoadInBackground() {
+    super.cancelLoadInBackground();
+
+    /** Stops a stale search so that the load for the latest query can start right away. */
+    synchronized (this) {
+      if (mCancellationSignal != null) {
+        mCancellationSignal.cancel();
+      }
+    }
+  }
+
   @Override
   public void deliverResult(Cursor cursor) {
     if (isReset()) {
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.dialer.blocking;
+
+import android.os.SystemClock;
+import android.support.annotation.AnyThread;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+import android.telephony.PhoneNumberUtils;
+import android.text.TextUtils;
+import android.util.LruCache;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cache of the results of the blocked number checks of {@link FilteredNumberAsyncQueryHandler},
+ * shared by all its instances.
+ *
+ * <p>Entries are keyed on the E164 representation of the number when it has one, so that the
+ * different ways of writing a number share an entry. The least recently used entries are evicted
+ * once {@link #MAX_ENTRIES} is reached. Numbers which are not blocked are only cached for {@link
+ * #NOT_BLOCKED_TTL_MILLIS}, as they may be blocked outside of the dialer.
+ */
+@AnyThread
+final class BlockedNumberCache {
+
+  @VisibleForTesting static final int MAX_ENTRIES = 500;
+
+  @VisibleForTesting static final long NOT_BLOCKED_TTL_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+  private final LruCache<String, Entry> entries = new LruCache<>(MAX_ENTRIES);
+
+  /** Incremented whenever entries are invalidated. Guarded by this. */
+  private long generation;
+
+  /** The result of a lookup in the cache. */
+  static final class Entry {
+    /** The ID of the blocked number, or null if the number isn't blocked. */
+    @Nullable final Integer blockedId;
+
+    final long expirationMillis;
+
+    private Entry(@Nullable Integer blockedId, long expirationMillis) {
+      this.blockedId = blockedId;
+      this.expirationMillis = expirationMillis;
+    }
+  }
+
+  /** Returns the cached result of the check of the number, or null if there is none. */
+  @Nullable
+  Entry get(String number, @Nullable String countryIso) {
+    String key = getKey(number, countryIso);
+    Entry entry = entries.get(key);
+    if (entry == null) {
+      return null;
+    }
+    if (entry.expirationMillis < SystemClock.elapsedRealtime()) {
+      entries.remove(key);
+      return null;
+    }
+    return entry;
+  }
+
+  /**
+   * Returns the current generation of the cache, which must be passed to {@link #put(String,
+   * String, Integer, long)} after a check. Taking it before the check starts ensures that results
+   * read before the number was blocked or unblocked are not cached.
+   */
+  synchronized long getGeneration() {
+    return generation;
+  }
+
+  /**
+   * Caches the result of checking the number, unless the cache was invalidated since {@code
+   * generation} was obtained.
+   *
+   * @param blockedId the ID of the blocked number, or null if the number isn't blocked.
+   */
+  void put(
+      String number, @Nullable String countryIso, @Nullable Integer blockedId, long generation) {
+    String key = getKey(number, countryIso);
+    long expirationMillis =
+        blockedId == null
+            ? SystemClock.elapsedRealtime() + NOT_BLOCKED_TTL_MILLIS
+            : Long.MAX_VALUE;
+    Entry entry = new Entry(blockedId, expirationMillis);
+    synchronized (this) {
+      if (generation != this.generation) {
+        return;
+      }
+      entries.put(key, entry);
+    }
+  }
+
+  /**
+   * Removes the entries of the number, because it was blocked or unblocked.
+   *
+   * @param e164Number the E164 representation of the number if known, which is preferred over
+   *     formatting {@code number} with {@code countryIso}.
+   */
+  void invalidate(
+      @Nullable String number, @Nullable String e164Number, @Nullable String countryIso) {
+    synchronized (this) {
+      generation++;
+      if (!TextUtils.isEmpty(e164Number)) {
+        entries.remove(e164Number);
+      }
+      if (!TextUtils.isEmpty(number)) {
+        entries.remove(getKey(number, countryIso));
+        entries.remove(number);
+      }
+    }
+  }
+
+  /** Removes all entries. */
+  void clear() {
+    synchronized (this) {
+      generation++;
+      entries.evictAll();
+    }
+  }
+
+  private static String getKey(String number, @Nullable String countryIso) {
+    String e164 =
+        TextUtils.isEmpty(countryIso) && !number.startsWith("+")
+            ? null
+            : PhoneNumberUtils.formatNumberToE164(number, countryIso);
+    return e164 != null ? e164 : number;
+  }
+}
@@ -34,17 +34,13 @@ import com.android.dialer.common.Assert;
 import com.android.dialer.common.LogUtil;
 import com.android.dialer.database.FilteredNumberContract.FilteredNumberColumns;
 import com.android.dialer.database.FilteredNumberContract.FilteredNumberTypes;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import com.android.dialer.location.GeoUtil;
 
 public class FilteredNumberAsyncQueryHandler extends AsyncQueryHandler {
 
   public static final int INVALID_ID = -1;
-  // Id used to replace null for blocked id since ConcurrentHashMap doesn't allow null key/value.
-  @VisibleForTesting static final int BLOCKED_NUMBER_CACHE_NULL_ID = -1;
 
-  @VisibleForTesting
-  static final Map<String, Integer> blockedNumberCache = new ConcurrentHashMap<>();
+  @VisibleForTesting static final BlockedNumberCache blockedNumberCache = new BlockedNumberCache();
 
   private static final int NO_TOKEN = 0;
   private final Context context;
@@ -125,15 +121,12 @@ public class FilteredNumberAsyncQueryHandler extends AsyncQueryHandler {
       listener.onCheckComplete(null);
       return;
     }
-    Integer cachedId = blockedNumberCache.get(number);
-    if (cachedId != null) {
+    BlockedNumberCache.Entry cachedEntry = blockedNumberCache.get(number, countryIso);
+    if (cachedEntry != null) {
       if (listener == null) {
         return;
       }
-      if (cachedId == BLOCKED_NUMBER_CACHE_NULL_ID) {
-        cachedId = null;
-      }
-      listener.onCheckComplete(cachedId);
+      listener.onCheckComplete(cachedEntry.blockedId);
       return;
     }
 
@@ -145,11 +138,12 @@ public class FilteredNumberAsyncQueryHandler extends AsyncQueryHandler {
       return;
     }
 
+    final long generation = blockedNumberCache.getGeneration();
     String e164Number = PhoneNumberUtils.formatNumberToE164(number, countryIso);
     String formattedNumber = FilteredNumbersUtil.getBlockableNumber(context, e164Number, number);
     if (TextUtils.isEmpty(formattedNumber)) {
       listener.onCheckComplete(INVALID_ID);
-      blockedNumberCache.put(number, INVALID_ID);
+      blockedNumberCache.put(number, countryIso, null, generation);
       return;
     }
 
@@ -165,7 +159,7 @@ public class FilteredNumberAsyncQueryHandler extends AsyncQueryHandler {
              * and will be returned by this query.
              */
             if (cursor == null || cursor.getCount() == 0) {
-              blockedNumberCache.put(number, BLOCKED_NUMBER_CACHE_NULL_ID);
+              blockedNumberCache.put(number, countryIso, null, generation);
               listener.onCheckComplete(null);
               return;
             }
@@ -174,12 +168,12 @@ public class FilteredNumberAsyncQueryHandler extends AsyncQueryHandler {
             if (!FilteredNumberCompat.useNewFiltering(context)
                 && cursor.getInt(cursor.getColumnIndex(FilteredNumberColumns.TYPE))
                     != FilteredNumberTypes.BLOCKED_NUMBER) {
-              blockedNumberCache.put(number, BLOCKED_NUMBER_CACHE_NULL_ID);
+              blockedNumberCache.put(number, countryIso, null, generation);
               listener.onCheckComplete(null);
               return;
             }
             Integer blockedId = cursor.getInt(cursor.getColumnIndex(FilteredNumberColumns._ID));
-            blockedNumberCache.put(number, blockedId);
+            blockedNumberCache.put(number, countryIso, blockedId, generation);
             listener.onCheckComplete(blockedId);
           }
         },
@@ -209,14 +203,12 @@ public class FilteredNumberAsyncQueryHandler extends AsyncQueryHandler {
     if (!FilteredNumberCompat.canAttemptBlockOperations(context)) {
       return null;
     }
-    Integer cachedId = blockedNumberCache.get(number);
-    if (cachedId != null) {
-      if (cachedId == BLOCKED_NUMBER_CACHE_NULL_ID) {
-        cachedId = null;
-      }
-      return cachedId;
+    BlockedNumberCache.Entry cachedEntry = blockedNumberCache.get(number, countryIso);
+    if (cachedEntry != null) {
+      return cachedEntry.blockedId;
     }
 
+    long generation = blockedNumberCache.getGeneration();
     String e164Number = PhoneNumberUtils.formatNumberToE164(number, countryIso);
     String formattedNumber = FilteredNumbersUtil.getBlockableNumber(context, e164Number, number);
     if (TextUtils.isEmpty(formattedNumber)) {
@@ -243,12 +235,12 @@ public class FilteredNumberAsyncQueryHandler extends AsyncQueryHandler {
        * and will be returned by this query.
        */
       if (cursor == null || cursor.getCount() == 0) {
-        blockedNumberCache.put(number, BLOCKED_NUMBER_CACHE_NULL_ID);
+        blockedNumberCache.put(number, countryIso, null, generation);
         return null;
       }
       cursor.moveToFirst();
       int blockedId = cursor.getInt(cursor.getColumnIndex(FilteredNumberColumns._ID));
-      blockedNumberCache.put(number, blockedId);
+      blockedNumberCache.put(number, countryIso, blockedId, generation);
       return blockedId;
     } catch (SecurityException e) {
       LogUtil.e("FilteredNumberAsyncQueryHandler.getBlockedIdSynchronous", null, e);
@@ -256,11 +248,77 @@ public class FilteredNumberAsyncQueryHandler extends AsyncQueryHandler {
     }
   }
 
-  @VisibleForTesting
   public void clearCache() {
     blockedNumberCache.clear();
   }
 
+  /**
+   * Caches the IDs of all blocked numbers, so that checking the numbers of incoming calls doesn't
+   * need to query the database.
+   */
+  public void preloadBlockedNumbers() {
+    if (!FilteredNumberCompat.canAttemptBlockOperations(context)
+        || !UserManagerCompat.isUserUnlocked(context)) {
+      return;
+    }
+    final long generation = blockedNumberCache.getGeneration();
+    startQuery(
+        NO_TOKEN,
+        new Listener() {
+          @Override
+          protected void onQueryComplete(int token, Object cookie, Cursor cursor) {
+            if (cursor == null) {
+              return;
+            }
+            int idIndex = cursor.getColumnIndex(FilteredNumberCompat.getIdColumnName(context));
+            int numberIndex =
+                cursor.getColumnIndex(FilteredNumberCompat.getOriginalNumberColumnName(context));
+            int e164Index =
+                cursor.getColumnIndex(FilteredNumberCompat.getE164NumberColumnName(context));
+            int countryIsoIndex =
+                FilteredNumberCompat.useNewFiltering(context)
+                    ? -1
+                    : cursor.getColumnIndex(FilteredNumberCompat.getCountryIsoColumnName(context));
+            while (cursor.moveToNext()) {
+              String e164Number = cursor.getString(e164Index);
+              String number =
+                  TextUtils.isEmpty(e164Number) ? cursor.getString(numberIndex) : e164Number;
+              if (TextUtils.isEmpty(number)) {
+                continue;
+              }
+              String countryIso = countryIsoIndex == -1 ? null : cursor.getString(countryIsoIndex);
+              blockedNumberCache.put(number, countryIso, cursor.getInt(idIndex), generation);
+            }
+            LogUtil.i(
+                "FilteredNumberAsyncQueryHandler.preloadBlockedNumbers",
+                "cached " + cursor.getCount() + " blocked numbers");
+          }
+        },
+        FilteredNumberCompat.getContentUri(context, null),
+        FilteredNumberCompat.filter(
+            new String[] {
+              FilteredNumberCompat.getIdColumnName(context),
+              FilteredNumberCompat.getOriginalNumberColumnName(context),
+              FilteredNumberCompat.getE164NumberColumnName(context),
+              FilteredNumberCompat.getCountryIsoColumnName(context)
+            }),
+        FilteredNumberCompat.useNewFiltering(context)
+            ? null
+            : FilteredNumberColumns.TYPE + "=" + FilteredNumberTypes.BLOCKED_NUMBER,
+        null,
+        null);
+  }
+
+  /** Removes the cached check of the number of a blocked number row. */
+  private void invalidateCache(ContentValues values) {
+    blockedNumberCache.invalidate(
+        values.getAsString(FilteredNumberCompat.getOriginalNumberColumnName(context)),
+        values.getAsString(FilteredNumberCompat.getE164NumberColumnName(context)),
+        FilteredNumberCompat.useNewFiltering(context)
+            ? GeoUtil.getCurrentCountryIso(context)
+            : values.getAsString(FilteredNumberCompat.getCountryIsoColumnName(context)));
+  }
+
   /*
    * TODO: b/27779827, non-e164 numbers can be blocked in the new form of blocking. As a
    * temporary workaround, determine which column of the database to query based on whether the
@@ -294,8 +352,8 @@ public class FilteredNumberAsyncQueryHandler extends AsyncQueryHandler {
    * Block a number with specified ContentValues. Can be manually added or a restored row from
    * performing the 'undo' action after unblocking.
    */
-  public void blockNumber(final OnBlockNumberListener listener, ContentValues values) {
-    blockedNumberCache.clear();
+  public void blockNumber(final OnBlockNumberListener listener, final ContentValues values) {
+    invalidateCache(values);
     if (!FilteredNumberCompat.canAttemptBlockOperations(context)) {
       listener.onBlockComplete(null);
       return;
@@ -305,6 +363,8 @@ public class FilteredNumberAsyncQueryHandler extends AsyncQueryHandler {
         new Listener() {
           @Override
           public void onInsertComplete(int token, Object cookie, Uri uri) {
+            // Drop negative results of checks which raced with the insert.
+            invalidateCache(values);
             if (listener != null) {
               listener.onBlockComplete(uri);
             }
@@ -336,7 +396,6 @@ public class FilteredNumberAsyncQueryHandler extends AsyncQueryHandler {
    * @param uri The uri of row to remove, from {@link FilteredNumberAsyncQueryHandler#blockNumber}.
    */
   public void unblock(@Nullable final OnUnblockNumberListener listener, final Uri uri) {
-    blockedNumberCache.clear();
     if (!FilteredNumberCompat.canAttemptBlockOperations(context)) {
       if (listener != null) {
         listener.onUnblockComplete(0, null);
@@ -357,12 +416,14 @@ public class FilteredNumberAsyncQueryHandler extends AsyncQueryHandler {
             final ContentValues values = new ContentValues();
             DatabaseUtils.cursorRowToContentValues(cursor, values);
             values.remove(FilteredNumberCompat.getIdColumnName(context));
+            invalidateCache(values);
 
             startDelete(
                 NO_TOKEN,
                 new Listener() {
                   @Override
                   public void onDeleteComplete(int token, Object cookie, int result) {
+                    invalidateCache(values);
                     if (listener != null) {
                       listener.onUnblockComplete(result, values);
                     }
@@ -24,6 +24,7 @@ import android.os.Build;
 import android.os.RemoteException;
 import android.preference.PreferenceManager;
 import android.support.annotation.WorkerThread;
+import android.util.ArrayMap;
 import com.android.dialer.calllog.database.CallLogDatabaseComponent;
 import com.android.dialer.calllog.datasources.CallLogDataSource;
 import com.android.dialer.calllog.datasources.CallLogMutations;
@@ -32,6 +33,17 @@ import com.android.dialer.common.Assert;
 import com.android.dialer.common.LogUtil;
 import com.android.dialer.common.concurrent.DialerExecutor.Worker;
 import com.android.dialer.inject.ApplicationContext;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import javax.inject.Inject;
 
 /**
@@ -41,9 +53,26 @@ import javax.inject.Inject;
  */
 public class RefreshAnnotatedCallLogWorker implements Worker<Boolean, Void> {
 
+  /** Runs the isDirty checks and fills of data sources which don't depend on each other. */
+  private static final ExecutorService DATA_SOURCE_EXECUTOR =
+      Executors.newFixedThreadPool(
+          3,
+          new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+              LogUtil.i("RefreshAnnotatedCallLogWorker.newThread", "creating data source thread");
+              Thread thread = new Thread(runnable, "RefreshAnnotatedCallLog-DataSource");
+              thread.setPriority(4); // Corresponds to Process.THREAD_PRIORITY_BACKGROUND
+              return thread;
+            }
+          });
+
   private final Context appContext;
   private final DataSources dataSources;
 
+  /** Guarded by this. */
+  private Map<String, Long> lastFillTimesMillis = new ArrayMap<>();
+
   @Inject
   RefreshAnnotatedCallLogWorker(@ApplicationContext Context appContext, DataSources dataSources) {
     this.appContext = appContext;
@@ -98,26 +127,52 @@ public class RefreshAnnotatedCallLogWorker implements Worker<Boolean, Void> {
     }
   }
 
+  /** Runs {@link CallLogDataSource#isDirty(Context)} for all data sources concurrently. */
   @WorkerThread
   private boolean isDirty(Context appContext) {
     Assert.isWorkerThread();
 
-    for (CallLogDataSource dataSource : dataSources.getDataSourcesIncludingSystemCallLog()) {
-      String dataSourceName = getName(dataSource);
-      long startTime = System.currentTimeMillis();
-      LogUtil.i("RefreshAnnotatedCallLogWorker.isDirty", "running isDirty for %s", dataSourceName);
-      boolean isDirty = dataSource.isDirty(appContext);
-      LogUtil.i(
-          "RefreshAnnotatedCallLogWorker.isDirty",
-          "%s.isDirty returned %b in %dms",
-          dataSourceName,
-          isDirty,
-          System.currentTimeMillis() - startTime);
-      if (isDirty) {
-        return true;
+    List<CallLogDataSource> allDataSources = dataSources.getDataSourcesIncludingSystemCallLog();
+    CompletionService<Boolean> completionService =
+        new ExecutorCompletionService<>(DATA_SOURCE_EXECUTOR);
+    List<Future<Boolean>> futures = new ArrayList<>();
+    for (CallLogDataSource dataSource : allDataSources) {
+      futures.add(
+          completionService.submit(
+              () -> {
+                String dataSourceName = getName(dataSource);
+                long startTime = System.currentTimeMillis();
+                LogUtil.i(
+                    "RefreshAnnotatedCallLogWorker.isDirty",
+                    "running isDirty for %s",
+                    dataSourceName);
+                boolean isDirty = dataSource.isDirty(appContext);
+                LogUtil.i(
+                    "RefreshAnnotatedCallLogWorker.isDirty",
+                    "%s.isDirty returned %b in %dms",
+                    dataSourceName,
+                    isDirty,
+                    System.currentTimeMillis() - startTime);
+                return isDirty;
+              }));
+    }
+
+    try {
+      for (int i = 0; i < futures.size(); i++) {
+        if (await(completionService.take())) {
+          return true;
+        }
+      }
+      return false;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException(e);
+    } finally {
+      // Data sources that have not answered yet don't matter once one of them is dirty.
+      for (Future<Boolean> future : futures) {
+        future.cancel(false);
       }
     }
-    return false;
   }
 
   @TargetApi(Build.VERSION_CODES.M) // Uses try-with-resources
@@ -126,6 +181,7 @@ public class RefreshAnnotatedCallLogWorker implements Worker<Boolean, Void> {
     Assert.isWorkerThread();
 
     CallLogMutations mutations = new CallLogMutations();
+    ArrayMap<String, Long> fillTimesMillis = new ArrayMap<>();
 
     // System call log data source must go first!
     CallLogDataSource systemCallLogDataSource = dataSources.getSystemCallLogDataSource();
@@ -133,23 +189,57 @@ public class RefreshAnnotatedCallLogWorker implements Worker<Boolean, Void> {
     LogUtil.i("RefreshAnnotatedCallLogWorker.rebuild", "filling %s", dataSourceName);
     long startTime = System.currentTimeMillis();
     systemCallLogDataSource.fill(appContext, mutations);
+    fillTimesMillis.put(dataSourceName, System.currentTimeMillis() - startTime);
     LogUtil.i(
         "RefreshAnnotatedCallLogWorker.rebuild",
         "%s.fill took: %dms",
         dataSourceName,
-        System.currentTimeMillis() - startTime);
+        fillTimesMillis.get(dataSourceName));
 
-    for (CallLogDataSource dataSource : dataSources.getDataSourcesExcludingSystemCallLog()) {
-      dataSourceName = getName(dataSource);
-      LogUtil.i("RefreshAnnotatedCallLogWorker.rebuild", "filling %s", dataSourceName);
-      startTime = System.currentTimeMillis();
-      dataSource.fill(appContext, mutations);
-      LogUtil.i(
-          "CallLogFramework.rebuild",
-          "%s.fill took: %dms",
-          dataSourceName,
-          System.currentTimeMillis() - startTime);
+    // The other data sources only depend on the system call log, so each of them fills its own
+    // copy of the mutations concurrently. The copies are merged back in data source order so that
+    // the result does not depend on which data source finishes first.
+    CallLogMutations systemCallLogMutations = mutations.copy();
+    List<CallLogDataSource> otherDataSources = dataSources.getDataSourcesExcludingSystemCallLog();
+    List<Future<CallLogMutations>> futures = new ArrayList<>();
+    for (CallLogDataSource dataSource : otherDataSources) {
+      CallLogMutations dataSourceMutations = systemCallLogMutations.copy();
+      futures.add(
+          DATA_SOURCE_EXECUTOR.submit(
+              () -> {
+                String name = getName(dataSource);
+                LogUtil.i("RefreshAnnotatedCallLogWorker.rebuild", "filling %s", name);
+                long fillStartTime = System.currentTimeMillis();
+                dataSource.fill(appContext, dataSourceMutations);
+                long fillTime = System.currentTimeMillis() - fillStartTime;
+                synchronized (fillTimesMillis) {
+                  fillTimesMillis.put(name, fillTime);
+                }
+                LogUtil.i(
+                    "RefreshAnnotatedCallLogWorker.rebuild", "%s.fill took: %dms", name, fillTime);
+                return dataSourceMutations;
+              }));
     }
+    try {
+      for (Future<CallLogMutations> future : futures) {
+        mutations.mergeChanges(systemCallLogMutations, await(future));
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException(e);
+    } finally {
+      for (Future<CallLogMutations> future : futures) {
+        future.cancel(false);
+      }
+    }
+
+    synchronized (fillTimesMillis) {
+      LogUtil.i("RefreshAnnotatedCallLogWorker.rebuild", "fill times: %s", fillTimesMillis);
+      synchronized (this) {
+        lastFillTimesMillis = new ArrayMap<>(fillTimesMillis);
+      }
+    }
+
     LogUtil.i("RefreshAnnotatedCallLogWorker.rebuild", "applying mutations to database");
     startTime = System.currentTimeMillis();
     CallLogDatabaseComponent.get(appContext)
@@ -176,7 +266,33 @@ public class RefreshAnnotatedCallLogWorker implements Worker<Boolean, Void> {
     sharedPreferences.edit().putBoolean(CallLogFramework.PREF_FORCE_REBUILD, false).apply();
   }
 
+  /**
+   * Returns how long each data source took to fill its mutations during the last rebuild, keyed by
+   * data source name.
+   */
+  public Map<String, Long> getLastFillTimesMillis() {
+    synchronized (this) {
+      return Collections.unmodifiableMap(lastFillTimesMillis);
+    }
+  }
+
   private static String getName(CallLogDataSource dataSource) {
     return dataSource.getClass().getSimpleName();
   }
+
+  /** Waits for a data source task, rethrowing anything the data source threw. */
+  private static <T> T await(Future<T> future) throws InterruptedException {
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IllegalStateException(cause);
+    }
+  }
 }
@@ -31,12 +31,17 @@ import android.net.Uri;
 import android.os.Build;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+import android.util.ArraySet;
 import com.android.dialer.calllog.database.contract.AnnotatedCallLogContract;
 import com.android.dialer.calllog.database.contract.AnnotatedCallLogContract.AnnotatedCallLog;
 import com.android.dialer.calllog.database.contract.AnnotatedCallLogContract.CoalescedAnnotatedCallLog;
+import com.android.dialer.calllog.datasources.CallLogMutations;
 import com.android.dialer.common.Assert;
 import com.android.dialer.common.LogUtil;
+import com.android.dialer.configprovider.ConfigProviderBindings;
 import java.util.ArrayList;
+import java.util.List;
 
 /** {@link ContentProvider} for the annotated call log. */
 public class AnnotatedCallLogContentProvider extends ContentProvider {
@@ -68,10 +73,13 @@ public class AnnotatedCallLogContentProvider extends ContentProvider {
   }
 
   private AnnotatedCallLogDatabaseHelper databaseHelper;
-  private Coalescer coalescer;
+  private IncrementalCoalescer incrementalCoalescer;
 
   private final ThreadLocal<Boolean> applyingBatch = new ThreadLocal<>();
 
+  /** IDs of the rows changed by the batch being applied on this thread. */
+  private final ThreadLocal<ArraySet<Long>> changedRowIdsInBatch = new ThreadLocal<>();
+
   /** Ensures that only a single notification is generated from {@link #applyBatch(ArrayList)}. */
   private boolean isApplyingBatch() {
     return applyingBatch.get() != null && applyingBatch.get();
@@ -80,11 +88,11 @@ public class AnnotatedCallLogContentProvider extends ContentProvider {
   @Override
   public boolean onCreate() {
     databaseHelper = new AnnotatedCallLogDatabaseHelper(getContext(), MAX_ROWS);
-    coalescer = CallLogDatabaseComponent.get(getContext()).coalescer();
+    incrementalCoalescer =
+        new IncrementalCoalescer(CallLogDatabaseComponent.get(getContext()).coalescer());
     return true;
   }
 
-  @TargetApi(Build.VERSION_CODES.M) // Uses try-with-resources
   @Nullable
   @Override
   public Cursor query(
@@ -117,14 +125,14 @@ public class AnnotatedCallLogContentProvider extends ContentProvider {
         Assert.checkArgument(
             selectionArgs == null, "selection args not supported for coalesced call log");
         Assert.checkArgument(sortOrder == null, "sort order not supported for coalesced call log");
-        try (Cursor allAnnotatedCallLogRows =
-            queryBuilder.query(
-                db, null, null, null, null, null, AnnotatedCallLog.TIMESTAMP + " DESC")) {
-          Cursor coalescedRows = coalescer.coalesce(allAnnotatedCallLogRows);
-          coalescedRows.setNotificationUri(
-              getContext().getContentResolver(), CoalescedAnnotatedCallLog.CONTENT_URI);
-          return coalescedRows;
-        }
+        Cursor coalescedRows =
+            incrementalCoalescer.query(
+                db,
+                ConfigProviderBindings.get(getContext())
+                    .getBoolean("verify_incremental_coalescing", false));
+        coalescedRows.setNotificationUri(
+            getContext().getContentResolver(), CoalescedAnnotatedCallLog.CONTENT_URI);
+        return coalescedRows;
       default:
         throw new IllegalArgumentException("Unknown uri: " + uri);
     }
@@ -174,6 +182,7 @@ public class AnnotatedCallLogContentProvider extends ContentProvider {
           values.get(AnnotatedCallLog._ID));
       return null;
     }
+    onRowChanged(id);
     Uri insertedUri = ContentUris.withAppendedId(AnnotatedCallLog.CONTENT_URI, id);
     if (!isApplyingBatch()) {
       notifyChange(insertedUri);
@@ -240,8 +249,12 @@ public class AnnotatedCallLogContentProvider extends ContentProvider {
       default:
         throw new IllegalArgumentException("Unknown uri: " + uri);
     }
+    List<Long> updatedIds = queryIds(database, selection, selectionArgs);
     int rows = database.update(AnnotatedCallLog.TABLE, values, selection, selectionArgs);
     if (rows > 0) {
+      for (long id : updatedIds) {
+        onRowChanged(id);
+      }
       if (!isApplyingBatch()) {
         notifyChange(uri);
       }
@@ -269,6 +282,7 @@ public class AnnotatedCallLogContentProvider extends ContentProvider {
     SQLiteDatabase database = databaseHelper.getWritableDatabase();
     try {
       applyingBatch.set(true);
+      changedRowIdsInBatch.set(new ArraySet<>());
       database.beginTransaction();
       for (int i = 0; i < operations.size(); i++) {
         ContentProviderOperation operation = operations.get(i);
@@ -312,11 +326,78 @@ public class AnnotatedCallLogContentProvider extends ContentProvider {
     } finally {
       applyingBatch.set(false);
       database.endTransaction();
+      reportRowsChangedInBatch();
     }
     notifyChange(AnnotatedCallLog.CONTENT_URI);
     return results;
   }
 
+  /**
+   * Writes the provided {@link CallLogMutations} directly to the database of this provider, which
+   * avoids creating a {@link ContentProviderOperation} per mutation when the provider is in the
+   * same process as the caller.
+   *
+   * <p>Like {@link #applyBatch(ArrayList)}, only a single notification for the content URI is
+   * generated.
+   */
+  @WorkerThread
+  void applyMutations(MutationApplier mutationApplier, CallLogMutations mutations)
+      throws OperationApplicationException {
+    try {
+      mutationApplier.applyToDatabase(mutations, databaseHelper.getWritableDatabase());
+    } finally {
+      // Reported after the transaction ends, so that a concurrent query doesn't read the rows
+      // before the changes are visible.
+      for (long id : mutations.getInserts().keySet()) {
+        incrementalCoalescer.onRowChanged(id);
+      }
+      for (long id : mutations.getUpdates().keySet()) {
+        incrementalCoalescer.onRowChanged(id);
+      }
+    }
+    notifyChange(AnnotatedCallLog.CONTENT_URI);
+  }
+
+  /**
+   * Reports an inserted or updated row to the {@link IncrementalCoalescer}. Rows changed while
+   * applying a batch are only reported once its transaction ends, as they can't be read by other
+   * threads before that.
+   */
+  private void onRowChanged(long id) {
+    if (isApplyingBatch()) {
+      changedRowIdsInBatch.get().add(id);
+    } else {
+      incrementalCoalescer.onRowChanged(id);
+    }
+  }
+
+  private void reportRowsChangedInBatch() {
+    for (long id : changedRowIdsInBatch.get()) {
+      incrementalCoalescer.onRowChanged(id);
+    }
+    changedRowIdsInBatch.remove();
+  }
+
+  @TargetApi(Build.VERSION_CODES.M) // Uses try-with-resources
+  private static List<Long> queryIds(
+      SQLiteDatabase database, @Nullable String selection, @Nullable String[] selectionArgs) {
+    List<Long> ids = new ArrayList<>();
+    try (Cursor cursor =
+        database.query(
+            AnnotatedCallLog.TABLE,
+            new String[] {AnnotatedCallLog._ID},
+            selection,
+            selectionArgs,
+            null,
+            null,
+            null)) {
+      while (cursor.moveToNext()) {
+        ids.add(cursor.getLong(0));
+      }
+    }
+    return ids;
+  }
+
   private String getSelectionWithId(long id) {
     return AnnotatedCallLog._ID + "=" + id;
   }
@@ -30,6 +30,8 @@ class AnnotatedCallLogDatabaseHelper extends SQLiteOpenHelper {
   AnnotatedCallLogDatabaseHelper(Context appContext, int maxRows) {
     super(appContext, "annotated_call_log.db", null, 1);
     this.maxRows = maxRows;
+    // Lets the coalesced call log be read while mutations are being applied.
+    setWriteAheadLoggingEnabled(true);
   }
 
   private static final String CREATE_TABLE_SQL =
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.dialer.calllog.database;
+
+import android.content.ContentValues;
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import com.android.dialer.calllog.database.contract.AnnotatedCallLogContract.CoalescedAnnotatedCallLog;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Read-only cursor over {@link CoalescedAnnotatedCallLog} rows which stores each column in its own
+ * array.
+ *
+ * <p>Integer columns are kept in primitive arrays, so that unlike a {@link
+ * android.database.MatrixCursor} no value is boxed and no object array is allocated per row. The
+ * {@link CoalescedAnnotatedCallLog#_ID} of each row is its position.
+ */
+final class CoalescedAnnotatedCallLogCursor extends AbstractCursor {
+
+  /** Columns of {@link CoalescedAnnotatedCallLog} with type INTEGER, other than the ID. */
+  private static final List<String> INTEGER_COLUMNS =
+      Arrays.asList(CoalescedAnnotatedCallLog.TIMESTAMP, CoalescedAnnotatedCallLog.NUMBER_CALLS);
+
+  private static final String[] COLUMNS = CoalescedAnnotatedCallLog.ALL_COLUMNS;
+
+  private static final int ID_COLUMN =
+      Arrays.asList(COLUMNS).indexOf(CoalescedAnnotatedCallLog._ID);
+
+  private final int count;
+
+  /** Per column: the values of an INTEGER column, or null. */
+  private final long[][] longColumns = new long[COLUMNS.length][];
+
+  /** Per column: which values of an INTEGER column are null, or null if none are. */
+  private final boolean[][] nullLongs = new boolean[COLUMNS.length][];
+
+  /** Per column: the values of a TEXT column, or null. */
+  private final String[][] stringColumns = new String[COLUMNS.length][];
+
+  /**
+   * @param coalescedRows {@link CoalescedAnnotatedCallLog} rows without their IDs. Columns which
+   *     are not part of {@link CoalescedAnnotatedCallLog#ALL_COLUMNS} are ignored.
+   */
+  CoalescedAnnotatedCallLogCursor(List<ContentValues> coalescedRows) {
+    count = coalescedRows.size();
+    for (int column = 0; column < COLUMNS.length; column++) {
+      String columnName = COLUMNS[column];
+      if (isIdColumn(column)) {
+        continue;
+      }
+      if (INTEGER_COLUMNS.contains(columnName)) {
+        long[] values = new long[count];
+        boolean[] nulls = null;
+        for (int row = 0; row < count; row++) {
+          Long value = coalescedRows.get(row).getAsLong(columnName);
+          if (value != null) {
+            values[row] = value;
+          } else {
+            if (nulls == null) {
+              nulls = new boolean[count];
+            }
+            nulls[row] = true;
+          }
+        }
+        longColumns[column] = values;
+        nullLongs[column] = nulls;
+      } else {
+        String[] values = new String[count];
+        for (int row = 0; row < count; row++) {
+          values[row] = coalescedRows.get(row).getAsString(columnName);
+        }
+        stringColumns[column] = values;
+      }
+    }
+  }
+
+  @Override
+  public int getCount() {
+    return count;
+  }
+
+  @Override
+  public String[] getColumnNames() {
+    return COLUMNS;
+  }
+
+  @Override
+  public int getType(int column) {
+    if (isIdColumn(column)) {
+      return Cursor.FIELD_TYPE_INTEGER;
+    }
+    if (isNull(column)) {
+      return Cursor.FIELD_TYPE_NULL;
+    }
+    return longColumns[column] != null ? Cursor.FIELD_TYPE_INTEGER : Cursor.FIELD_TYPE_STRING;
+  }
+
+  @Override
+  public String getString(int column) {
+    if (isIdColumn(column) || longColumns[column] != null) {
+      return isNull(column) ? null : Long.toString(getLong(column));
+    }
+    return stringColumns[column][getCheckedPosition()];
+  }
+
+  @Override
+  public short getShort(int column) {
+    return (short) getLong(column);
+  }
+
+  @Override
+  public int getInt(int column) {
+    return (int) getLong(column);
+  }
+
+  @Override
+  public long getLong(int column) {
+    if (isIdColumn(column)) {
+      return getCheckedPosition();
+    }
+    if (longColumns[column] != null) {
+      return longColumns[column][getCheckedPosition()];
+    }
+    String value = stringColumns[column][getCheckedPosition()];
+    return value == null ? 0 : Long.parseLong(value);
+  }
+
+  @Override
+  public float getFloat(int column) {
+    return getLong(column);
+  }
+
+  @Override
+  public double getDouble(int column) {
+    return getLong(column);
+  }
+
+  @Override
+  public boolean isNull(int column) {
+    if (isIdColumn(column)) {
+      return false;
+    }
+    if (longColumns[column] != null) {
+      return nullLongs[column] != null && nullLongs[column][getCheckedPosition()];
+    }
+    return stringColumns[column][getCheckedPosition()] == null;
+  }
+
+  private static boolean isIdColumn(int column) {
+    return column == ID_COLUMN;
+  }
+
+  private int getCheckedPosition() {
+    checkPosition();
+    return getPosition();
+  }
+}
@@ -17,7 +17,6 @@ package com.android.dialer.calllog.database;
 
 import android.content.ContentValues;
 import android.database.Cursor;
-import android.database.MatrixCursor;
 import android.support.annotation.NonNull;
 import android.support.annotation.WorkerThread;
 import com.android.dialer.DialerPhoneNumber;
@@ -31,7 +30,6 @@ import com.google.i18n.phonenumbers.PhoneNumberUtil;
 import com.google.protobuf.InvalidProtocolBufferException;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
 import javax.inject.Inject;
 
 /**
@@ -51,17 +49,29 @@ public class Coalescer {
 
   /**
    * Reads the entire {@link AnnotatedCallLog} database into memory from the provided {@code
-   * allAnnotatedCallLog} parameter and then builds and returns a new {@link MatrixCursor} which is
-   * the result of combining adjacent rows which should be collapsed for display purposes.
+   * allAnnotatedCallLog} parameter and then builds and returns a new cursor which is the result of
+   * combining adjacent rows which should be collapsed for display purposes.
    *
    * @param allAnnotatedCallLogRowsSortedByTimestampDesc all {@link AnnotatedCallLog} rows, sorted
    *     by timestamp descending
-   * @return a new {@link MatrixCursor} containing the {@link CoalescedAnnotatedCallLog} rows to
-   *     display
+   * @return a new {@link CoalescedAnnotatedCallLogCursor} containing the {@link
+   *     CoalescedAnnotatedCallLog} rows to display
    */
   @WorkerThread
   @NonNull
   Cursor coalesce(@NonNull Cursor allAnnotatedCallLogRowsSortedByTimestampDesc) {
+    return new CoalescedAnnotatedCallLogCursor(
+        coalesceToContentValues(allAnnotatedCallLogRowsSortedByTimestampDesc));
+  }
+
+  /**
+   * Same as {@link #coalesce(Cursor)}, but returns the {@link CoalescedAnnotatedCallLog} rows
+   * without their IDs instead of a cursor.
+   */
+  @WorkerThread
+  @NonNull
+  List<ContentValues> coalesceToContentValues(
+      @NonNull Cursor allAnnotatedCallLogRowsSortedByTimestampDesc) {
     Assert.isWorkerThread();
 
     // Note: This method relies on rowsShouldBeCombined to determine which rows should be combined,
@@ -70,75 +80,96 @@ public class Coalescer {
     DialerPhoneNumberUtil dialerPhoneNumberUtil =
         new DialerPhoneNumberUtil(PhoneNumberUtil.getInstance());
 
-    MatrixCursor allCoalescedRowsMatrixCursor =
-        new MatrixCursor(
-            CoalescedAnnotatedCallLog.ALL_COLUMNS,
-            Assert.isNotNull(allAnnotatedCallLogRowsSortedByTimestampDesc).getCount());
+    List<ContentValues> allCoalescedRows =
+        new ArrayList<>(Assert.isNotNull(allAnnotatedCallLogRowsSortedByTimestampDesc).getCount());
 
     if (allAnnotatedCallLogRowsSortedByTimestampDesc.moveToFirst()) {
-      int coalescedRowId = 0;
-
       List<ContentValues> currentRowGroup = new ArrayList<>();
+      DialerPhoneNumber previousNumber = null;
 
       do {
         ContentValues currentRow =
             cursorRowToContentValues(allAnnotatedCallLogRowsSortedByTimestampDesc);
+        DialerPhoneNumber currentNumber =
+            parseNumber(currentRow.getAsByteArray(AnnotatedCallLog.NUMBER));
 
-        if (currentRowGroup.isEmpty()) {
-          currentRowGroup.add(currentRow);
-          continue;
-        }
-
-        ContentValues previousRow = currentRowGroup.get(currentRowGroup.size() - 1);
-
-        if (!rowsShouldBeCombined(dialerPhoneNumberUtil, previousRow, currentRow)) {
-          ContentValues coalescedRow = coalesceRowsForAllDataSources(currentRowGroup);
-          coalescedRow.put(CoalescedAnnotatedCallLog.NUMBER_CALLS, currentRowGroup.size());
-          addContentValuesToMatrixCursor(
-              coalescedRow, allCoalescedRowsMatrixCursor, coalescedRowId++);
+        if (!currentRowGroup.isEmpty()
+            && !rowsShouldBeCombined(dialerPhoneNumberUtil, previousNumber, currentNumber)) {
+          allCoalescedRows.add(coalesceRowGroup(currentRowGroup));
           currentRowGroup.clear();
         }
         currentRowGroup.add(currentRow);
+        previousNumber = currentNumber;
       } while (allAnnotatedCallLogRowsSortedByTimestampDesc.moveToNext());
 
       // Deal with leftover rows.
-      ContentValues coalescedRow = coalesceRowsForAllDataSources(currentRowGroup);
-      coalescedRow.put(CoalescedAnnotatedCallLog.NUMBER_CALLS, currentRowGroup.size());
-      addContentValuesToMatrixCursor(coalescedRow, allCoalescedRowsMatrixCursor, coalescedRowId);
+      allCoalescedRows.add(coalesceRowGroup(currentRowGroup));
     }
-    return allCoalescedRowsMatrixCursor;
+    return allCoalescedRows;
   }
 
-  private static ContentValues cursorRowToContentValues(Cursor cursor) {
+  static ContentValues cursorRowToContentValues(Cursor cursor) {
     ContentValues values = new ContentValues();
     String[] columns = cursor.getColumnNames();
     int length = columns.length;
     for (int i = 0; i < length; i++) {
-      if (cursor.getType(i) == Cursor.FIELD_TYPE_BLOB) {
-        values.put(columns[i], cursor.getBlob(i));
-      } else {
-        values.put(columns[i], cursor.getString(i));
-      }
+      putValue(values, columns[i], readValue(cursor, i));
     }
     return values;
   }
 
   /**
-   * @param row1 a row from {@link AnnotatedCallLog}
-   * @param row2 a row from {@link AnnotatedCallLog}
+   * Reads a column of the current row without converting it to a string, so that INTEGER columns
+   * can be read back with {@link ContentValues#getAsLong(String)} without parsing.
+   *
+   * @return a {@link Long}, {@link Double}, {@link String}, {@code byte[]} or null
    */
-  private static boolean rowsShouldBeCombined(
-      DialerPhoneNumberUtil dialerPhoneNumberUtil, ContentValues row1, ContentValues row2) {
-    // TODO: Real implementation.
-    DialerPhoneNumber number1;
-    DialerPhoneNumber number2;
+  static Object readValue(Cursor cursor, int column) {
+    switch (cursor.getType(column)) {
+      case Cursor.FIELD_TYPE_INTEGER:
+        return cursor.getLong(column);
+      case Cursor.FIELD_TYPE_FLOAT:
+        return cursor.getDouble(column);
+      case Cursor.FIELD_TYPE_BLOB:
+        return cursor.getBlob(column);
+      case Cursor.FIELD_TYPE_NULL:
+        return null;
+      default:
+        return cursor.getString(column);
+    }
+  }
+
+  /** @param value a value returned by {@link #readValue(Cursor, int)} */
+  static void putValue(ContentValues values, String column, Object value) {
+    if (value instanceof Long) {
+      values.put(column, (Long) value);
+    } else if (value instanceof Double) {
+      values.put(column, (Double) value);
+    } else if (value instanceof byte[]) {
+      values.put(column, (byte[]) value);
+    } else {
+      values.put(column, (String) value);
+    }
+  }
+
+  /** @param numberBytes the {@link AnnotatedCallLog#NUMBER} of a row */
+  static DialerPhoneNumber parseNumber(byte[] numberBytes) {
     try {
-      number1 = DialerPhoneNumber.parseFrom(row1.getAsByteArray(AnnotatedCallLog.NUMBER));
-      number2 = DialerPhoneNumber.parseFrom(row2.getAsByteArray(AnnotatedCallLog.NUMBER));
+      return DialerPhoneNumber.parseFrom(numberBytes);
     } catch (InvalidProtocolBufferException e) {
       throw Assert.createAssertionFailException("error parsing DialerPhoneNumber proto", e);
     }
+  }
 
+  /**
+   * @param number1 the number of a row from {@link AnnotatedCallLog}
+   * @param number2 the number of the next row from {@link AnnotatedCallLog}
+   */
+  static boolean rowsShouldBeCombined(
+      DialerPhoneNumberUtil dialerPhoneNumberUtil,
+      DialerPhoneNumber number1,
+      DialerPhoneNumber number2) {
+    // TODO: Real implementation.
     if (!number1.hasDialerInternalPhoneNumber() && !number2.hasDialerInternalPhoneNumber()) {
       // Empty numbers should not be combined.
       return false;
@@ -151,6 +182,17 @@ public class Coalescer {
     return dialerPhoneNumberUtil.isExactMatch(number1, number2);
   }
 
+  /**
+   * @param individualRows {@link AnnotatedCallLog} rows sorted by timestamp descending
+   * @return a {@link CoalescedAnnotatedCallLog} row, including {@link
+   *     CoalescedAnnotatedCallLog#NUMBER_CALLS} but not the ID
+   */
+  ContentValues coalesceRowGroup(List<ContentValues> individualRows) {
+    ContentValues coalescedRow = coalesceRowsForAllDataSources(individualRows);
+    coalescedRow.put(CoalescedAnnotatedCallLog.NUMBER_CALLS, individualRows.size());
+    return coalescedRow;
+  }
+
   /**
    * Delegates to data sources to aggregate individual columns to create a new coalesced row.
    *
@@ -164,17 +206,4 @@ public class Coalescer {
     }
     return coalescedValues;
   }
-
-  /**
-   * @param contentValues a {@link CoalescedAnnotatedCallLog} row
-   * @param matrixCursor represents {@link CoalescedAnnotatedCallLog}
-   */
-  private static void addContentValuesToMatrixCursor(
-      ContentValues contentValues, MatrixCursor matrixCursor, int rowId) {
-    MatrixCursor.RowBuilder rowBuilder = matrixCursor.newRow();
-    rowBuilder.add(CoalescedAnnotatedCallLog._ID, rowId);
-    for (Map.Entry<String, Object> entry : contentValues.valueSet()) {
-      rowBuilder.add(entry.getKey(), entry.getValue());
-    }
-  }
 }
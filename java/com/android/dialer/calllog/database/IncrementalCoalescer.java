@@ -0,0 +1,362 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.dialer.calllog.database;
+
+import android.annotation.TargetApi;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+import android.text.TextUtils;
+import android.util.ArraySet;
+import android.util.LongSparseArray;
+import com.android.dialer.DialerPhoneNumber;
+import com.android.dialer.calllog.database.contract.AnnotatedCallLogContract.AnnotatedCallLog;
+import com.android.dialer.calllog.database.contract.AnnotatedCallLogContract.CoalescedAnnotatedCallLog;
+import com.android.dialer.common.Assert;
+import com.android.dialer.common.LogUtil;
+import com.android.dialer.phonenumberproto.DialerPhoneNumberUtil;
+import com.google.i18n.phonenumbers.PhoneNumberUtil;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Keeps an in-memory coalesced view of the {@link AnnotatedCallLog} table up to date.
+ *
+ * <p>Instead of reading and coalescing the entire table on every query, only the rows which were
+ * inserted, updated or deleted since the previous query are read, and only the groups of rows next
+ * to them are coalesced again. Each row's {@link DialerPhoneNumber} is parsed once, when the row is
+ * read.
+ *
+ * <p>Inserted and updated rows must be reported via {@link #onRowChanged(long)} once the change is
+ * committed. Deleted rows are found by comparing the IDs in the table with the IDs in memory, so
+ * rows deleted by the trigger which limits the size of the table don't have to be reported.
+ */
+final class IncrementalCoalescer {
+
+  /** Sorts rows by timestamp descending, using the ID to order rows with the same timestamp. */
+  static final String SORT_ORDER =
+      AnnotatedCallLog.TIMESTAMP + " DESC, " + AnnotatedCallLog._ID + " DESC";
+
+  private static final Comparator<Row> ROW_COMPARATOR =
+      (row1, row2) -> {
+        int result = Long.compare(row2.timestamp, row1.timestamp);
+        return result != 0 ? result : Long.compare(row2.id, row1.id);
+      };
+
+  private final Coalescer coalescer;
+
+  /** Guarded by this. */
+  private final List<Row> rows = new ArrayList<>();
+
+  /** Guarded by this. */
+  private final LongSparseArray<Row> rowsById = new LongSparseArray<>();
+
+  /** Names of the columns of {@link Row#values}. Guarded by this. */
+  private String[] columnNames;
+
+  /** Guarded by changedRowIds. */
+  private final ArraySet<Long> changedRowIds = new ArraySet<>();
+
+  /** Guarded by changedRowIds. */
+  private boolean invalidated = true;
+
+  IncrementalCoalescer(Coalescer coalescer) {
+    this.coalescer = coalescer;
+  }
+
+  /** Records that the row with the provided ID was inserted or updated. */
+  void onRowChanged(long id) {
+    synchronized (changedRowIds) {
+      changedRowIds.add(id);
+    }
+  }
+
+  /**
+   * Records that rows were changed in a way which can't be tracked by ID. The next query coalesces
+   * the entire table again.
+   */
+  void invalidate() {
+    synchronized (changedRowIds) {
+      invalidated = true;
+    }
+  }
+
+  /**
+   * Brings the coalesced rows up to date with the {@link AnnotatedCallLog} table and returns them.
+   *
+   * @param verify if true, the entire table is also coalesced the way {@link
+   *     Coalescer#coalesce(Cursor)} does it, and that result is returned if it does not match the
+   *     incremental one.
+   * @return a new cursor containing the {@link CoalescedAnnotatedCallLog} rows to display
+   */
+  @TargetApi(Build.VERSION_CODES.M) // Uses try-with-resources
+  @WorkerThread
+  @NonNull
+  synchronized Cursor query(SQLiteDatabase db, boolean verify) {
+    Assert.isWorkerThread();
+
+    long startTime = System.currentTimeMillis();
+    boolean rebuild;
+    ArraySet<Long> idsToRead;
+    synchronized (changedRowIds) {
+      rebuild = invalidated;
+      invalidated = false;
+      idsToRead = new ArraySet<>(changedRowIds);
+      changedRowIds.clear();
+    }
+
+    if (rebuild) {
+      rows.clear();
+      rowsById.clear();
+    }
+    int rowsRead = update(db, idsToRead);
+    int groupsCoalesced = coalesceDirtyGroups();
+
+    List<ContentValues> coalescedRows = getCoalescedRows();
+    LogUtil.i(
+        "IncrementalCoalescer.query",
+        "read %d rows and coalesced %d groups in %dms",
+        rowsRead,
+        groupsCoalesced,
+        System.currentTimeMillis() - startTime);
+
+    if (verify) {
+      List<ContentValues> expectedRows;
+      try (Cursor allAnnotatedCallLogRows =
+          db.query(AnnotatedCallLog.TABLE, null, null, null, null, null, SORT_ORDER)) {
+        expectedRows = coalescer.coalesceToContentValues(allAnnotatedCallLogRows);
+      }
+      if (!expectedRows.equals(coalescedRows)) {
+        LogUtil.e(
+            "IncrementalCoalescer.query",
+            "incremental result does not match full result, rebuilding on next query");
+        invalidate();
+        return new CoalescedAnnotatedCallLogCursor(expectedRows);
+      }
+    }
+    return new CoalescedAnnotatedCallLogCursor(coalescedRows);
+  }
+
+  /**
+   * Removes rows which are no longer in the table and (re)reads rows which are new or changed.
+   *
+   * @return the number of rows read
+   */
+  @TargetApi(Build.VERSION_CODES.M) // Uses try-with-resources
+  private int update(SQLiteDatabase db, ArraySet<Long> idsToRead) {
+    try (Cursor idCursor =
+        db.query(
+            AnnotatedCallLog.TABLE,
+            new String[] {AnnotatedCallLog._ID},
+            null,
+            null,
+            null,
+            null,
+            null)) {
+      ArraySet<Long> idsInTable = new ArraySet<>(idCursor.getCount());
+      while (idCursor.moveToNext()) {
+        long id = idCursor.getLong(0);
+        idsInTable.add(id);
+        if (rowsById.get(id) == null) {
+          idsToRead.add(id);
+        }
+      }
+
+      // Changed rows are removed and then inserted again, as their timestamp may have changed.
+      Row previousRow = null;
+      boolean removedPreviousRow = false;
+      int keptRows = 0;
+      for (int i = 0; i < rows.size(); i++) {
+        Row row = rows.get(i);
+        if (!idsInTable.contains(row.id) || idsToRead.contains(row.id)) {
+          rowsById.remove(row.id);
+          if (previousRow != null) {
+            previousRow.dirty = true;
+          }
+          removedPreviousRow = true;
+          continue;
+        }
+        if (removedPreviousRow) {
+          row.dirty = true;
+        }
+        removedPreviousRow = false;
+        rows.set(keptRows++, row);
+        previousRow = row;
+      }
+      rows.subList(keptRows, rows.size()).clear();
+    }
+
+    if (idsToRead.isEmpty()) {
+      return 0;
+    }
+
+    List<Row> newRows = new ArrayList<>(idsToRead.size());
+    String selection = AnnotatedCallLog._ID + " in (" + TextUtils.join(",", idsToRead) + ")";
+    try (Cursor cursor =
+        db.query(AnnotatedCallLog.TABLE, null, selection, null, null, null, SORT_ORDER)) {
+      columnNames = cursor.getColumnNames();
+      int idColumn = cursor.getColumnIndexOrThrow(AnnotatedCallLog._ID);
+      int timestampColumn = cursor.getColumnIndexOrThrow(AnnotatedCallLog.TIMESTAMP);
+      int numberColumn = cursor.getColumnIndexOrThrow(AnnotatedCallLog.NUMBER);
+      while (cursor.moveToNext()) {
+        Object[] values = new Object[columnNames.length];
+        for (int i = 0; i < values.length; i++) {
+          values[i] = Coalescer.readValue(cursor, i);
+        }
+        newRows.add(
+            new Row(
+                cursor.getLong(idColumn),
+                cursor.getLong(timestampColumn),
+                values,
+                Coalescer.parseNumber(cursor.getBlob(numberColumn))));
+      }
+    }
+
+    if (rows.isEmpty()) {
+      // Initial load, the rows are already sorted.
+      rows.addAll(newRows);
+      for (Row row : newRows) {
+        rowsById.put(row.id, row);
+      }
+      return newRows.size();
+    }
+
+    for (Row row : newRows) {
+      int position = Collections.binarySearch(rows, row, ROW_COMPARATOR);
+      Assert.checkState(position < 0, "row %d is already coalesced", row.id);
+      position = -position - 1;
+      rows.add(position, row);
+      rowsById.put(row.id, row);
+      if (position > 0) {
+        rows.get(position - 1).dirty = true;
+      }
+      if (position + 1 < rows.size()) {
+        rows.get(position + 1).dirty = true;
+      }
+    }
+    return newRows.size();
+  }
+
+  /**
+   * Decides again which rows are combined with their neighbors and coalesces the groups containing
+   * dirty rows.
+   *
+   * @return the number of groups coalesced
+   */
+  private int coalesceDirtyGroups() {
+    DialerPhoneNumberUtil dialerPhoneNumberUtil =
+        new DialerPhoneNumberUtil(PhoneNumberUtil.getInstance());
+
+    // A group can only change if one of its rows is dirty, so deciding whether dirty rows are
+    // combined with the previous row is enough.
+    for (int i = 0; i < rows.size(); i++) {
+      Row row = rows.get(i);
+      if (row.dirty) {
+        row.combinedWithPrevious =
+            i > 0
+                && Coalescer.rowsShouldBeCombined(
+                    dialerPhoneNumberUtil, rows.get(i - 1).number, row.number);
+      }
+    }
+
+    int groupsCoalesced = 0;
+    List<ContentValues> rowGroup = new ArrayList<>();
+    int groupStart = 0;
+    while (groupStart < rows.size()) {
+      int groupEnd = groupStart + 1;
+      while (groupEnd < rows.size() && rows.get(groupEnd).combinedWithPrevious) {
+        groupEnd++;
+      }
+
+      Row firstRow = rows.get(groupStart);
+      boolean dirty = firstRow.coalescedValues == null;
+      for (int i = groupStart; i < groupEnd; i++) {
+        Row row = rows.get(i);
+        dirty |= row.dirty;
+        row.dirty = false;
+        if (i > groupStart) {
+          row.coalescedValues = null;
+        }
+      }
+      if (dirty) {
+        rowGroup.clear();
+        for (int i = groupStart; i < groupEnd; i++) {
+          rowGroup.add(rows.get(i).toContentValues(columnNames));
+        }
+        firstRow.coalescedValues = coalescer.coalesceRowGroup(rowGroup);
+        groupsCoalesced++;
+      }
+      groupStart = groupEnd;
+    }
+    return groupsCoalesced;
+  }
+
+  private List<ContentValues> getCoalescedRows() {
+    List<ContentValues> coalescedRows = new ArrayList<>();
+    for (Row row : rows) {
+      if (row.coalescedValues != null) {
+        coalescedRows.add(row.coalescedValues);
+      }
+    }
+    return coalescedRows;
+  }
+
+  /** A row of the {@link AnnotatedCallLog} table. */
+  private static final class Row {
+    final long id;
+    final long timestamp;
+    final DialerPhoneNumber number;
+
+    /**
+     * The value of each column, as read by {@link Coalescer#readValue(Cursor, int)}. Kept instead
+     * of {@link ContentValues} as it's only needed when the row's group is coalesced.
+     */
+    final Object[] values;
+
+    /** Whether this row is part of the same group as the previous row. */
+    boolean combinedWithPrevious;
+
+    /**
+     * Whether this row is new or one of its neighbors changed, so that its group has to be
+     * coalesced again.
+     */
+    boolean dirty = true;
+
+    /** The {@link CoalescedAnnotatedCallLog} row, if this row is the first row of its group. */
+    @Nullable ContentValues coalescedValues;
+
+    Row(long id, long timestamp, Object[] values, DialerPhoneNumber number) {
+      this.id = id;
+      this.timestamp = timestamp;
+      this.values = values;
+      this.number = number;
+    }
+
+    ContentValues toContentValues(String[] columnNames) {
+      ContentValues contentValues = new ContentValues(columnNames.length);
+      for (int i = 0; i < columnNames.length; i++) {
+        Coalescer.putValue(contentValues, columnNames[i], values[i]);
+      }
+      return contentValues;
+    }
+  }
+}
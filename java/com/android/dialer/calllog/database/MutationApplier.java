@@ -15,14 +15,20 @@
  */
 package com.android.dialer.calllog.database;
 
+import android.content.ContentProvider;
+import android.content.ContentProviderClient;
 import android.content.ContentProviderOperation;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.OperationApplicationException;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.os.RemoteException;
 import android.support.annotation.WorkerThread;
 import android.text.TextUtils;
+import android.util.ArrayMap;
 import com.android.dialer.calllog.database.contract.AnnotatedCallLogContract;
 import com.android.dialer.calllog.database.contract.AnnotatedCallLogContract.AnnotatedCallLog;
 import com.android.dialer.calllog.datasources.CallLogMutations;
@@ -36,10 +42,20 @@ import javax.inject.Inject;
 /** Applies {@link CallLogMutations} to the annotated call log. */
 public class MutationApplier {
 
+  private static final String DELETE_SQL =
+      "delete from " + AnnotatedCallLog.TABLE + " where " + AnnotatedCallLog._ID + "=?";
+
   @Inject
   MutationApplier() {}
 
-  /** Applies the provided {@link CallLogMutations} to the annotated call log. */
+  /**
+   * Applies the provided {@link CallLogMutations} to the annotated call log.
+   *
+   * <p>If the {@link AnnotatedCallLogContentProvider} runs in this process, the mutations are
+   * written directly to its database, otherwise they are sent to it with {@link
+   * android.content.ContentResolver#applyBatch(String, ArrayList)}. Either way all mutations are
+   * applied in a single transaction and a single change notification is sent.
+   */
   @WorkerThread
   public void applyToDatabase(CallLogMutations mutations, Context appContext)
       throws RemoteException, OperationApplicationException {
@@ -49,6 +65,173 @@ public class MutationApplier {
       return;
     }
 
+    ContentProviderClient client =
+        appContext
+            .getContentResolver()
+            .acquireContentProviderClient(AnnotatedCallLogContract.AUTHORITY);
+    if (client != null) {
+      try {
+        ContentProvider localProvider = client.getLocalContentProvider();
+        if (localProvider instanceof AnnotatedCallLogContentProvider) {
+          ((AnnotatedCallLogContentProvider) localProvider).applyMutations(this, mutations);
+          return;
+        }
+      } finally {
+        client.release();
+      }
+    }
+    applyBatch(mutations, appContext);
+  }
+
+  /**
+   * Writes the provided {@link CallLogMutations} to the annotated call log database in a single
+   * transaction, using one compiled statement per distinct set of columns.
+   *
+   * <p>Callers are responsible for notifying observers of the annotated call log.
+   */
+  @WorkerThread
+  void applyToDatabase(CallLogMutations mutations, SQLiteDatabase database)
+      throws OperationApplicationException {
+    Assert.isWorkerThread();
+
+    long startTime = System.currentTimeMillis();
+    ArrayMap<String, SQLiteStatement> statements = new ArrayMap<>();
+    database.beginTransaction();
+    try {
+      if (!mutations.getInserts().isEmpty()) {
+        LogUtil.i(
+            "MutationApplier.applyToDatabase", "inserting %d rows", mutations.getInserts().size());
+        for (Entry<Long, ContentValues> entry : mutations.getInserts().entrySet()) {
+          String[] columns = getSortedColumns(entry.getValue());
+          SQLiteStatement statement =
+              getStatement(database, statements, "insert:", columns, MutationApplier::insertSql);
+          DatabaseUtils.bindObjectToProgram(statement, 1, entry.getKey());
+          bindValues(statement, 2, columns, entry.getValue());
+          if (statement.executeInsert() == -1) {
+            throw new OperationApplicationException("error inserting row");
+          }
+        }
+      }
+
+      if (!mutations.getUpdates().isEmpty()) {
+        LogUtil.i(
+            "MutationApplier.applyToDatabase", "updating %d rows", mutations.getUpdates().size());
+        for (Entry<Long, ContentValues> entry : mutations.getUpdates().entrySet()) {
+          if (entry.getValue().size() == 0) {
+            // Nothing to set, and "update ... set where" isn't valid SQL.
+            continue;
+          }
+          String[] columns = getSortedColumns(entry.getValue());
+          SQLiteStatement statement =
+              getStatement(database, statements, "update:", columns, MutationApplier::updateSql);
+          bindValues(statement, 1, columns, entry.getValue());
+          DatabaseUtils.bindObjectToProgram(statement, columns.length + 1, entry.getKey());
+          if (statement.executeUpdateDelete() == 0) {
+            // See the comment in AnnotatedCallLogContentProvider#applyBatch.
+            LogUtil.w(
+                "MutationApplier.applyToDatabase",
+                "update failed, possibly because row got cleaned up");
+          }
+        }
+      }
+
+      if (!mutations.getDeletes().isEmpty()) {
+        LogUtil.i(
+            "MutationApplier.applyToDatabase", "deleting %d rows", mutations.getDeletes().size());
+        SQLiteStatement statement =
+            getStatement(database, statements, "delete:", new String[0], columns -> DELETE_SQL);
+        for (long id : mutations.getDeletes()) {
+          statement.bindLong(1, id);
+          if (statement.executeUpdateDelete() == 0) {
+            LogUtil.w(
+                "MutationApplier.applyToDatabase",
+                "delete failed, possibly because row got cleaned up");
+          }
+        }
+      }
+
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
+      for (SQLiteStatement statement : statements.values()) {
+        statement.close();
+      }
+    }
+    LogUtil.i(
+        "MutationApplier.applyToDatabase",
+        "applied %d inserts, %d updates and %d deletes with %d statements in %dms",
+        mutations.getInserts().size(),
+        mutations.getUpdates().size(),
+        mutations.getDeletes().size(),
+        statements.size(),
+        System.currentTimeMillis() - startTime);
+  }
+
+  private static String[] getSortedColumns(ContentValues contentValues) {
+    String[] columns = contentValues.keySet().toArray(new String[0]);
+    Arrays.sort(columns);
+    return columns;
+  }
+
+  /** Returns the cached statement for the given kind of mutation and columns, compiling it once. */
+  private static SQLiteStatement getStatement(
+      SQLiteDatabase database,
+      ArrayMap<String, SQLiteStatement> statements,
+      String kind,
+      String[] columns,
+      SqlBuilder sqlBuilder) {
+    String key = kind + TextUtils.join(",", columns);
+    SQLiteStatement statement = statements.get(key);
+    if (statement == null) {
+      statement = database.compileStatement(sqlBuilder.build(columns));
+      statements.put(key, statement);
+    }
+    return statement;
+  }
+
+  /** Binds the values of {@code columns} starting at the given 1-based index. */
+  private static void bindValues(
+      SQLiteStatement statement, int firstIndex, String[] columns, ContentValues contentValues) {
+    for (int i = 0; i < columns.length; i++) {
+      DatabaseUtils.bindObjectToProgram(statement, firstIndex + i, contentValues.get(columns[i]));
+    }
+  }
+
+  private static String insertSql(String[] columns) {
+    StringBuilder sql =
+        new StringBuilder("insert into ")
+            .append(AnnotatedCallLog.TABLE)
+            .append(" (")
+            .append(AnnotatedCallLog._ID);
+    for (String column : columns) {
+      sql.append(',').append(column);
+    }
+    sql.append(") values (?");
+    for (int i = 0; i < columns.length; i++) {
+      sql.append(",?");
+    }
+    return sql.append(')').toString();
+  }
+
+  private static String updateSql(String[] columns) {
+    StringBuilder sql = new StringBuilder("update ").append(AnnotatedCallLog.TABLE).append(" set ");
+    for (int i = 0; i < columns.length; i++) {
+      sql.append(i == 0 ? "" : ",").append(columns[i]).append("=?");
+    }
+    return sql.append(" where ").append(AnnotatedCallLog._ID).append("=?").toString();
+  }
+
+  /** Builds the SQL of a statement from the columns it binds. */
+  private interface SqlBuilder {
+    String build(String[] columns);
+  }
+
+  /**
+   * Sends the provided {@link CallLogMutations} to the annotated call log provider as a batch of
+   * {@link ContentProviderOperation ContentProviderOperations}.
+   */
+  private static void applyBatch(CallLogMutations mutations, Context appContext)
+      throws RemoteException, OperationApplicationException {
     ArrayList<ContentProviderOperation> operations = new ArrayList<>();
 
     if (!mutations.getInserts().isEmpty()) {
@@ -71,6 +254,10 @@ public class MutationApplier {
       for (Entry<Long, ContentValues> entry : mutations.getUpdates().entrySet()) {
         long id = entry.getKey();
         ContentValues contentValues = entry.getValue();
+        if (contentValues.size() == 0) {
+          // Nothing to set, and the provider rejects updates without values.
+          continue;
+        }
         operations.add(
             ContentProviderOperation.newUpdate(
                     ContentUris.withAppendedId(AnnotatedCallLog.CONTENT_URI, id))
@@ -20,6 +20,8 @@ import android.content.ContentValues;
 import android.util.ArrayMap;
 import android.util.ArraySet;
 import com.android.dialer.common.Assert;
+import java.util.Map;
+import java.util.Objects;
 
 /** A collection of mutations to the annotated call log. */
 public final class CallLogMutations {
@@ -75,6 +77,97 @@ public final class CallLogMutations {
     deletes.add(id);
   }
 
+  /**
+   * Returns a copy of these mutations with copied content values, which a data source can fill
+   * independently of other data sources.
+   *
+   * @see #mergeChanges(CallLogMutations, CallLogMutations)
+   */
+  public CallLogMutations copy() {
+    CallLogMutations copy = new CallLogMutations();
+    for (Map.Entry<Long, ContentValues> entry : inserts.entrySet()) {
+      copy.inserts.put(entry.getKey(), new ContentValues(entry.getValue()));
+    }
+    for (Map.Entry<Long, ContentValues> entry : updates.entrySet()) {
+      copy.updates.put(entry.getKey(), new ContentValues(entry.getValue()));
+    }
+    copy.deletes.addAll(deletes);
+    return copy;
+  }
+
+  /**
+   * Adds the changes a data source made while filling a copy of some mutations to these mutations.
+   * When several data sources change the same column, the last merged change wins.
+   *
+   * <p>Columns a data source removed from a row are not removed from these mutations.
+   *
+   * @param before the mutations the data source started from
+   * @param after the {@link #copy()} of {@code before} after the data source filled it
+   */
+  public void mergeChanges(CallLogMutations before, CallLogMutations after) {
+    for (Map.Entry<Long, ContentValues> entry : after.inserts.entrySet()) {
+      long id = entry.getKey();
+      ContentValues beforeValues = before.inserts.get(id);
+      if (beforeValues == null) {
+        insert(id, new ContentValues(entry.getValue()));
+      } else {
+        inserts.get(id).putAll(getChangedValues(beforeValues, entry.getValue()));
+      }
+    }
+    for (Map.Entry<Long, ContentValues> entry : after.updates.entrySet()) {
+      long id = entry.getKey();
+      ContentValues beforeValues = before.updates.get(id);
+      update(
+          id,
+          beforeValues == null
+              ? new ContentValues(entry.getValue())
+              : getChangedValues(beforeValues, entry.getValue()));
+    }
+    for (Long id : after.deletes) {
+      if (!before.deletes.contains(id)) {
+        delete(id);
+      }
+    }
+  }
+
+  private static ContentValues getChangedValues(ContentValues before, ContentValues after) {
+    ContentValues changedValues = new ContentValues();
+    for (String key : after.keySet()) {
+      Object value = after.get(key);
+      if (!before.containsKey(key) || !Objects.equals(before.get(key), value)) {
+        putValue(changedValues, key, value);
+      }
+    }
+    return changedValues;
+  }
+
+  private static void putValue(ContentValues contentValues, String key, Object value) {
+    if (value == null) {
+      contentValues.putNull(key);
+    } else if (value instanceof String) {
+      contentValues.put(key, (String) value);
+    } else if (value instanceof Long) {
+      contentValues.put(key, (Long) value);
+    } else if (value instanceof Integer) {
+      contentValues.put(key, (Integer) value);
+    } else if (value instanceof Short) {
+      contentValues.put(key, (Short) value);
+    } else if (value instanceof Byte) {
+      contentValues.put(key, (Byte) value);
+    } else if (value instanceof Double) {
+      contentValues.put(key, (Double) value);
+    } else if (value instanceof Float) {
+      contentValues.put(key, (Float) value);
+    } else if (value instanceof Boolean) {
+      contentValues.put(key, (Boolean) value);
+    } else if (value instanceof byte[]) {
+      contentValues.put(key, (byte[]) value);
+    } else {
+      throw Assert.createIllegalStateFailException(
+          "unsupported value type: " + value.getClass().getSimpleName());
+    }
+  }
+
   public boolean isEmpty() {
     return inserts.isEmpty() && updates.isEmpty() && deletes.isEmpty();
   }
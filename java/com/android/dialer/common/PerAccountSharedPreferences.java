@@ -90,6 +90,11 @@ public class PerAccountSharedPreferences {
       editor.putStringSet(getKey(key), value);
       return this;
     }
+
+    public Editor remove(String key) {
+      editor.remove(getKey(key));
+      return this;
+    }
   }
 
   public Editor edit() {
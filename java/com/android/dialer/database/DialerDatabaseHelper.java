@@ -27,12 +27,15 @@ import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
 import android.provider.BaseColumns;
 import android.provider.ContactsContract;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
 import android.provider.ContactsContract.Contacts;
 import android.provider.ContactsContract.Data;
 import android.provider.ContactsContract.Directory;
+import android.support.annotation.Nullable;
 import android.support.annotation.VisibleForTesting;
 import android.support.annotation.WorkerThread;
 import android.text.TextUtils;
@@ -42,9 +45,11 @@ import com.android.dialer.common.LogUtil;
 import com.android.dialer.database.FilteredNumberContract.FilteredNumberColumns;
 import com.android.dialer.smartdial.SmartDialNameMatcher;
 import com.android.dialer.smartdial.SmartDialPrefix;
+import com.android.dialer.smartdial.SmartDialTrie;
 import com.android.dialer.util.PermissionsUtil;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import android.util.Log;
 import java.util.Objects;
@@ -77,6 +82,16 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
   private static final String LAST_UPDATED_MILLIS = "last_updated_millis";
   private static final String DATABASE_VERSION_PROPERTY = "database_version";
   private static final int MAX_ENTRIES = 40;
+  /**
+   * Maximum number of rows matching a query that are kept to refine the results when the query is
+   * extended.
+   */
+  private static final int MAX_CACHED_MATCHES = 500;
+  /**
+   * Maximum number of contacts taken from the trie for a query. Queries matching more contacts
+   * select them through the prefix table instead.
+   */
+  private static final int MAX_TRIE_CANDIDATES = 500;
 
   private final Context mContext;
   private boolean mIsTestInstance = false;
@@ -87,9 +102,20 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
   private Object mMultiMatchObject;
   private Method mMultiMatchMethod;
 
+  /** Serializes updates of the smart dial tables. */
+  private final Object mSmartDialUpdateLock = new Object();
+
+  /** Rows matched by the last call to {@link #getLooseMatches}, guarded by this. */
+  private LooseMatchCache mLooseMatchCache;
+
+  /** In-memory copy of the prefix table, guarded by this. */
+  private SmartDialTrie mSmartDialTrie;
+
   protected DialerDatabaseHelper(Context context, String databaseName, int dbVersion) {
     super(context, databaseName, null, dbVersion);
     mContext = Objects.requireNonNull(context, "Context must not be null");
+    // Lets smart dial queries read the last committed state while the tables are being updated.
+    setWriteAheadLoggingEnabled(true);
   }
 
   public void setIsTestInstance(boolean isTestInstance) {
@@ -377,9 +403,11 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
    *
    * @param db Database to operate on.
    * @param deletedContactCursor Cursor containing rows of deleted contacts
+   * @param removedContactIds Set to add the ids of the removed contacts to.
    */
   @VisibleForTesting
-  void removeDeletedContacts(SQLiteDatabase db, Cursor deletedContactCursor) {
+  void removeDeletedContacts(
+      SQLiteDatabase db, Cursor deletedContactCursor, Set<Long> removedContactIds) {
     if (deletedContactCursor == null) {
       return;
     }
@@ -392,6 +420,7 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
         db.delete(
             Tables.SMARTDIAL_TABLE, SmartDialDbColumns.CONTACT_ID + "=" + deleteContactId, null);
         db.delete(Tables.PREFIX_TABLE, PrefixColumns.CONTACT_ID + "=" + deleteContactId, null);
+        removedContactIds.add(deleteContactId);
       }
 
       db.setTransactionSuccessful();
@@ -442,27 +471,142 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
   }
 
   /**
-   * Removes rows in the smartdial database that matches updated contacts.
+   * Brings the rows of updated contacts in line with the contacts database. If the numbers and the
+   * name of a contact did not change, its rows are updated in place and its prefixes are kept.
+   * Otherwise its rows and prefixes are replaced. Contacts without any remaining phone number are
+   * removed.
    *
-   * @param db Database pointer to the smartdial database
+   * @param db Database pointer to the smartdial database, in a transaction.
    * @param updatedContactCursor Cursor pointing to the list of recently updated contacts.
+   * @param updatedPhoneCursor Cursor pointing to the phone numbers of recently updated contacts.
+   * @param currentMillis Current time to be recorded in the smartdial table as update timestamp.
+   * @param removedContactIds Set to add the ids of contacts whose rows were replaced or removed to.
+   * @param stats Counts of the rows touched by this update.
    */
   @VisibleForTesting
-  void removeUpdatedContacts(SQLiteDatabase db, Cursor updatedContactCursor) {
-    db.beginTransaction();
-    try {
-      updatedContactCursor.moveToPosition(-1);
-      while (updatedContactCursor.moveToNext()) {
-        final Long contactId = updatedContactCursor.getLong(UpdatedContactQuery.UPDATED_CONTACT_ID);
+  void updateChangedContacts(
+      SQLiteDatabase db,
+      Cursor updatedContactCursor,
+      Cursor updatedPhoneCursor,
+      Long currentMillis,
+      Set<Long> removedContactIds,
+      SmartDialUpdateStats stats) {
+    /** Groups the positions of valid phone rows by contact. */
+    final HashMap<Long, ArrayList<Integer>> phoneRowsByContact = new HashMap<>();
+    updatedPhoneCursor.moveToPosition(-1);
+    while (updatedPhoneCursor.moveToNext()) {
+      if (TextUtils.isEmpty(updatedPhoneCursor.getString(PhoneQuery.PHONE_NUMBER))
+          || TextUtils.isEmpty(updatedPhoneCursor.getString(PhoneQuery.PHONE_LOOKUP_KEY))) {
+        continue;
+      }
+      final long contactId = updatedPhoneCursor.getLong(PhoneQuery.PHONE_CONTACT_ID);
+      ArrayList<Integer> positions = phoneRowsByContact.get(contactId);
+      if (positions == null) {
+        positions = new ArrayList<>();
+        phoneRowsByContact.put(contactId, positions);
+      }
+      positions.add(updatedPhoneCursor.getPosition());
+    }
+
+    /**
+     * A contact can be updated without having any phone row left, e.g. if its last phone number was
+     * deleted.
+     */
+    final Set<Long> contactIds = new HashSet<>(phoneRowsByContact.keySet());
+    updatedContactCursor.moveToPosition(-1);
+    while (updatedContactCursor.moveToNext()) {
+      contactIds.add(updatedContactCursor.getLong(UpdatedContactQuery.UPDATED_CONTACT_ID));
+    }
 
-        db.delete(Tables.SMARTDIAL_TABLE, SmartDialDbColumns.CONTACT_ID + "=" + contactId, null);
-        db.delete(Tables.PREFIX_TABLE, PrefixColumns.CONTACT_ID + "=" + contactId, null);
+    final SQLiteStatement insert = compileSmartDialInsert(db);
+    final SQLiteStatement prefixInsert = compilePrefixInsert(db);
+    final SQLiteStatement update = compileSmartDialUpdate(db);
+    final SQLiteStatement delete =
+        db.compileStatement(
+            "DELETE FROM "
+                + Tables.SMARTDIAL_TABLE
+                + " WHERE "
+                + SmartDialDbColumns.CONTACT_ID
+                + "=?");
+    final SQLiteStatement prefixDelete =
+        db.compileStatement(
+            "DELETE FROM " + Tables.PREFIX_TABLE + " WHERE " + PrefixColumns.CONTACT_ID + "=?");
+
+    for (Long contactId : contactIds) {
+      final ArrayList<Integer> positions = phoneRowsByContact.get(contactId);
+      if (positions != null && hasSameIndex(db, contactId, updatedPhoneCursor, positions)) {
+        for (int position : positions) {
+          updatedPhoneCursor.moveToPosition(position);
+          bindSmartDialUpdate(update, updatedPhoneCursor);
+          stats.rowsUpdated += update.executeUpdateDelete();
+        }
+        continue;
       }
 
-      db.setTransactionSuccessful();
+      delete.bindLong(1, contactId);
+      stats.rowsDeleted += delete.executeUpdateDelete();
+      prefixDelete.bindLong(1, contactId);
+      stats.prefixesDeleted += prefixDelete.executeUpdateDelete();
+      removedContactIds.add(contactId);
+
+      if (positions == null) {
+        continue;
+      }
+      for (int position : positions) {
+        updatedPhoneCursor.moveToPosition(position);
+        insertPhoneRow(insert, prefixInsert, updatedPhoneCursor, currentMillis, stats);
+      }
+      updatedPhoneCursor.moveToPosition(positions.get(0));
+      insertNamePrefixes(prefixInsert, contactId, getDisplayName(updatedPhoneCursor), stats);
+    }
+  }
+
+  /**
+   * Returns true if the smartdial table already holds exactly the given phone rows of a contact,
+   * with the same numbers and name, so that its prefixes are still valid.
+   */
+  private boolean hasSameIndex(
+      SQLiteDatabase db, long contactId, Cursor updatedPhoneCursor, ArrayList<Integer> positions) {
+    final HashMap<Long, String> existingNumbers = new HashMap<>();
+    final HashSet<String> existingNames = new HashSet<>();
+    final Cursor cursor =
+        db.query(
+            Tables.SMARTDIAL_TABLE,
+            new String[] {
+              SmartDialDbColumns.DATA_ID,
+              SmartDialDbColumns.NUMBER,
+              SmartDialDbColumns.DISPLAY_NAME_PRIMARY
+            },
+            SmartDialDbColumns.CONTACT_ID + "=" + contactId,
+            null,
+            null,
+            null,
+            null);
+    if (cursor == null) {
+      return false;
+    }
+    try {
+      while (cursor.moveToNext()) {
+        existingNumbers.put(cursor.getLong(0), cursor.getString(1));
+        existingNames.add(cursor.getString(2));
+      }
     } finally {
-      db.endTransaction();
+      cursor.close();
+    }
+
+    if (existingNumbers.size() != positions.size() || existingNames.size() != 1) {
+      return false;
+    }
+    for (int position : positions) {
+      updatedPhoneCursor.moveToPosition(position);
+      final String existingNumber =
+          existingNumbers.get(updatedPhoneCursor.getLong(PhoneQuery.PHONE_ID));
+      if (!TextUtils.equals(existingNumber, updatedPhoneCursor.getString(PhoneQuery.PHONE_NUMBER))
+          || !existingNames.contains(getDisplayName(updatedPhoneCursor))) {
+        return false;
+      }
     }
+    return true;
   }
 
   /**
@@ -475,103 +619,23 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
   @VisibleForTesting
   protected void insertUpdatedContactsAndNumberPrefix(
       SQLiteDatabase db, Cursor updatedContactCursor, Long currentMillis) {
+    insertUpdatedContactsAndNumberPrefix(
+        db, updatedContactCursor, currentMillis, new SmartDialUpdateStats());
+  }
+
+  private void insertUpdatedContactsAndNumberPrefix(
+      SQLiteDatabase db,
+      Cursor updatedContactCursor,
+      Long currentMillis,
+      SmartDialUpdateStats stats) {
     db.beginTransaction();
     try {
-      final String sqlInsert =
-          "INSERT INTO "
-              + Tables.SMARTDIAL_TABLE
-              + " ("
-              + SmartDialDbColumns.DATA_ID
-              + ", "
-              + SmartDialDbColumns.NUMBER
-              + ", "
-              + SmartDialDbColumns.CONTACT_ID
-              + ", "
-              + SmartDialDbColumns.LOOKUP_KEY
-              + ", "
-              + SmartDialDbColumns.DISPLAY_NAME_PRIMARY
-              + ", "
-              + SmartDialDbColumns.PHOTO_ID
-              + ", "
-              + SmartDialDbColumns.LAST_TIME_USED
-              + ", "
-              + SmartDialDbColumns.TIMES_USED
-              + ", "
-              + SmartDialDbColumns.STARRED
-              + ", "
-              + SmartDialDbColumns.IS_SUPER_PRIMARY
-              + ", "
-              + SmartDialDbColumns.IN_VISIBLE_GROUP
-              + ", "
-              + SmartDialDbColumns.IS_PRIMARY
-              + ", "
-              + SmartDialDbColumns.CARRIER_PRESENCE
-              + ", "
-              + SmartDialDbColumns.LAST_SMARTDIAL_UPDATE_TIME
-              + ") "
-              + " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
-      final SQLiteStatement insert = db.compileStatement(sqlInsert);
-
-      final String numberSqlInsert =
-          "INSERT INTO "
-              + Tables.PREFIX_TABLE
-              + " ("
-              + PrefixColumns.CONTACT_ID
-              + ", "
-              + PrefixColumns.PREFIX
-              + ") "
-              + " VALUES (?, ?)";
-      final SQLiteStatement numberInsert = db.compileStatement(numberSqlInsert);
+      final SQLiteStatement insert = compileSmartDialInsert(db);
+      final SQLiteStatement numberInsert = compilePrefixInsert(db);
 
       updatedContactCursor.moveToPosition(-1);
       while (updatedContactCursor.moveToNext()) {
-        insert.clearBindings();
-
-        // Handle string columns which can possibly be null first. In the case of certain
-        // null columns (due to malformed rows possibly inserted by third-party apps
-        // or sync adapters), skip the phone number row.
-        final String number = updatedContactCursor.getString(PhoneQuery.PHONE_NUMBER);
-        if (TextUtils.isEmpty(number)) {
-          continue;
-        } else {
-          insert.bindString(2, number);
-        }
-
-        final String lookupKey = updatedContactCursor.getString(PhoneQuery.PHONE_LOOKUP_KEY);
-        if (TextUtils.isEmpty(lookupKey)) {
-          continue;
-        } else {
-          insert.bindString(4, lookupKey);
-        }
-
-        final String displayName = updatedContactCursor.getString(PhoneQuery.PHONE_DISPLAY_NAME);
-        if (displayName == null) {
-          insert.bindString(5, mContext.getResources().getString(R.string.missing_name));
-        } else {
-          insert.bindString(5, displayName);
-        }
-        insert.bindLong(1, updatedContactCursor.getLong(PhoneQuery.PHONE_ID));
-        insert.bindLong(3, updatedContactCursor.getLong(PhoneQuery.PHONE_CONTACT_ID));
-        insert.bindLong(6, updatedContactCursor.getLong(PhoneQuery.PHONE_PHOTO_ID));
-        insert.bindLong(7, updatedContactCursor.getLong(PhoneQuery.PHONE_LAST_TIME_USED));
-        insert.bindLong(8, updatedContactCursor.getInt(PhoneQuery.PHONE_TIMES_USED));
-        insert.bindLong(9, updatedContactCursor.getInt(PhoneQuery.PHONE_STARRED));
-        insert.bindLong(10, updatedContactCursor.getInt(PhoneQuery.PHONE_IS_SUPER_PRIMARY));
-        insert.bindLong(11, updatedContactCursor.getInt(PhoneQuery.PHONE_IN_VISIBLE_GROUP));
-        insert.bindLong(12, updatedContactCursor.getInt(PhoneQuery.PHONE_IS_PRIMARY));
-        insert.bindLong(13, updatedContactCursor.getInt(PhoneQuery.PHONE_CARRIER_PRESENCE));
-        insert.bindLong(14, currentMillis);
-        insert.executeInsert();
-        final String contactPhoneNumber = updatedContactCursor.getString(PhoneQuery.PHONE_NUMBER);
-        final ArrayList<String> numberPrefixes =
-            SmartDialPrefix.parseToNumberTokens(contactPhoneNumber);
-
-        for (String numberPrefix : numberPrefixes) {
-          numberInsert.bindLong(1, updatedContactCursor.getLong(PhoneQuery.PHONE_CONTACT_ID));
-          numberInsert.bindString(2, numberPrefix);
-          numberInsert.executeInsert();
-          numberInsert.clearBindings();
-        }
+        insertPhoneRow(insert, numberInsert, updatedContactCursor, currentMillis, stats);
       }
 
       db.setTransactionSuccessful();
@@ -580,6 +644,163 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
     }
   }
 
+  /**
+   * Inserts the phone row the cursor points to and the prefixes of its number.
+   *
+   * @return false if the row was skipped.
+   */
+  private boolean insertPhoneRow(
+      SQLiteStatement insert,
+      SQLiteStatement numberInsert,
+      Cursor updatedContactCursor,
+      Long currentMillis,
+      SmartDialUpdateStats stats) {
+    insert.clearBindings();
+
+    // Handle string columns which can possibly be null first. In the case of certain
+    // null columns (due to malformed rows possibly inserted by third-party apps
+    // or sync adapters), skip the phone number row.
+    final String number = updatedContactCursor.getString(PhoneQuery.PHONE_NUMBER);
+    if (TextUtils.isEmpty(number)) {
+      return false;
+    } else {
+      insert.bindString(2, number);
+    }
+
+    final String lookupKey = updatedContactCursor.getString(PhoneQuery.PHONE_LOOKUP_KEY);
+    if (TextUtils.isEmpty(lookupKey)) {
+      return false;
+    } else {
+      insert.bindString(4, lookupKey);
+    }
+
+    insert.bindString(5, getDisplayName(updatedContactCursor));
+    insert.bindLong(1, updatedContactCursor.getLong(PhoneQuery.PHONE_ID));
+    insert.bindLong(3, updatedContactCursor.getLong(PhoneQuery.PHONE_CONTACT_ID));
+    insert.bindLong(6, updatedContactCursor.getLong(PhoneQuery.PHONE_PHOTO_ID));
+    insert.bindLong(7, updatedContactCursor.getLong(PhoneQuery.PHONE_LAST_TIME_USED));
+    insert.bindLong(8, updatedContactCursor.getInt(PhoneQuery.PHONE_TIMES_USED));
+    insert.bindLong(9, updatedContactCursor.getInt(PhoneQuery.PHONE_STARRED));
+    insert.bindLong(10, updatedContactCursor.getInt(PhoneQuery.PHONE_IS_SUPER_PRIMARY));
+    insert.bindLong(11, updatedContactCursor.getInt(PhoneQuery.PHONE_IN_VISIBLE_GROUP));
+    insert.bindLong(12, updatedContactCursor.getInt(PhoneQuery.PHONE_IS_PRIMARY));
+    insert.bindLong(13, updatedContactCursor.getInt(PhoneQuery.PHONE_CARRIER_PRESENCE));
+    insert.bindLong(14, currentMillis);
+    insert.executeInsert();
+    stats.rowsInserted++;
+    final ArrayList<String> numberPrefixes = SmartDialPrefix.parseToNumberTokens(number);
+
+    for (String numberPrefix : numberPrefixes) {
+      numberInsert.bindLong(1, updatedContactCursor.getLong(PhoneQuery.PHONE_CONTACT_ID));
+      numberInsert.bindString(2, numberPrefix);
+      numberInsert.executeInsert();
+      numberInsert.clearBindings();
+      stats.prefixesInserted++;
+    }
+    return true;
+  }
+
+  /** Returns the display name stored in the smartdial table for the phone row of the cursor. */
+  private String getDisplayName(Cursor updatedContactCursor) {
+    final String displayName = updatedContactCursor.getString(PhoneQuery.PHONE_DISPLAY_NAME);
+    return displayName == null
+        ? mContext.getResources().getString(R.string.missing_name)
+        : displayName;
+  }
+
+  /** Updates the columns of a smartdial row that do not affect its prefixes. */
+  private static void bindSmartDialUpdate(SQLiteStatement update, Cursor updatedContactCursor) {
+    update.clearBindings();
+    update.bindString(1, updatedContactCursor.getString(PhoneQuery.PHONE_LOOKUP_KEY));
+    update.bindLong(2, updatedContactCursor.getLong(PhoneQuery.PHONE_PHOTO_ID));
+    update.bindLong(3, updatedContactCursor.getLong(PhoneQuery.PHONE_LAST_TIME_USED));
+    update.bindLong(4, updatedContactCursor.getInt(PhoneQuery.PHONE_TIMES_USED));
+    update.bindLong(5, updatedContactCursor.getInt(PhoneQuery.PHONE_STARRED));
+    update.bindLong(6, updatedContactCursor.getInt(PhoneQuery.PHONE_IS_SUPER_PRIMARY));
+    update.bindLong(7, updatedContactCursor.getInt(PhoneQuery.PHONE_IN_VISIBLE_GROUP));
+    update.bindLong(8, updatedContactCursor.getInt(PhoneQuery.PHONE_IS_PRIMARY));
+    update.bindLong(9, updatedContactCursor.getInt(PhoneQuery.PHONE_CARRIER_PRESENCE));
+    update.bindLong(10, updatedContactCursor.getLong(PhoneQuery.PHONE_ID));
+    update.bindLong(11, updatedContactCursor.getLong(PhoneQuery.PHONE_CONTACT_ID));
+  }
+
+  private static SQLiteStatement compileSmartDialInsert(SQLiteDatabase db) {
+    return db.compileStatement(
+        "INSERT INTO "
+            + Tables.SMARTDIAL_TABLE
+            + " ("
+            + SmartDialDbColumns.DATA_ID
+            + ", "
+            + SmartDialDbColumns.NUMBER
+            + ", "
+            + SmartDialDbColumns.CONTACT_ID
+            + ", "
+            + SmartDialDbColumns.LOOKUP_KEY
+            + ", "
+            + SmartDialDbColumns.DISPLAY_NAME_PRIMARY
+            + ", "
+            + SmartDialDbColumns.PHOTO_ID
+            + ", "
+            + SmartDialDbColumns.LAST_TIME_USED
+            + ", "
+            + SmartDialDbColumns.TIMES_USED
+            + ", "
+            + SmartDialDbColumns.STARRED
+            + ", "
+            + SmartDialDbColumns.IS_SUPER_PRIMARY
+            + ", "
+            + SmartDialDbColumns.IN_VISIBLE_GROUP
+            + ", "
+            + SmartDialDbColumns.IS_PRIMARY
+            + ", "
+            + SmartDialDbColumns.CARRIER_PRESENCE
+            + ", "
+            + SmartDialDbColumns.LAST_SMARTDIAL_UPDATE_TIME
+            + ") "
+            + " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+  }
+
+  private static SQLiteStatement compileSmartDialUpdate(SQLiteDatabase db) {
+    return db.compileStatement(
+        "UPDATE "
+            + Tables.SMARTDIAL_TABLE
+            + " SET "
+            + SmartDialDbColumns.LOOKUP_KEY
+            + "=?, "
+            + SmartDialDbColumns.PHOTO_ID
+            + "=?, "
+            + SmartDialDbColumns.LAST_TIME_USED
+            + "=?, "
+            + SmartDialDbColumns.TIMES_USED
+            + "=?, "
+            + SmartDialDbColumns.STARRED
+            + "=?, "
+            + SmartDialDbColumns.IS_SUPER_PRIMARY
+            + "=?, "
+            + SmartDialDbColumns.IN_VISIBLE_GROUP
+            + "=?, "
+            + SmartDialDbColumns.IS_PRIMARY
+            + "=?, "
+            + SmartDialDbColumns.CARRIER_PRESENCE
+            + "=? WHERE "
+            + SmartDialDbColumns.DATA_ID
+            + "=? AND "
+            + SmartDialDbColumns.CONTACT_ID
+            + "=?");
+  }
+
+  private static SQLiteStatement compilePrefixInsert(SQLiteDatabase db) {
+    return db.compileStatement(
+        "INSERT INTO "
+            + Tables.PREFIX_TABLE
+            + " ("
+            + PrefixColumns.CONTACT_ID
+            + ", "
+            + PrefixColumns.PREFIX
+            + ") "
+            + " VALUES (?, ?)");
+  }
+
   /**
    * Inserts prefixes of contact names to the prefix table.
    *
@@ -588,33 +809,24 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
    */
   @VisibleForTesting
   void insertNamePrefixes(SQLiteDatabase db, Cursor nameCursor) {
+    insertNamePrefixes(db, nameCursor, new SmartDialUpdateStats());
+  }
+
+  private void insertNamePrefixes(
+      SQLiteDatabase db, Cursor nameCursor, SmartDialUpdateStats stats) {
     final int columnIndexName = nameCursor.getColumnIndex(SmartDialDbColumns.DISPLAY_NAME_PRIMARY);
     final int columnIndexContactId = nameCursor.getColumnIndex(SmartDialDbColumns.CONTACT_ID);
 
     db.beginTransaction();
     try {
-      final String sqlInsert =
-          "INSERT INTO "
-              + Tables.PREFIX_TABLE
-              + " ("
-              + PrefixColumns.CONTACT_ID
-              + ", "
-              + PrefixColumns.PREFIX
-              + ") "
-              + " VALUES (?, ?)";
-      final SQLiteStatement insert = db.compileStatement(sqlInsert);
+      final SQLiteStatement insert = compilePrefixInsert(db);
 
       while (nameCursor.moveToNext()) {
-        /** Computes a list of prefixes of a given contact name. */
-        final ArrayList<String> namePrefixes =
-            SmartDialPrefix.generateNamePrefixes(nameCursor.getString(columnIndexName));
-
-        for (String namePrefix : namePrefixes) {
-          insert.bindLong(1, nameCursor.getLong(columnIndexContactId));
-          insert.bindString(2, namePrefix);
-          insert.executeInsert();
-          insert.clearBindings();
-        }
+        insertNamePrefixes(
+            insert,
+            nameCursor.getLong(columnIndexContactId),
+            nameCursor.getString(columnIndexName),
+            stats);
       }
 
       db.setTransactionSuccessful();
@@ -623,14 +835,37 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
     }
   }
 
+  private static void insertNamePrefixes(
+      SQLiteStatement insert, long contactId, String displayName, SmartDialUpdateStats stats) {
+    /** Computes a list of prefixes of a given contact name. */
+    final ArrayList<String> namePrefixes = SmartDialPrefix.generateNamePrefixes(displayName);
+
+    for (String namePrefix : namePrefixes) {
+      insert.bindLong(1, contactId);
+      insert.bindString(2, namePrefix);
+      insert.executeInsert();
+      insert.clearBindings();
+      stats.prefixesInserted++;
+    }
+  }
+
   /**
    * Updates the smart dial and prefix database. This method queries the Delta API to get changed
    * contacts since last update, and updates the records in smartdial database and prefix database
    * accordingly. It also queries the deleted contact database to remove newly deleted contacts
    * since last update.
+   *
+   * <p>All changes are written in a single transaction. The database uses write-ahead logging, so
+   * {@link #getLooseMatches} keeps reading the previous state until the transaction commits.
    */
   @WorkerThread
-  public synchronized void updateSmartDialDatabase() {
+  public void updateSmartDialDatabase() {
+    synchronized (mSmartDialUpdateLock) {
+      updateSmartDialDatabaseLocked();
+    }
+  }
+
+  private void updateSmartDialDatabaseLocked() {
     LogUtil.enterBlock("DialerDatabaseHelper.updateSmartDialDatabase");
 
     initMultiLanguageSearch();
@@ -645,6 +880,7 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
         mContext.getSharedPreferences(DATABASE_LAST_CREATED_SHARED_PREF, Context.MODE_PRIVATE);
     final String lastUpdateMillis =
         String.valueOf(databaseLastUpdateSharedPref.getLong(LAST_UPDATED_MILLIS, 0));
+    final boolean isFullUpdate = lastUpdateMillis.equals("0");
 
     LogUtil.v(
         "DialerDatabaseHelper.updateSmartDialDatabase", "last updated at " + lastUpdateMillis);
@@ -652,52 +888,29 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
     /** Sets the time after querying the database as the current update time. */
     final Long currentMillis = System.currentTimeMillis();
 
-    if (DEBUG) {
-      stopWatch.lap("Queried the Contacts database");
-    }
-
-    /** Removes contacts that have been deleted. */
-    removeDeletedContacts(db, getDeletedContactCursor(lastUpdateMillis));
-    removePotentiallyCorruptedContacts(db, lastUpdateMillis);
-
-    if (DEBUG) {
-      stopWatch.lap("Finished deleting deleted entries");
-    }
+    /**
+     * Queries the contacts database before opening the transaction, so that the write lock is not
+     * held during these queries.
+     */
+    final Cursor deletedContactCursor = getDeletedContactCursor(lastUpdateMillis);
 
     /**
      * If the database did not exist before, jump through deletion as there is nothing to delete.
+     * Note that this has to use a separate result set from updatePhoneCursor, since it is possible
+     * for a contact to be updated (e.g. phone number deleted), but have no results show up in
+     * updatedPhoneCursor (since all of its phone numbers have been deleted).
      */
-    if (!lastUpdateMillis.equals("0")) {
-      /**
-       * Removes contacts that have been updated. Updated contact information will be inserted
-       * later. Note that this has to use a separate result set from updatePhoneCursor, since it is
-       * possible for a contact to be updated (e.g. phone number deleted), but have no results show
-       * up in updatedPhoneCursor (since all of its phone numbers have been deleted).
-       */
-      final Cursor updatedContactCursor =
-          mContext
-              .getContentResolver()
-              .query(
-                  UpdatedContactQuery.URI,
-                  UpdatedContactQuery.PROJECTION,
-                  UpdatedContactQuery.SELECT_UPDATED_CLAUSE,
-                  new String[] {lastUpdateMillis},
-                  null);
-      if (updatedContactCursor == null) {
-        LogUtil.e(
-            "DialerDatabaseHelper.updateSmartDialDatabase",
-            "smartDial query received null for cursor");
-        return;
-      }
-      try {
-        removeUpdatedContacts(db, updatedContactCursor);
-      } finally {
-        updatedContactCursor.close();
-      }
-      if (DEBUG) {
-        stopWatch.lap("Finished deleting entries belonging to updated contacts");
-      }
-    }
+    final Cursor updatedContactCursor =
+        isFullUpdate
+            ? null
+            : mContext
+                .getContentResolver()
+                .query(
+                    UpdatedContactQuery.URI,
+                    UpdatedContactQuery.PROJECTION,
+                    UpdatedContactQuery.SELECT_UPDATED_CLAUSE,
+                    new String[] {lastUpdateMillis},
+                    null);
 
     /**
      * Queries the contact database to get all phone numbers that have been updated since the last
@@ -712,56 +925,169 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
                 PhoneQuery.SELECTION,
                 new String[] {lastUpdateMillis},
                 null);
-    if (updatedPhoneCursor == null) {
+
+    if (DEBUG) {
+      stopWatch.lap("Queried the Contacts database");
+    }
+
+    if ((!isFullUpdate && updatedContactCursor == null) || updatedPhoneCursor == null) {
       LogUtil.e(
           "DialerDatabaseHelper.updateSmartDialDatabase",
           "smartDial query received null for cursor");
+      if (deletedContactCursor != null) {
+        deletedContactCursor.close();
+      }
+      if (updatedContactCursor != null) {
+        updatedContactCursor.close();
+      }
+      if (updatedPhoneCursor != null) {
+        updatedPhoneCursor.close();
+      }
       return;
     }
 
+    /**
+     * Takes the trie out of service while the tables change, so that it is rebuilt from scratch if
+     * the update does not complete.
+     */
+    final SmartDialTrie smartDialTrie;
+    synchronized (this) {
+      smartDialTrie = mSmartDialTrie;
+      mSmartDialTrie = null;
+    }
+    final Set<Long> removedContactIds = new HashSet<>();
+    final SmartDialUpdateStats stats = new SmartDialUpdateStats();
+
+    db.beginTransaction();
     try {
-      /** Inserts recently updated phone numbers to the smartdial database. */
-      insertUpdatedContactsAndNumberPrefix(db, updatedPhoneCursor, currentMillis);
+      /** Removes contacts that have been deleted. */
+      removeDeletedContacts(db, deletedContactCursor, removedContactIds);
+      removePotentiallyCorruptedContacts(db, lastUpdateMillis);
+
       if (DEBUG) {
-        stopWatch.lap("Finished building the smart dial table");
+        stopWatch.lap("Finished deleting deleted entries");
       }
-    } finally {
-      updatedPhoneCursor.close();
-    }
 
-    /**
-     * Gets a list of distinct contacts which have been updated, and adds the name prefixes of these
-     * contacts to the prefix table.
-     */
-    final Cursor nameCursor =
-        db.rawQuery(
-            "SELECT DISTINCT "
-                + SmartDialDbColumns.DISPLAY_NAME_PRIMARY
-                + ", "
-                + SmartDialDbColumns.CONTACT_ID
-                + " FROM "
-                + Tables.SMARTDIAL_TABLE
-                + " WHERE "
-                + SmartDialDbColumns.LAST_SMARTDIAL_UPDATE_TIME
-                + " = "
-                + currentMillis,
-            new String[] {});
-    if (nameCursor != null) {
-      try {
+      if (isFullUpdate) {
+        /** Inserts recently updated phone numbers to the smartdial database. */
+        insertUpdatedContactsAndNumberPrefix(db, updatedPhoneCursor, currentMillis, stats);
         if (DEBUG) {
-          stopWatch.lap("Queried the smart dial table for contact names");
+          stopWatch.lap("Finished building the smart dial table");
         }
 
-        /** Inserts prefixes of names into the prefix table. */
-        insertNamePrefixes(db, nameCursor);
+        /**
+         * Gets a list of distinct contacts which have been updated, and adds the name prefixes of
+         * these contacts to the prefix table.
+         */
+        final Cursor nameCursor =
+            db.rawQuery(
+                "SELECT DISTINCT "
+                    + SmartDialDbColumns.DISPLAY_NAME_PRIMARY
+                    + ", "
+                    + SmartDialDbColumns.CONTACT_ID
+                    + " FROM "
+                    + Tables.SMARTDIAL_TABLE
+                    + " WHERE "
+                    + SmartDialDbColumns.LAST_SMARTDIAL_UPDATE_TIME
+                    + " = "
+                    + currentMillis,
+                new String[] {});
+        if (nameCursor != null) {
+          try {
+            if (DEBUG) {
+              stopWatch.lap("Queried the smart dial table for contact names");
+            }
+
+            /** Inserts prefixes of names into the prefix table. */
+            insertNamePrefixes(db, nameCursor, stats);
+            if (DEBUG) {
+              stopWatch.lap("Finished building the name prefix table");
+            }
+          } finally {
+            nameCursor.close();
+          }
+        }
+      } else {
+        updateChangedContacts(
+            db,
+            updatedContactCursor,
+            updatedPhoneCursor,
+            currentMillis,
+            removedContactIds,
+            stats);
         if (DEBUG) {
-          stopWatch.lap("Finished building the name prefix table");
+          stopWatch.lap("Finished updating entries belonging to updated contacts");
         }
-      } finally {
-        nameCursor.close();
       }
+
+      createSmartDialIndexes(db);
+      if (DEBUG) {
+        stopWatch.lap(TAG + "Finished recreating index");
+      }
+
+      /**
+       * Updates the database index statistics. Incremental updates only touch a few rows, so the
+       * statistics gathered by the last full update still hold.
+       */
+      if (isFullUpdate) {
+        db.execSQL("ANALYZE " + Tables.SMARTDIAL_TABLE);
+        db.execSQL("ANALYZE " + Tables.PREFIX_TABLE);
+        db.execSQL("ANALYZE smartdial_contact_id_index");
+        db.execSQL("ANALYZE smartdial_last_update_index");
+        db.execSQL("ANALYZE nameprefix_index");
+        db.execSQL("ANALYZE nameprefix_contact_id_index");
+        if (DEBUG) {
+          stopWatch.lap(TAG + "Finished updating index stats");
+        }
+      }
+
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+      if (updatedContactCursor != null) {
+        updatedContactCursor.close();
+      }
+      updatedPhoneCursor.close();
+    }
+
+    /** All rows were replaced if the database did not exist before. */
+    final SmartDialTrie updatedTrie =
+        updateSmartDialTrie(
+            db, isFullUpdate ? null : smartDialTrie, removedContactIds, currentMillis);
+    synchronized (this) {
+      mSmartDialTrie = updatedTrie;
+      mLooseMatchCache = null;
+    }
+    if (DEBUG) {
+      stopWatch.stopAndLog(TAG + "Finished updating trie", 0);
     }
 
+    final SharedPreferences.Editor editor = databaseLastUpdateSharedPref.edit();
+    editor.putLong(LAST_UPDATED_MILLIS, currentMillis);
+    editor.apply();
+
+    LogUtil.i(
+        "DialerDatabaseHelper.updateSmartDialDatabase",
+        "%s update: %d contacts removed or replaced, rows: %d inserted, %d updated, %d deleted, "
+            + "prefixes: %d inserted, %d deleted, took %d ms",
+        isFullUpdate ? "full" : "incremental",
+        removedContactIds.size(),
+        stats.rowsInserted,
+        stats.rowsUpdated,
+        stats.rowsDeleted,
+        stats.prefixesInserted,
+        stats.prefixesDeleted,
+        System.currentTimeMillis() - currentMillis);
+
+    LogUtil.i("DialerDatabaseHelper.updateSmartDialDatabase", "broadcasting smart dial update");
+
+    // Notify content observers that smart dial database has been updated.
+    Intent intent = new Intent(ACTION_SMART_DIAL_UPDATED);
+    intent.setPackage(mContext.getPackageName());
+    mContext.sendBroadcast(intent);
+  }
+
+  private static void createSmartDialIndexes(SQLiteDatabase db) {
     /** Creates index on contact_id for fast JOIN operation. */
     db.execSQL(
         "CREATE INDEX IF NOT EXISTS smartdial_contact_id_index ON "
@@ -811,148 +1137,228 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
             + " ("
             + PrefixColumns.CONTACT_ID
             + ");");
+  }
 
-    if (DEBUG) {
-      stopWatch.lap(TAG + "Finished recreating index");
+  /**
+   * Brings the in-memory prefix trie in line with the smartdial table. Contacts removed by this
+   * update are dropped and rows inserted by it are added. The trie is rebuilt from the whole table
+   * if there is none yet, if the dialpad map changed, or if too many removed contacts piled up.
+   *
+   * @param db Database pointer to the smartdial database.
+   * @param smartDialTrie Trie in use before this update, or null if there is none.
+   * @param removedContactIds Ids of the contacts removed from the smartdial table by this update.
+   * @param currentMillis Update timestamp of the rows inserted by this update.
+   * @return The updated trie.
+   */
+  private SmartDialTrie updateSmartDialTrie(
+      SQLiteDatabase db,
+      @Nullable SmartDialTrie smartDialTrie,
+      Set<Long> removedContactIds,
+      Long currentMillis) {
+    final String selection;
+    if (smartDialTrie == null
+        || smartDialTrie.getMap() != SmartDialPrefix.getMap()
+        || smartDialTrie.getRemovedContactCount() > smartDialTrie.getContactCount()) {
+      smartDialTrie = new SmartDialTrie(SmartDialPrefix.getMap());
+      selection = null;
+    } else {
+      for (Long contactId : removedContactIds) {
+        smartDialTrie.removeContact(contactId);
+      }
+      selection = SmartDialDbColumns.LAST_SMARTDIAL_UPDATE_TIME + " = " + currentMillis;
     }
 
-    /** Updates the database index statistics. */
-    db.execSQL("ANALYZE " + Tables.SMARTDIAL_TABLE);
-    db.execSQL("ANALYZE " + Tables.PREFIX_TABLE);
-    db.execSQL("ANALYZE smartdial_contact_id_index");
-    db.execSQL("ANALYZE smartdial_last_update_index");
-    db.execSQL("ANALYZE nameprefix_index");
-    db.execSQL("ANALYZE nameprefix_contact_id_index");
-    if (DEBUG) {
-      stopWatch.stopAndLog(TAG + "Finished updating index stats", 0);
+    final Cursor cursor =
+        db.query(
+            Tables.SMARTDIAL_TABLE,
+            new String[] {
+              SmartDialDbColumns.CONTACT_ID,
+              SmartDialDbColumns.DISPLAY_NAME_PRIMARY,
+              SmartDialDbColumns.NUMBER
+            },
+            selection,
+            null,
+            null,
+            null,
+            SmartDialDbColumns.CONTACT_ID);
+    if (cursor == null) {
+      return null;
+    }
+    try {
+      long previousContactId = -1;
+      while (cursor.moveToNext()) {
+        final long contactId = cursor.getLong(0);
+        /** Rows are sorted by contact, name prefixes are added once per contact. */
+        if (contactId != previousContactId) {
+          smartDialTrie.addName(contactId, cursor.getString(1));
+          previousContactId = contactId;
+        }
+        smartDialTrie.addNumber(contactId, cursor.getString(2));
+      }
+    } finally {
+      cursor.close();
     }
 
-    final SharedPreferences.Editor editor = databaseLastUpdateSharedPref.edit();
-    editor.putLong(LAST_UPDATED_MILLIS, currentMillis);
-    editor.apply();
-
-    LogUtil.i("DialerDatabaseHelper.updateSmartDialDatabase", "broadcasting smart dial update");
+    final int contactCount = smartDialTrie.getContactCount();
+    if (contactCount > 0) {
+      LogUtil.i(
+          "DialerDatabaseHelper.updateSmartDialTrie",
+          "%d contacts, %d bytes per 1000 contacts",
+          contactCount,
+          smartDialTrie.getMemoryFootprintBytes() * 1000 / contactCount);
+    }
+    return smartDialTrie;
+  }
 
-    // Notify content observers that smart dial database has been updated.
-    Intent intent = new Intent(ACTION_SMART_DIAL_UPDATED);
-    intent.setPackage(mContext.getPackageName());
-    mContext.sendBroadcast(intent);
+  /**
+   * Returns a list of candidate contacts where the query is a prefix of the dialpad index of the
+   * contact's name or phone number.
+   *
+   * @param query The prefix of a contact's dialpad index.
+   * @return A list of top candidate contacts that will be suggested to user to match their input.
+   */
+  @WorkerThread
+  public ArrayList<ContactNumber> getLooseMatches(String query, SmartDialNameMatcher nameMatcher) {
+    return getLooseMatches(query, nameMatcher, null);
   }
 
   /**
    * Returns a list of candidate contacts where the query is a prefix of the dialpad index of the
    * contact's name or phone number.
    *
+   * <p>When the query extends the query of the previous call, the rows matched by the previous
+   * call are filtered again instead of querying the database.
+   *
    * @param query The prefix of a contact's dialpad index.
+   * @param cancellationSignal Signal to abort the lookup once its result is no longer needed.
    * @return A list of top candidate contacts that will be suggested to user to match their input.
+   * @throws OperationCanceledException if the lookup was canceled through cancellationSignal.
    */
   @WorkerThread
   public synchronized ArrayList<ContactNumber> getLooseMatches(
-      String query, SmartDialNameMatcher nameMatcher) {
-    final SQLiteDatabase db = getReadableDatabase();
+      String query,
+      SmartDialNameMatcher nameMatcher,
+      @Nullable CancellationSignal cancellationSignal) {
+    final StopWatch stopWatch = DEBUG ? StopWatch.start(":Name Prefix query") : null;
 
-    /** Uses SQL query wildcard '%' to represent prefix matching. */
-//    final String looseQuery = query + "%";
+    final LooseMatchCache cache = mLooseMatchCache;
 
     final ArrayList<ContactNumber> result = new ArrayList<>();
+    final LooseMatchCollector collector = new LooseMatchCollector(query, nameMatcher, result);
 
-    final StopWatch stopWatch = DEBUG ? StopWatch.start(":Name Prefix query") : null;
-
-    final String currentTimeStamp = Long.toString(System.currentTimeMillis());
-
-    /** Queries the database to find contacts that have an index matching the query prefix. */
-    final Cursor cursor =
-        db.rawQuery(
-            "SELECT "
-                + SmartDialDbColumns.DATA_ID
-                + ", "
-                + SmartDialDbColumns.DISPLAY_NAME_PRIMARY
-                + ", "
-                + SmartDialDbColumns.PHOTO_ID
-                + ", "
-                + SmartDialDbColumns.NUMBER
-                + ", "
-                + SmartDialDbColumns.CONTACT_ID
-                + ", "
-                + SmartDialDbColumns.LOOKUP_KEY
-                + ", "
-                + SmartDialDbColumns.CARRIER_PRESENCE
-                + " FROM "
-                + Tables.SMARTDIAL_TABLE
-                + " ORDER BY "
-                + SmartDialSortingOrder.SORT_ORDER,
-            new String[] {currentTimeStamp});
-    if (cursor == null) {
-      return result;
-    }
-    try {
-      if (DEBUG) {
-        stopWatch.lap("Prefix query completed");
+    if (cache != null && !isMultiLanguageSearchEnabled() && cache.canRefine(query)) {
+      /** Every row matching the new query also matched the previous one. */
+      for (ContactNumber contact : cache.matches) {
+        if (cancellationSignal != null) {
+          cancellationSignal.throwIfCanceled();
+        }
+        collector.offer(contact);
       }
-
-      /** Gets the column ID from the cursor. */
-      final int columnDataId = 0;
-      final int columnDisplayNamePrimary = 1;
-      final int columnPhotoId = 2;
-      final int columnNumber = 3;
-      final int columnId = 4;
-      final int columnLookupKey = 5;
-      final int columnCarrierPresence = 6;
       if (DEBUG) {
-        stopWatch.lap("Found column IDs");
+        stopWatch.lap("Refined " + cache.matches.size() + " cached matches");
       }
-
-      final Set<ContactMatch> duplicates = new HashSet<>();
-      int counter = 0;
-      if (DEBUG) {
-        stopWatch.lap("Moved cursor to start");
+    } else {
+      final Cursor cursor = queryLooseMatchCandidates(query, cancellationSignal);
+      if (cursor == null) {
+        return result;
       }
-      /** Iterates the cursor to find top contact suggestions without duplication. */
-      while ((cursor.moveToNext()) && (counter < MAX_ENTRIES)) {
-        final long dataID = cursor.getLong(columnDataId);
-        final String displayName = cursor.getString(columnDisplayNamePrimary);
-        final String phoneNumber = cursor.getString(columnNumber);
-        final long id = cursor.getLong(columnId);
-        final long photoId = cursor.getLong(columnPhotoId);
-        final String lookupKey = cursor.getString(columnLookupKey);
-        final int carrierPresence = cursor.getInt(columnCarrierPresence);
-
-        /**
-         * If a contact already exists and another phone number of the contact is being processed,
-         * skip the second instance.
-         */
-        final ContactMatch contactMatch = new ContactMatch(lookupKey, id);
-        if (duplicates.contains(contactMatch)) {
-          continue;
+      try {
+        if (DEBUG) {
+          stopWatch.lap("Prefix query completed");
         }
 
-        /**
-         * If the contact has either the name or number that matches the query, add to the result.
-         */
-        final boolean nameMatches = nameMatcher.matches(displayName);
-        final boolean numberMatches = (nameMatcher.matchesNumber(phoneNumber, query) != null);
-        if (nameMatches || numberMatches) {
-          /** If a contact has not been added, add it to the result and the hash set. */
-          duplicates.add(contactMatch);
-          result.add(
-              new ContactNumber(
-                  id, dataID, displayName, phoneNumber, lookupKey, photoId, carrierPresence));
-          counter++;
-          if (DEBUG) {
-            stopWatch.lap("Added one result: Name: " + displayName);
+        /** Iterates the cursor to find top contact suggestions without duplication. */
+        while (cursor.moveToNext() && !collector.isDone()) {
+          if (cancellationSignal != null) {
+            cancellationSignal.throwIfCanceled();
           }
+          collector.offer(
+              new ContactNumber(
+                  cursor.getLong(LooseMatchQuery.CONTACT_ID),
+                  cursor.getLong(LooseMatchQuery.DATA_ID),
+                  cursor.getString(LooseMatchQuery.DISPLAY_NAME_PRIMARY),
+                  cursor.getString(LooseMatchQuery.NUMBER),
+                  cursor.getString(LooseMatchQuery.LOOKUP_KEY),
+                  cursor.getLong(LooseMatchQuery.PHOTO_ID),
+                  cursor.getInt(LooseMatchQuery.CARRIER_PRESENCE)));
         }
+      } finally {
+        cursor.close();
       }
+    }
 
-      if (DEBUG) {
-        stopWatch.stopAndLog(TAG + "Finished loading cursor", 0);
-      }
-    } finally {
-      cursor.close();
+    mLooseMatchCache =
+        collector.matches != null && !TextUtils.isEmpty(query)
+            ? new LooseMatchCache(query, collector.matches)
+            : null;
+
+    if (DEBUG) {
+      stopWatch.stopAndLog(TAG + "Finished loading cursor", 0);
     }
     return result;
   }
 
+  /**
+   * Queries the smartdial table for rows that may match the query, sorted by {@link
+   * SmartDialSortingOrder#SORT_ORDER}. The multi-language matcher can match names that have no
+   * entry in the prefix table, so it still needs to look at every row.
+   */
+  private Cursor queryLooseMatchCandidates(
+      String query, @Nullable CancellationSignal cancellationSignal) {
+    final SQLiteDatabase db = getReadableDatabase();
+
+    /** Uses SQL query wildcard '%' to represent prefix matching. */
+    final String looseQuery = query + "%";
+
+    final String currentTimeStamp = Long.toString(System.currentTimeMillis());
+
+    if (isMultiLanguageSearchEnabled() || TextUtils.isEmpty(query)) {
+      return db.rawQuery(
+          LooseMatchQuery.SELECT_ALL + " ORDER BY " + SmartDialSortingOrder.SORT_ORDER,
+          new String[] {currentTimeStamp},
+          cancellationSignal);
+    }
+
+    /** Looks the prefix up in memory unless it would select a large part of the table anyway. */
+    final long[] contactIds =
+        mSmartDialTrie != null ? mSmartDialTrie.query(query, MAX_TRIE_CANDIDATES) : null;
+    if (contactIds != null) {
+      final StringBuilder contactIdList = new StringBuilder();
+      for (long contactId : contactIds) {
+        if (contactIdList.length() > 0) {
+          contactIdList.append(',');
+        }
+        contactIdList.append(contactId);
+      }
+      return db.rawQuery(
+          LooseMatchQuery.SELECT_ALL
+              + " WHERE "
+              + SmartDialDbColumns.CONTACT_ID
+              + " IN ("
+              + contactIdList
+              + ") OR "
+              + LooseMatchQuery.NORMALIZED_NUMBER
+              + " LIKE ?2"
+              + " ORDER BY "
+              + SmartDialSortingOrder.SORT_ORDER,
+          new String[] {currentTimeStamp, "%" + query + "%"},
+          cancellationSignal);
+    }
+    return db.rawQuery(
+        LooseMatchQuery.SELECT_ALL
+            + " WHERE "
+            + LooseMatchQuery.SELECT_PREFIX_OR_NUMBER_CLAUSE
+            + " ORDER BY "
+            + SmartDialSortingOrder.SORT_ORDER,
+        new String[] {currentTimeStamp, looseQuery, "%" + query + "%"},
+        cancellationSignal);
+  }
+
+  /** Returns true if name matching is delegated to the multi-language SmartMatch library. */
+  private boolean isMultiLanguageSearchEnabled() {
+    return mMultiMatchObject != null && mMultiMatchMethod != null;
+  }
+
   public interface Tables {
 
     /** Saves a list of numbers to be blocked. */
@@ -1096,6 +1502,66 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
         ContactsContract.DeletedContacts.CONTACT_DELETED_TIMESTAMP + " > ?";
   }
 
+  /** Query options for {@link #getLooseMatches(String, SmartDialNameMatcher)}. */
+  private interface LooseMatchQuery {
+
+    String SELECT_ALL =
+        "SELECT "
+            + SmartDialDbColumns.DATA_ID
+            + ", "
+            + SmartDialDbColumns.DISPLAY_NAME_PRIMARY
+            + ", "
+            + SmartDialDbColumns.PHOTO_ID
+            + ", "
+            + SmartDialDbColumns.NUMBER
+            + ", "
+            + SmartDialDbColumns.CONTACT_ID
+            + ", "
+            + SmartDialDbColumns.LOOKUP_KEY
+            + ", "
+            + SmartDialDbColumns.CARRIER_PRESENCE
+            + " FROM "
+            + Tables.SMARTDIAL_TABLE;
+
+    int DATA_ID = 0;
+    int DISPLAY_NAME_PRIMARY = 1;
+    int PHOTO_ID = 2;
+    int NUMBER = 3;
+    int CONTACT_ID = 4;
+    int LOOKUP_KEY = 5;
+    int CARRIER_PRESENCE = 6;
+
+    /**
+     * The phone number with the same formatting characters stripped as {@link
+     * SmartDialNameMatcher#matchesNumber(String, String)} does, so that a number matching anywhere
+     * in the middle is still selected.
+     */
+    String NORMALIZED_NUMBER =
+        "replace(replace(replace(replace(replace(replace(replace(replace(replace(replace("
+            + SmartDialDbColumns.NUMBER
+            + ", '+', ''), '*', ''), '#', ''), '-', ''), '.', ''), '(', ''), ',', ''), ')', ''),"
+            + " '/', ''), ' ', '')";
+
+    /**
+     * Narrows the rows down to contacts that have a name or number prefix starting with ?2, or a
+     * number containing ?3. Rows selected here are still checked by the name matcher.
+     */
+    String SELECT_PREFIX_OR_NUMBER_CLAUSE =
+        SmartDialDbColumns.CONTACT_ID
+            + " IN (SELECT "
+            + PrefixColumns.CONTACT_ID
+            + " FROM "
+            + Tables.PREFIX_TABLE
+            + " WHERE "
+            + Tables.PREFIX_TABLE
+            + "."
+            + PrefixColumns.PREFIX
+            + " LIKE ?2)"
+            + " OR "
+            + NORMALIZED_NUMBER
+            + " LIKE ?3";
+  }
+
   /**
    * Gets the sorting order for the smartdial table. This computes a SQL "ORDER BY" argument by
    * composing contact status and recent contact details together.
@@ -1239,6 +1705,17 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
         return sSingleton;
   }
 
+  /** Counts of the rows touched by a smart dial database update. */
+  @VisibleForTesting
+  static class SmartDialUpdateStats {
+
+    int rowsInserted;
+    int rowsUpdated;
+    int rowsDeleted;
+    int prefixesInserted;
+    int prefixesDeleted;
+  }
+
   /** Data format for finding duplicated contacts. */
   private static class ContactMatch {
 
@@ -1268,6 +1745,82 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
     }
   }
 
+  /** Rows matching a query, kept to answer queries extending it. */
+  private static class LooseMatchCache {
+
+    private final String query;
+    private final ArrayList<ContactNumber> matches;
+
+    LooseMatchCache(String query, ArrayList<ContactNumber> matches) {
+      this.query = query;
+      this.matches = matches;
+    }
+
+    /**
+     * Returns true if the cached rows contain every row matching the given query. Typing another
+     * digit can only narrow down the name and number matches.
+     */
+    boolean canRefine(String newQuery) {
+      return newQuery.startsWith(query);
+    }
+  }
+
+  /**
+   * Runs the name and number matchers on rows in sorted order and keeps the first {@link
+   * #MAX_ENTRIES} distinct contacts as the result. Every matching row, including the ones skipped
+   * as duplicates, is kept as well until there are more than {@link #MAX_CACHED_MATCHES} of them.
+   */
+  private static class LooseMatchCollector {
+
+    private final String query;
+    private final SmartDialNameMatcher nameMatcher;
+    private final ArrayList<ContactNumber> result;
+    private final Set<ContactMatch> duplicates = new HashSet<>();
+    /** All rows matched so far, or null once there are too many of them to cache. */
+    private ArrayList<ContactNumber> matches = new ArrayList<>();
+
+    LooseMatchCollector(
+        String query, SmartDialNameMatcher nameMatcher, ArrayList<ContactNumber> result) {
+      this.query = query;
+      this.nameMatcher = nameMatcher;
+      this.result = result;
+    }
+
+    /** Returns true if no further row can change the result or the cached matches. */
+    boolean isDone() {
+      return matches == null && result.size() >= MAX_ENTRIES;
+    }
+
+    void offer(ContactNumber contact) {
+      /**
+       * If the contact has either the name or number that matches the query, add to the result.
+       */
+      final boolean nameMatches = nameMatcher.matches(contact.displayName);
+      final boolean numberMatches =
+          (nameMatcher.matchesNumber(contact.phoneNumber, query) != null);
+      if (!nameMatches && !numberMatches) {
+        return;
+      }
+
+      if (matches != null) {
+        if (matches.size() < MAX_CACHED_MATCHES) {
+          matches.add(contact);
+        } else {
+          matches = null;
+        }
+      }
+
+      /**
+       * If a contact already exists and another phone number of the contact is being processed,
+       * skip the second instance.
+       */
+      if (result.size() < MAX_ENTRIES
+          && duplicates.add(new ContactMatch(contact.lookupKey, contact.id))) {
+        result.add(contact);
+      }
+    }
+  }
+
   private class SmartDialUpdateAsyncTask extends AsyncTask<Object, Object, Object> {
 
     @Override
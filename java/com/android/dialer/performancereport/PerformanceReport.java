@@ -19,6 +19,8 @@ package com.android.dialer.performancereport;
 import android.os.SystemClock;
 import android.support.annotation.Nullable;
 import android.support.v7.widget.RecyclerView;
+import android.view.Choreographer;
+import android.view.Display;
 import android.widget.AbsListView;
 import com.android.dialer.common.LogUtil;
 import com.android.dialer.logging.UiAction;
@@ -31,6 +33,13 @@ public final class PerformanceReport {
 
   private static final long INVALID_TIME = -1;
   private static final long ACTIVE_DURATION = TimeUnit.MINUTES.toMillis(5);
+  /** Refresh rate assumed when the display of the list isn't known. */
+  private static final float DEFAULT_REFRESH_RATE = 60;
+  /**
+   * Frames drawn more than this many display frame intervals after the previous one while scrolling
+   * are counted as janky, as at least one vsync was skipped.
+   */
+  private static final float JANKY_FRAME_INTERVALS = 1.5f;
 
   private static final List<UiAction.Type> actions = new ArrayList<>();
   private static final List<Long> actionTimestamps = new ArrayList<>();
@@ -42,6 +51,11 @@ public final class PerformanceReport {
           if (newState == RecyclerView.SCROLL_STATE_SETTLING) {
             PerformanceReport.recordClick(UiAction.Type.SCROLL);
           }
+          if (newState == RecyclerView.SCROLL_STATE_IDLE) {
+            stopScrollFrameTracking();
+          } else {
+            startScrollFrameTracking(recyclerView);
+          }
           super.onScrollStateChanged(recyclerView, newState);
         }
       };
@@ -53,6 +67,33 @@ public final class PerformanceReport {
 
   @Nullable private static UiAction.Type ignoreActionOnce = null;
 
+  private static boolean trackingScrollFrames = false;
+  private static long lastScrollFrameTimeNanos = INVALID_TIME;
+  private static long jankyFrameNanos;
+  private static int scrollFrameCount = 0;
+  private static int jankyScrollFrameCount = 0;
+  private static int bindToContentCount = 0;
+  private static long bindToContentTotalMillis = 0;
+  private static long bindToContentMaxMillis = 0;
+
+  private static final Choreographer.FrameCallback scrollFrameCallback =
+      new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+          if (!trackingScrollFrames) {
+            return;
+          }
+          if (lastScrollFrameTimeNanos != INVALID_TIME) {
+            scrollFrameCount++;
+            if (frameTimeNanos - lastScrollFrameTimeNanos > jankyFrameNanos) {
+              jankyScrollFrameCount++;
+            }
+          }
+          lastScrollFrameTimeNanos = frameTimeNanos;
+          Choreographer.getInstance().postFrameCallback(this);
+        }
+      };
+
   private static int startingTabIndex = -1; // UNKNOWN
 
   private PerformanceReport() {}
@@ -66,6 +107,11 @@ public final class PerformanceReport {
       actions.clear();
       actionTimestamps.clear();
     }
+    scrollFrameCount = 0;
+    jankyScrollFrameCount = 0;
+    bindToContentCount = 0;
+    bindToContentTotalMillis = 0;
+    bindToContentMaxMillis = 0;
     recording = true;
   }
 
@@ -116,6 +162,46 @@ public final class PerformanceReport {
     recyclerView.addOnScrollListener(recordOnScrollListener);
   }
 
+  /**
+   * Records the time between binding a list item and showing its content, which was loaded in the
+   * background.
+   */
+  public static void recordBindToContentLatency(long latencyMillis) {
+    if (!recording) {
+      return;
+    }
+    bindToContentCount++;
+    bindToContentTotalMillis += latencyMillis;
+    bindToContentMaxMillis = Math.max(bindToContentMaxMillis, latencyMillis);
+  }
+
+  private static void startScrollFrameTracking(RecyclerView recyclerView) {
+    if (!recording || trackingScrollFrames) {
+      return;
+    }
+    Display display = recyclerView.getDisplay();
+    float refreshRate = display == null ? DEFAULT_REFRESH_RATE : display.getRefreshRate();
+    jankyFrameNanos = (long) (JANKY_FRAME_INTERVALS * TimeUnit.SECONDS.toNanos(1) / refreshRate);
+    trackingScrollFrames = true;
+    lastScrollFrameTimeNanos = INVALID_TIME;
+    Choreographer.getInstance().postFrameCallback(scrollFrameCallback);
+  }
+
+  private static void stopScrollFrameTracking() {
+    if (!trackingScrollFrames) {
+      return;
+    }
+    trackingScrollFrames = false;
+    Choreographer.getInstance().removeFrameCallback(scrollFrameCallback);
+    LogUtil.i(
+        "PerformanceReport.stopScrollFrameTracking",
+        "janky frames: %d/%d, bind to content latency: average %d ms, max %d ms",
+        jankyScrollFrameCount,
+        scrollFrameCount,
+        bindToContentCount == 0 ? 0 : bindToContentTotalMillis / bindToContentCount,
+        bindToContentMaxMillis);
+  }
+
   public static boolean isRecording() {
     return recording;
   }
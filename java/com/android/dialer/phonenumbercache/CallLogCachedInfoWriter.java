@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.phonenumbercache;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.database.sqlite.SQLiteFullException;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.RemoteException;
+import android.provider.CallLog;
+import android.provider.CallLog.Calls;
+import android.support.annotation.AnyThread;
+import android.support.annotation.MainThread;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+import com.android.dialer.common.Assert;
+import com.android.dialer.common.LogUtil;
+import com.android.dialer.telecom.TelecomUtil;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes the contact info cached in the call log in batches, for {@link
+ * ContactInfoHelper#updateCallLogContactInfo(String, String, ContactInfo, ContactInfo)}.
+ *
+ * <p>Each write to the call log makes the call log reload. Updates are therefore kept per number
+ * and country ISO, newer values replacing older ones, and written together {@link
+ * #FLUSH_DELAY_MILLIS} after the first one, or once the list stops scrolling if it is scrolling
+ * then. Changes to the call log notified while a batch is written are expected to be caused by it,
+ * and {@link Listener}s are told once they are over so they reload the call log only once.
+ */
+public final class CallLogCachedInfoWriter {
+
+  private static final long FLUSH_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(1);
+
+  /** How long after a batch is written call log changes are still attributed to it. */
+  private static final long SELF_CHANGE_WINDOW_MILLIS = 300;
+
+  private static CallLogCachedInfoWriter instance;
+
+  private final Context appContext;
+  private final Handler mainHandler = new Handler(Looper.getMainLooper());
+  private final ScheduledExecutorService executor =
+      Executors.newSingleThreadScheduledExecutor(
+          new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+              Thread thread = new Thread(runnable, "CallLogCachedInfoWriter");
+              thread.setPriority(4); // Corresponds to Process.THREAD_PRIORITY_BACKGROUND
+              return thread;
+            }
+          });
+
+  /** Pending updates by country ISO and number. Guarded by this. */
+  private final Map<String, Update> pendingUpdates = new ArrayMap<>();
+
+  /** The scheduled flush, or null. Guarded by this. */
+  @Nullable private ScheduledFuture<?> scheduledFlush;
+
+  /** Whether a list showing the call log is scrolling. Guarded by this. */
+  private boolean scrolling;
+
+  /** Batches being written or whose changes may still be notified. Only used on the main thread. */
+  private int writingBatchCount;
+
+  private final Set<Listener> listeners = new ArraySet<>();
+
+  /** Listener for the end of the changes to the call log caused by a batch. */
+  public interface Listener {
+
+    /** Called on the main thread once the changes caused by a batch are over. */
+    void onCachedInfoWritten();
+  }
+
+  private static final class Update {
+    final String number;
+    @Nullable final String countryIso;
+    final ContentValues values;
+
+    Update(String number, @Nullable String countryIso, ContentValues values) {
+      this.number = number;
+      this.countryIso = countryIso;
+      this.values = values;
+    }
+  }
+
+  private CallLogCachedInfoWriter(Context appContext) {
+    this.appContext = appContext;
+  }
+
+  public static synchronized CallLogCachedInfoWriter get(@NonNull Context context) {
+    if (instance == null) {
+      instance = new CallLogCachedInfoWriter(context.getApplicationContext());
+    }
+    return instance;
+  }
+
+  /**
+   * Queues writing {@code values} to the calls with the number and country ISO. Values queued
+   * earlier for the same calls which are not written yet are replaced.
+   */
+  @AnyThread
+  void update(String number, @Nullable String countryIso, ContentValues values) {
+    String key = countryIso + "|" + number;
+    synchronized (this) {
+      Update pending = pendingUpdates.get(key);
+      if (pending != null) {
+        pending.values.putAll(values);
+      } else {
+        pendingUpdates.put(key, new Update(number, countryIso, new ContentValues(values)));
+      }
+      if (scheduledFlush == null && !scrolling) {
+        scheduleFlush(FLUSH_DELAY_MILLIS);
+      }
+    }
+  }
+
+  /**
+   * Sets whether a list showing the call log is scrolling. Pending updates are written once it
+   * stops.
+   */
+  @MainThread
+  public void setScrolling(boolean scrolling) {
+    synchronized (this) {
+      this.scrolling = scrolling;
+      if (scrolling) {
+        if (scheduledFlush != null) {
+          scheduledFlush.cancel(false);
+          scheduledFlush = null;
+        }
+      } else if (scheduledFlush == null && !pendingUpdates.isEmpty()) {
+        scheduleFlush(0);
+      }
+    }
+  }
+
+  /**
+   * Returns whether a batch is being written, in which case changes to the call log are expected
+   * to be caused by it and {@link Listener#onCachedInfoWritten()} will be called once it is done.
+   */
+  @MainThread
+  public boolean isWriting() {
+    Assert.isMainThread();
+    return writingBatchCount > 0;
+  }
+
+  @MainThread
+  public void addListener(Listener listener) {
+    Assert.isMainThread();
+    listeners.add(listener);
+  }
+
+  @MainThread
+  public void removeListener(Listener listener) {
+    Assert.isMainThread();
+    listeners.remove(listener);
+  }
+
+  /** Must be called with the lock held. */
+  private void scheduleFlush(long delayMillis) {
+    scheduledFlush = executor.schedule(this::flush, delayMillis, TimeUnit.MILLISECONDS);
+  }
+
+  @WorkerThread
+  private void flush() {
+    ArrayList<Update> updates;
+    synchronized (this) {
+      scheduledFlush = null;
+      if (pendingUpdates.isEmpty()) {
+        return;
+      }
+      updates = new ArrayList<>(pendingUpdates.values());
+      pendingUpdates.clear();
+    }
+    ArrayList<ContentProviderOperation> operations = new ArrayList<>(updates.size());
+    for (Update update : updates) {
+      ContentProviderOperation.Builder operation =
+          ContentProviderOperation.newUpdate(TelecomUtil.getCallLogUri(appContext))
+              .withValues(update.values);
+      if (update.countryIso == null) {
+        operation.withSelection(
+            Calls.NUMBER + " = ? AND " + Calls.COUNTRY_ISO + " IS NULL",
+            new String[] {update.number});
+      } else {
+        operation.withSelection(
+            Calls.NUMBER + " = ? AND " + Calls.COUNTRY_ISO + " = ?",
+            new String[] {update.number, update.countryIso});
+      }
+      operations.add(operation.build());
+    }
+
+    mainHandler.post(() -> writingBatchCount++);
+    try {
+      appContext.getContentResolver().applyBatch(CallLog.AUTHORITY, operations);
+      LogUtil.i("CallLogCachedInfoWriter.flush", "updated %d numbers", operations.size());
+    } catch (RemoteException | OperationApplicationException | SQLiteFullException e) {
+      LogUtil.e("CallLogCachedInfoWriter.flush", "unable to update contact info in call log", e);
+    } finally {
+      mainHandler.postDelayed(this::onBatchWritten, SELF_CHANGE_WINDOW_MILLIS);
+    }
+  }
+
+  @MainThread
+  private void onBatchWritten() {
+    writingBatchCount--;
+    if (writingBatchCount > 0) {
+      return;
+    }
+    for (Listener listener : new ArrayList<>(listeners)) {
+      listener.onCachedInfoWritten();
+    }
+  }
+}
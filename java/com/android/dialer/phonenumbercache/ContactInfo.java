@@ -69,6 +69,30 @@ public class ContactInfo {
   /** @see android.provider.ContactsContract.CommonDataKinds.Phone#CARRIER_PRESENCE */
   public int carrierPresence;
 
+  /** Returns a new {@link ContactInfo} with the same values as this one. */
+  public ContactInfo copy() {
+    ContactInfo copy = new ContactInfo();
+    copy.lookupUri = lookupUri;
+    copy.lookupKey = lookupKey;
+    copy.name = name;
+    copy.nameAlternative = nameAlternative;
+    copy.type = type;
+    copy.label = label;
+    copy.number = number;
+    copy.formattedNumber = formattedNumber;
+    copy.geoDescription = geoDescription;
+    copy.normalizedNumber = normalizedNumber;
+    copy.photoId = photoId;
+    copy.photoUri = photoUri;
+    copy.isBadData = isBadData;
+    copy.objectId = objectId;
+    copy.userType = userType;
+    copy.sourceType = sourceType;
+    copy.contactExists = contactExists;
+    copy.carrierPresence = carrierPresence;
+    return copy;
+  }
+
   @Override
   public int hashCode() {
     // Uses only name and contactUri to determine hashcode.
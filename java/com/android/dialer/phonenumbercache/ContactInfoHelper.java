@@ -19,7 +19,6 @@ import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
-import android.database.sqlite.SQLiteFullException;
 import android.net.Uri;
 import android.os.Build.VERSION;
 import android.os.Build.VERSION_CODES;
@@ -46,7 +45,6 @@ import com.android.dialer.oem.CequintCallerIdManager;
 import com.android.dialer.oem.CequintCallerIdManager.CequintCallerIdContact;
 import com.android.dialer.phonenumbercache.CachedNumberLookupService.CachedContactInfo;
 import com.android.dialer.phonenumberutil.PhoneNumberHelper;
-import com.android.dialer.telecom.TelecomUtil;
 import com.android.dialer.util.PermissionsUtil;
 import java.util.ArrayList;
 import java.util.List;
@@ -203,9 +201,23 @@ public class ContactInfoHelper {
     return info;
   }
 
+  /**
+   * Returns the contact information for the given number from the default directory, or from the
+   * {@link NumberLookupCache} if the number was looked up recently.
+   *
+   * @see #lookupNumber(String, String, long)
+   */
   @Nullable
   public ContactInfo lookupNumber(String number, String countryIso) {
-    return lookupNumber(number, countryIso, -1);
+    NumberLookupCache numberLookupCache = NumberLookupCache.get(mContext);
+    ContactInfo cachedInfo = numberLookupCache.getCachedContactInfo(number, countryIso);
+    if (cachedInfo != null) {
+      return cachedInfo;
+    }
+    long generation = numberLookupCache.getGeneration();
+    ContactInfo info = lookupNumber(number, countryIso, -1);
+    numberLookupCache.put(number, countryIso, info, generation);
+    return info;
   }
 
   /**
@@ -278,10 +290,13 @@ public class ContactInfoHelper {
    */
   public ContactInfo lookupNumberInRemoteDirectory(String number, String countryIso) {
     if (mCachedNumberLookupService != null) {
+      long generation = NumberLookupCache.get(mContext).getGeneration();
       List<Long> remoteDirectories = getRemoteDirectories(mContext);
       for (long directoryId : remoteDirectories) {
         ContactInfo contactInfo = lookupNumber(number, countryIso, directoryId);
         if (hasName(contactInfo)) {
+          // Replaces the entry of the local lookup which found no name.
+          NumberLookupCache.get(mContext).put(number, countryIso, contactInfo, generation);
           return contactInfo;
         }
       }
@@ -561,27 +576,8 @@ public class ContactInfoHelper {
       return;
     }
 
-    try {
-      if (countryIso == null) {
-        mContext
-            .getContentResolver()
-            .update(
-                TelecomUtil.getCallLogUri(mContext),
-                values,
-                Calls.NUMBER + " = ? AND " + Calls.COUNTRY_ISO + " IS NULL",
-                new String[] {number});
-      } else {
-        mContext
-            .getContentResolver()
-            .update(
-                TelecomUtil.getCallLogUri(mContext),
-                values,
-                Calls.NUMBER + " = ? AND " + Calls.COUNTRY_ISO + " = ?",
-                new String[] {number, countryIso});
-      }
-    } catch (SQLiteFullException e) {
-      LogUtil.e(TAG, "Unable to update contact info in call log db", e);
-    }
+    // Written in batches, as each write makes the call log reload.
+    CallLogCachedInfoWriter.get(mContext).update(number, countryIso, values);
   }
 
   public void updateCachedNumberLookupService(ContactInfo updatedInfo) {
@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.phonenumbercache;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.os.SystemClock;
+import android.provider.ContactsContract;
+import android.support.annotation.AnyThread;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+import android.telephony.PhoneNumberUtils;
+import android.text.TextUtils;
+import android.util.LruCache;
+import com.android.dialer.common.LogUtil;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Process-wide cache of the results of {@link ContactInfoHelper#lookupNumber(String, String)},
+ * shared by the call log and the in call UI so that a number that was already looked up by one of
+ * them can be shown by the other without querying the contacts provider again.
+ *
+ * <p>Entries are keyed on the E164 representation of the number when it has one, and the least
+ * recently used entries are evicted once {@link #MAX_ENTRIES} is reached. How long an entry is
+ * valid depends on where it came from, see {@link #getTimeToLiveMillis(ContactInfo)}. All entries
+ * are dropped when the contacts provider reports a change.
+ */
+public final class NumberLookupCache {
+
+  @VisibleForTesting static final int MAX_ENTRIES = 500;
+
+  /** Contacts found in the default directory; changes to those invalidate the cache anyway. */
+  private static final long LOCAL_CONTACT_TTL_MILLIS = TimeUnit.MINUTES.toMillis(30);
+
+  /** Contacts found in a remote directory, which doesn't notify us of changes. */
+  private static final long DIRECTORY_CONTACT_TTL_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+  /** Contacts found by the {@link CachedNumberLookupService}, which is itself a cache. */
+  private static final long CACHED_LOOKUP_SERVICE_TTL_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+  /** Numbers which didn't match any contact. */
+  private static final long NO_CONTACT_TTL_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+  private static NumberLookupCache instance;
+
+  private final LruCache<String, Entry> entries = new LruCache<>(MAX_ENTRIES);
+
+  /** Incremented whenever the cache is cleared. Guarded by this. */
+  private long generation;
+
+  @VisibleForTesting
+  NumberLookupCache() {}
+
+  /**
+   * Returns the cache of this process, which is cleared whenever the contacts provider reports a
+   * change.
+   */
+  public static synchronized NumberLookupCache get(@NonNull Context context) {
+    if (instance == null) {
+      instance = new NumberLookupCache();
+      instance.registerContactsObserver(context.getApplicationContext());
+    }
+    return instance;
+  }
+
+  /**
+   * Returns a copy of the cached contact info for the number, or null if there is none or it has
+   * expired.
+   */
+  @AnyThread
+  @Nullable
+  public ContactInfo getCachedContactInfo(String number, String countryIso) {
+    String key = getKey(number, countryIso);
+    if (key == null) {
+      return null;
+    }
+    Entry entry = entries.get(key);
+    if (entry == null) {
+      return null;
+    }
+    if (entry.expirationMillis < SystemClock.elapsedRealtime()) {
+      entries.remove(key);
+      return null;
+    }
+    return entry.contactInfo.copy();
+  }
+
+  /**
+   * Returns the current generation of the cache, which must be passed to {@link #put(String,
+   * String, ContactInfo, long)} after a lookup. Taking it before the lookup starts ensures that
+   * results read before the contacts changed are not cached.
+   */
+  @AnyThread
+  public synchronized long getGeneration() {
+    return generation;
+  }
+
+  /**
+   * Caches a copy of the result of looking up the number, unless the cache was cleared since
+   * {@code generation} was obtained.
+   */
+  @AnyThread
+  public void put(String number, String countryIso, ContactInfo contactInfo, long generation) {
+    String key = getKey(number, countryIso);
+    if (key == null || contactInfo == null || contactInfo == ContactInfo.EMPTY) {
+      return;
+    }
+    Entry entry =
+        new Entry(
+            contactInfo.copy(),
+            SystemClock.elapsedRealtime() + getTimeToLiveMillis(contactInfo));
+    synchronized (this) {
+      if (generation != this.generation) {
+        return;
+      }
+      entries.put(key, entry);
+    }
+  }
+
+  /** Removes all entries, for example because contacts changed. */
+  @AnyThread
+  public void clear() {
+    synchronized (this) {
+      generation++;
+      entries.evictAll();
+    }
+  }
+
+  private void registerContactsObserver(Context appContext) {
+    try {
+      appContext
+          .getContentResolver()
+          .registerContentObserver(
+              ContactsContract.AUTHORITY_URI,
+              true,
+              new ContentObserver(null) {
+                @Override
+                public void onChange(boolean selfChange) {
+                  LogUtil.i("NumberLookupCache.onChange", "contacts changed, clearing cache");
+                  clear();
+                }
+              });
+    } catch (SecurityException e) {
+      // Without the observer entries only expire.
+      LogUtil.e("NumberLookupCache.registerContactsObserver", "unable to register observer", e);
+    }
+  }
+
+  private static long getTimeToLiveMillis(ContactInfo contactInfo) {
+    if (TextUtils.isEmpty(contactInfo.name)) {
+      return NO_CONTACT_TTL_MILLIS;
+    }
+    switch (contactInfo.sourceType) {
+      case SOURCE_TYPE_DIRECTORY:
+        return LOCAL_CONTACT_TTL_MILLIS;
+      case SOURCE_TYPE_EXTENDED:
+        return DIRECTORY_CONTACT_TTL_MILLIS;
+      default:
+        return CACHED_LOOKUP_SERVICE_TTL_MILLIS;
+    }
+  }
+
+  @Nullable
+  private static String getKey(String number, String countryIso) {
+    if (TextUtils.isEmpty(number)) {
+      return null;
+    }
+    String e164 = PhoneNumberUtils.formatNumberToE164(number, countryIso);
+    return e164 != null ? e164 : number;
+  }
+
+  private static final class Entry {
+    final ContactInfo contactInfo;
+    final long expirationMillis;
+
+    Entry(ContactInfo contactInfo, long expirationMillis) {
+      this.contactInfo = contactInfo;
+      this.expirationMillis = expirationMillis;
+    }
+  }
+}
@@ -24,6 +24,7 @@ import com.android.dialer.database.DialerDatabaseHelper;
 import com.android.dialer.smartdial.SmartDialPrefix.PhoneNumberTokens;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Arrays;
 import android.util.Log;
 
 /**
@@ -58,6 +59,24 @@ public class SmartDialNameMatcher {
   // Controls whether to treat an empty query as a match (with anything).
   private boolean mShouldMatchEmptyQuery = false;
 
+  // Whether matches reuse the buffers below instead of building masks and match positions.
+  private boolean mAllocationFree = false;
+
+  // Start and end positions of the last name match in allocation-free mode, stored in pairs.
+  private int[] mNamePositions = new int[8];
+  private int mNamePositionCount = -1;
+  private int mNameMaskLength;
+
+  // Last number match in allocation-free mode.
+  private final SmartDialMatchPosition mNumberMatchPosition = new SmartDialMatchPosition(0, 0);
+  private boolean mHasNumberMatch;
+  private int mNumberMaskLength;
+
+  // The phone number without formatting characters, and the position of each of its characters in
+  // the original phone number.
+  private char[] mNumberChars = new char[32];
+  private int[] mNumberCharPositions = new int[32];
+
   @VisibleForTesting
   public SmartDialNameMatcher(String query, Context context) {
      this(query, SmartDialPrefix.getMap(), context);
@@ -141,6 +160,9 @@ public class SmartDialNameMatcher {
     if (TextUtils.isEmpty(phoneNumber)) {
       return mShouldMatchEmptyQuery ? new SmartDialMatchPosition(0, 0) : null;
     }
+    if (mAllocationFree) {
+      return matchesNumberInBuffers(phoneNumber, query);
+    }
     StringBuilder builder = new StringBuilder();
     constructEmptyMask(builder, phoneNumber.length());
     mPhoneNumberMatchMask = builder.toString();
@@ -234,6 +256,49 @@ public class SmartDialNameMatcher {
         }
     }
 
+  /**
+   * Same as {@link #matchesNumberWithOffset(String, String, int)} with an offset of 0, but strips
+   * the formatting characters into reused buffers. The returned position is reused by the next
+   * call.
+   */
+  private SmartDialMatchPosition matchesNumberInBuffers(String phoneNumber, String query) {
+    final int length = phoneNumber.length();
+    mNumberMaskLength = length;
+    mHasNumberMatch = false;
+    if (TextUtils.isEmpty(query) || query.length() > length) {
+      return null;
+    }
+
+    if (mNumberChars.length < length) {
+      mNumberChars = new char[length];
+      mNumberCharPositions = new int[length];
+    }
+    int strippedLength = 0;
+    for (int i = 0; i < length; i++) {
+      final char ch = phoneNumber.charAt(i);
+      if (mSchar.indexOf(ch) == -1) {
+        mNumberChars[strippedLength] = ch;
+        mNumberCharPositions[strippedLength] = i;
+        strippedLength++;
+      }
+    }
+
+    final int queryLength = query.length();
+    for (int start = 0; start + queryLength <= strippedLength; start++) {
+      int matched = 0;
+      while (matched < queryLength && mNumberChars[start + matched] == query.charAt(matched)) {
+        matched++;
+      }
+      if (matched == queryLength) {
+        mNumberMatchPosition.start = mNumberCharPositions[start];
+        mNumberMatchPosition.end = mNumberCharPositions[start + queryLength - 1] + 1;
+        mHasNumberMatch = true;
+        return mNumberMatchPosition;
+      }
+    }
+    return null;
+  }
+
   /**
    * This function iterates through each token in the display name, trying to match the query to the
    * numeric equivalent of the token.
@@ -410,29 +475,168 @@ public class SmartDialNameMatcher {
     return false;
   }
 
+  /**
+   * Same as {@link #matchesCombination(String, String, ArrayList)}, but works on offsets into the
+   * display name and query instead of substrings, and writes match positions in pairs to {@link
+   * #mNamePositions} starting at positionIndex.
+   *
+   * @return The number of match positions written, 0 if the name does not match.
+   */
+  private int matchesCombinationInBuffers(
+      String displayName, int nameOffset, String query, int queryOffset, int positionIndex) {
+    final int nameLength = displayName.length();
+    final int queryLength = query.length();
+    mNameMaskLength = nameLength - nameOffset;
+
+    if (nameLength - nameOffset < queryLength - queryOffset) {
+      return 0;
+    }
+
+    if (queryLength == queryOffset) {
+      return 0;
+    }
+
+    int nameStart = nameOffset;
+    int queryStart = queryOffset;
+    int tokenStart = nameOffset;
+    int seperatorCount = 0;
+
+    // Number of positions of the partial token match found so far, stored at positionIndex
+    int partialCount = 0;
+    while (nameStart < nameLength && queryStart < queryLength) {
+      char ch = mMap.normalizeCharacter(displayName.charAt(nameStart));
+      if (mMap.isValidDialpadCharacter(ch)) {
+        if (mMap.isValidDialpadAlphabeticChar(ch)) {
+          ch = mMap.getDialpadNumericCharacter(ch);
+        }
+        if (ch != query.charAt(queryStart)) {
+          if (queryStart == queryOffset
+              || mMap.isValidDialpadCharacter(
+                  mMap.normalizeCharacter(displayName.charAt(nameStart - 1)))) {
+            while (nameStart < nameLength
+                && mMap.isValidDialpadCharacter(
+                    mMap.normalizeCharacter(displayName.charAt(nameStart)))) {
+              nameStart++;
+            }
+            nameStart++;
+          }
+
+          queryStart = queryOffset;
+          seperatorCount = 0;
+          tokenStart = nameStart;
+        } else {
+          if (queryStart == queryLength - 1) {
+            setNamePosition(
+                positionIndex, tokenStart, queryLength - queryOffset + tokenStart + seperatorCount);
+            return 1;
+          } else if (ALLOW_INITIAL_MATCH && queryStart - queryOffset < INITIAL_LENGTH_LIMIT) {
+            int j;
+            for (j = nameStart; j < nameLength; j++) {
+              if (!mMap.isValidDialpadCharacter(mMap.normalizeCharacter(displayName.charAt(j)))) {
+                break;
+              }
+            }
+            if (j < nameLength - 1) {
+              // The remainder writes its positions right after the one of this initial. It only
+              // writes anything if it matches, so an earlier partial match stays intact otherwise.
+              final int remainderCount =
+                  matchesCombinationInBuffers(
+                      displayName, j + 1, query, queryStart + 1, positionIndex + 1);
+              if (remainderCount > 0) {
+                setNamePosition(positionIndex, nameStart, nameStart + 1);
+                partialCount = remainderCount + 1;
+              }
+            }
+          }
+          nameStart++;
+          queryStart++;
+        }
+      } else {
+        nameStart++;
+        if (queryStart == queryOffset) {
+          tokenStart = nameStart;
+        } else {
+          seperatorCount++;
+        }
+      }
+    }
+    return partialCount;
+  }
+
+  private void setNamePosition(int positionIndex, int start, int end) {
+    if (mNamePositions.length < 2 * positionIndex + 2) {
+      mNamePositions = Arrays.copyOf(mNamePositions, 2 * positionIndex + 2);
+    }
+    mNamePositions[2 * positionIndex] = start;
+    mNamePositions[2 * positionIndex + 1] = end;
+  }
+
+  private static String buildMask(int length, int[] positions, int positionCount) {
+    final char[] mask = new char[length];
+    Arrays.fill(mask, '0');
+    for (int i = 0; i < positionCount; i++) {
+      Arrays.fill(mask, positions[2 * i], positions[2 * i + 1], '1');
+    }
+    return new String(mask);
+  }
+
   public boolean matches(String displayName) {
     mMatchPositions.clear();
     if (mMultiMatchObject != null && mMultiMatchMethod != null) {
+        mNamePositionCount = -1;
         return matchesMultiLanguage(displayName, mQuery, mMatchPositions);
+    } else if (mAllocationFree) {
+        mNamePositionCount = matchesCombinationInBuffers(displayName, 0, mQuery, 0, 0);
+        if (mNamePositionCount > 0) {
+          mNameMaskLength = displayName.length();
+        }
+        return mNamePositionCount > 0;
     } else {
+        mNamePositionCount = -1;
         return matchesCombination(displayName, mQuery, mMatchPositions);
     }
   }
 
   public ArrayList<SmartDialMatchPosition> getMatchPositions() {
+    if (mNamePositionCount >= 0) {
+      final ArrayList<SmartDialMatchPosition> positions = new ArrayList<>(mNamePositionCount);
+      for (int i = 0; i < mNamePositionCount; i++) {
+        positions.add(
+            new SmartDialMatchPosition(mNamePositions[2 * i], mNamePositions[2 * i + 1]));
+      }
+      return positions;
+    }
     // Return a clone of mMatchPositions so that the caller can use it without
     // worrying about it changing
     return new ArrayList<SmartDialMatchPosition>(mMatchPositions);
   }
 
   public String getNameMatchPositionsInString() {
+    if (mNamePositionCount >= 0) {
+      return buildMask(mNameMaskLength, mNamePositions, mNamePositionCount);
+    }
     return mNameMatchMask;
   }
 
   public String getNumberMatchPositionsInString() {
+    if (mAllocationFree) {
+      final int[] position = {mNumberMatchPosition.start, mNumberMatchPosition.end};
+      return buildMask(mNumberMaskLength, position, mHasNumberMatch ? 1 : 0);
+    }
     return mPhoneNumberMatchMask;
   }
 
+  /**
+   * Makes {@link #matches(String)} and {@link #matchesNumber(String, String)} reuse buffers of this
+   * matcher instead of allocating match positions and masks for every call, which matters when
+   * running them across thousands of rows. Results are the same, masks and match positions are
+   * only built when requested. A position returned by {@link #matchesNumber(String, String)} is
+   * reused by the next call in this mode.
+   */
+  public void setAllocationFree(boolean allocationFree) {
+    mAllocationFree = allocationFree;
+  }
+
   public String getQuery() {
     return mQuery;
   }
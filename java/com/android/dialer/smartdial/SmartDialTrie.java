@@ -0,0 +1,293 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.smartdial;
+
+import android.support.annotation.Nullable;
+import java.util.Arrays;
+
+/**
+ * In-memory index of the dialpad sequences that {@link SmartDialPrefix} generates for contact names
+ * and phone numbers. Any prefix of any of these sequences can be used to look up the contact,
+ * exactly like the prefix table of the smart dial database.
+ *
+ * <p>Nodes, keys and contacts are kept in primitive arrays so that the index does not create an
+ * object per node. Contacts are referred to by an int index into {@link #mContactIds}. Removed
+ * contacts are only marked as such; callers should rebuild the trie once {@link
+ * #getRemovedContactCount()} grows too large.
+ *
+ * <p>The sequences depend on the {@link SmartDialMap} in use, so a trie built with one map must be
+ * rebuilt when {@link SmartDialPrefix#getMap()} changes.
+ *
+ * <p>This class is not thread safe.
+ */
+public class SmartDialTrie {
+
+  private static final int NONE = -1;
+  private static final int ROOT = 0;
+  private static final int INITIAL_NODE_CAPACITY = 1024;
+  private static final int INITIAL_CONTACT_CAPACITY = 64;
+
+  private final SmartDialMap mMap;
+
+  /** Per node: first child, next sibling, the key character leading to it and its first entry. */
+  private int[] mFirstChild = new int[INITIAL_NODE_CAPACITY];
+
+  private int[] mNextSibling = new int[INITIAL_NODE_CAPACITY];
+  private char[] mNodeKey = new char[INITIAL_NODE_CAPACITY];
+  private int[] mFirstEntry = new int[INITIAL_NODE_CAPACITY];
+  private int mNodeCount;
+
+  /** Per entry: the contact whose sequence ends at the node, and the next entry of that node. */
+  private int[] mEntryContact = new int[INITIAL_NODE_CAPACITY];
+
+  private int[] mEntryNext = new int[INITIAL_NODE_CAPACITY];
+  private int mEntryCount;
+
+  /** Per contact: its contact id, whether it was removed, and the last query that visited it. */
+  private long[] mContactIds = new long[INITIAL_CONTACT_CAPACITY];
+
+  private boolean[] mRemoved = new boolean[INITIAL_CONTACT_CAPACITY];
+  private int[] mVisited = new int[INITIAL_CONTACT_CAPACITY];
+  private int mContactCount;
+  private int mRemovedCount;
+  private int mQueryGeneration;
+
+  /**
+   * Open addressing table from contact id to contact, twice the size of the contact arrays. Each
+   * slot holds a contact plus one, so that 0 marks an empty slot. Slots of removed contacts are
+   * kept until the table grows, and skipped by lookups.
+   */
+  private int[] mContactSlots = new int[INITIAL_CONTACT_CAPACITY * 2];
+
+  /** Reusable stack for walking a subtree. */
+  private int[] mStack = new int[INITIAL_CONTACT_CAPACITY];
+
+  public SmartDialTrie(SmartDialMap map) {
+    mMap = map;
+    mNodeCount = 1;
+    mFirstChild[ROOT] = NONE;
+    mNextSibling[ROOT] = NONE;
+    mFirstEntry[ROOT] = NONE;
+  }
+
+  /** Returns the map the dialpad sequences of this trie were generated with. */
+  public SmartDialMap getMap() {
+    return mMap;
+  }
+
+  /**
+   * Indexes the name prefixes of a contact. Should be called once per contact, even if the contact
+   * has several phone numbers.
+   */
+  public void addName(long contactId, String displayName) {
+    if (displayName == null) {
+      return;
+    }
+    final int contact = getOrAddContact(contactId);
+    for (String prefix : SmartDialPrefix.generateNamePrefixes(displayName)) {
+      insert(prefix, contact);
+    }
+  }
+
+  /** Indexes the number prefixes of one of the phone numbers of a contact. */
+  public void addNumber(long contactId, String number) {
+    final int contact = getOrAddContact(contactId);
+    for (String prefix : SmartDialPrefix.parseToNumberTokens(number)) {
+      insert(prefix, contact);
+    }
+  }
+
+  /** Removes a contact and all of its names and numbers from the results. */
+  public void removeContact(long contactId) {
+    final int contact = findContact(contactId);
+    if (contact != NONE) {
+      mRemoved[contact] = true;
+      mRemovedCount++;
+    }
+  }
+
+  /** Returns the number of contacts that can be found in this trie. */
+  public int getContactCount() {
+    return mContactCount - mRemovedCount;
+  }
+
+  /** Returns the number of removed contacts still taking up space in this trie. */
+  public int getRemovedContactCount() {
+    return mRemovedCount;
+  }
+
+  /** Returns the approximate number of bytes held by the arrays of this trie. */
+  public long getMemoryFootprintBytes() {
+    final long nodeBytes = (long) mFirstChild.length * (4 + 4 + 2 + 4);
+    final long entryBytes = (long) mEntryContact.length * (4 + 4);
+    final long contactBytes = (long) mContactIds.length * (8 + 1 + 4);
+    return nodeBytes + entryBytes + contactBytes + mStack.length * 4L;
+  }
+
+  /**
+   * Finds the contacts having a name or number sequence that starts with the given query.
+   *
+   * @param query Normalized query consisting of dialpad digits.
+   * @param limit Maximum number of contacts to return.
+   * @return Ids of matching contacts, in no particular order, or {@literal null} if more than
+   *     limit contacts match.
+   */
+  @Nullable
+  public long[] query(String query, int limit) {
+    int node = ROOT;
+    for (int i = 0; i < query.length() && node != NONE; i++) {
+      node = findChild(node, query.charAt(i));
+    }
+    if (node == NONE) {
+      return new long[0];
+    }
+
+    if (++mQueryGeneration == 0) {
+      Arrays.fill(mVisited, 0);
+      mQueryGeneration = 1;
+    }
+
+    long[] result = new long[Math.min(limit, INITIAL_CONTACT_CAPACITY)];
+    int resultCount = 0;
+    int stackSize = 0;
+    mStack[stackSize++] = node;
+    while (stackSize > 0) {
+      final int current = mStack[--stackSize];
+      for (int entry = mFirstEntry[current]; entry != NONE; entry = mEntryNext[entry]) {
+        final int contact = mEntryContact[entry];
+        if (mRemoved[contact] || mVisited[contact] == mQueryGeneration) {
+          continue;
+        }
+        mVisited[contact] = mQueryGeneration;
+        if (resultCount == limit) {
+          return null;
+        }
+        if (resultCount == result.length) {
+          result = Arrays.copyOf(result, Math.min(limit, result.length * 2));
+        }
+        result[resultCount++] = mContactIds[contact];
+      }
+      for (int child = mFirstChild[current]; child != NONE; child = mNextSibling[child]) {
+        if (stackSize == mStack.length) {
+          mStack = Arrays.copyOf(mStack, mStack.length * 2);
+        }
+        mStack[stackSize++] = child;
+      }
+    }
+    return Arrays.copyOf(result, resultCount);
+  }
+
+  private int getOrAddContact(long contactId) {
+    final int existing = findContact(contactId);
+    if (existing != NONE) {
+      return existing;
+    }
+    if (mContactCount == mContactIds.length) {
+      final int capacity = mContactCount * 2;
+      mContactIds = Arrays.copyOf(mContactIds, capacity);
+      mRemoved = Arrays.copyOf(mRemoved, capacity);
+      mVisited = Arrays.copyOf(mVisited, capacity);
+      mContactSlots = new int[capacity * 2];
+      for (int contact = 0; contact < mContactCount; contact++) {
+        if (!mRemoved[contact]) {
+          addContactSlot(contact);
+        }
+      }
+    }
+    final int contact = mContactCount++;
+    mContactIds[contact] = contactId;
+    addContactSlot(contact);
+    return contact;
+  }
+
+  /** Returns the contact with the given id which has not been removed, or {@link #NONE}. */
+  private int findContact(long contactId) {
+    final int mask = mContactSlots.length - 1;
+    for (int slot = hashContactId(contactId) & mask;
+        mContactSlots[slot] != 0;
+        slot = (slot + 1) & mask) {
+      final int contact = mContactSlots[slot] - 1;
+      if (mContactIds[contact] == contactId && !mRemoved[contact]) {
+        return contact;
+      }
+    }
+    return NONE;
+  }
+
+  private void addContactSlot(int contact) {
+    final int mask = mContactSlots.length - 1;
+    int slot = hashContactId(mContactIds[contact]) & mask;
+    while (mContactSlots[slot] != 0) {
+      slot = (slot + 1) & mask;
+    }
+    mContactSlots[slot] = contact + 1;
+  }
+
+  private static int hashContactId(long contactId) {
+    final int hash = (int) (contactId ^ (contactId >>> 32)) * 0x9E3779B9;
+    return hash ^ (hash >>> 16);
+  }
+
+  private void insert(String key, int contact) {
+    int node = ROOT;
+    for (int i = 0; i < key.length(); i++) {
+      final char ch = key.charAt(i);
+      int child = findChild(node, ch);
+      if (child == NONE) {
+        child = addNode(ch);
+        mNextSibling[child] = mFirstChild[node];
+        mFirstChild[node] = child;
+      }
+      node = child;
+    }
+
+    if (mEntryCount == mEntryContact.length) {
+      final int capacity = mEntryCount * 2;
+      mEntryContact = Arrays.copyOf(mEntryContact, capacity);
+      mEntryNext = Arrays.copyOf(mEntryNext, capacity);
+    }
+    final int entry = mEntryCount++;
+    mEntryContact[entry] = contact;
+    mEntryNext[entry] = mFirstEntry[node];
+    mFirstEntry[node] = entry;
+  }
+
+  private int findChild(int node, char ch) {
+    for (int child = mFirstChild[node]; child != NONE; child = mNextSibling[child]) {
+      if (mNodeKey[child] == ch) {
+        return child;
+      }
+    }
+    return NONE;
+  }
+
+  private int addNode(char ch) {
+    if (mNodeCount == mFirstChild.length) {
+      final int capacity = mNodeCount * 2;
+      mFirstChild = Arrays.copyOf(mFirstChild, capacity);
+      mNextSibling = Arrays.copyOf(mNextSibling, capacity);
+      mNodeKey = Arrays.copyOf(mNodeKey, capacity);
+      mFirstEntry = Arrays.copyOf(mFirstEntry, capacity);
+    }
+    final int node = mNodeCount++;
+    mFirstChild[node] = NONE;
+    mNextSibling[node] = NONE;
+    mNodeKey[node] = ch;
+    mFirstEntry[node] = NONE;
+    return node;
+  }
+}
@@ -69,6 +69,7 @@ import com.android.incallui.incall.protocol.InCallScreenDelegate;
 import com.android.incallui.incall.protocol.PrimaryCallState;
 import com.android.incallui.incall.protocol.PrimaryInfo;
 import com.android.incallui.incall.protocol.SecondaryInfo;
+import com.android.incallui.latencyreport.LatencyReport;
 import com.android.incallui.videotech.utils.SessionModificationState;
 import java.lang.ref.WeakReference;
 
@@ -569,12 +570,28 @@ public class CallCardPresenter
     final DialerCall call = CallList.getInstance().getCallById(callId);
     if (call != null) {
       call.getLogState().contactLookupResult = entry.contactLookupResult;
+      if (entryMatchesExistingCall && !TextUtils.isEmpty(entry.namePrimary)) {
+        maybeReportCallerNameShown(call.getLatencyReport());
+      }
     }
     if (entry.contactUri != null) {
       CallerInfoUtils.sendViewNotification(mContext, entry.contactUri);
     }
   }
 
+  /** Records the time to the name of the caller of an incoming call the first time it's shown. */
+  private void maybeReportCallerNameShown(LatencyReport latencyReport) {
+    if (!latencyReport.getWasIncoming()
+        || latencyReport.getCallerNameShownTimeMillis() != LatencyReport.INVALID_TIME) {
+      return;
+    }
+    latencyReport.onCallerNameShown();
+    LogUtil.i(
+        "CallCardPresenter.maybeReportCallerNameShown",
+        "time to name: %d ms",
+        latencyReport.getCallerNameShownTimeMillis() - latencyReport.getCallAddedTimeMillis());
+  }
+
   private void onImageLoadComplete(String callId, ContactCacheEntry entry) {
     if (getUi() == null) {
       return;
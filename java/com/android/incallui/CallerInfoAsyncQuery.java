@@ -27,8 +27,10 @@ import android.net.Uri;
 import android.os.Build.VERSION;
 import android.os.Build.VERSION_CODES;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
+import android.os.Process;
 import android.provider.ContactsContract;
 import android.provider.ContactsContract.Directory;
 import android.support.annotation.MainThread;
@@ -37,6 +39,7 @@ import android.support.annotation.WorkerThread;
 import android.telephony.PhoneNumberUtils;
 import android.text.TextUtils;
 import com.android.contacts.common.compat.DirectoryCompat;
+import com.android.dialer.configprovider.ConfigProviderBindings;
 import com.android.dialer.phonenumbercache.CachedNumberLookupService;
 import com.android.dialer.phonenumbercache.CachedNumberLookupService.CachedContactInfo;
 import com.android.dialer.phonenumbercache.ContactInfoHelper;
@@ -81,6 +84,14 @@ public class CallerInfoAsyncQuery {
   /* Directory lookup related code - START */
   private static final String[] DIRECTORY_PROJECTION = new String[] {Directory._ID};
 
+  private static final int DIRECTORY_THREAD_COUNT = 2;
+  private static final String CONFIG_DIRECTORY_TIMEOUT_MILLIS =
+      "caller_id_directory_timeout_millis";
+  private static final long DEFAULT_DIRECTORY_TIMEOUT_MILLIS = 2000;
+
+  private static Looper[] sDirectoryLoopers;
+  private static int sNextDirectoryLooper;
+
   /** Private constructor for factory methods. */
   private CallerInfoAsyncQuery() {}
 
@@ -95,28 +106,21 @@ public class CallerInfoAsyncQuery {
     Log.d(LOG_TAG, "- number: " + info.phoneNumber);
     Log.d(LOG_TAG, "- cookie: " + cookie);
 
-    OnQueryCompleteListener contactsProviderQueryCompleteListener =
-        new OnQueryCompleteListener() {
-          @Override
-          public void onQueryComplete(int token, Object cookie, CallerInfo ci) {
-            Log.d(LOG_TAG, "contactsProviderQueryCompleteListener onQueryComplete");
-            // If there are no other directory queries, make sure that the listener is
-            // notified of this result.  see b/27621628
-            if ((ci != null && ci.contactExists)
-                || !startOtherDirectoriesQuery(token, context, info, listener, cookie)) {
-              if (listener != null && ci != null) {
-                listener.onQueryComplete(token, cookie, ci);
-              }
-            }
-          }
-
-          @Override
-          public void onDataLoaded(int token, Object cookie, CallerInfo ci) {
-            Log.d(LOG_TAG, "contactsProviderQueryCompleteListener onDataLoaded");
-            listener.onDataLoaded(token, cookie, ci);
-          }
-        };
-    startDefaultDirectoryQuery(token, context, info, contactsProviderQueryCompleteListener, cookie);
+    // Emergency and voicemail numbers are never looked up in the directories.
+    long[] directoryIds =
+        PhoneNumberUtils.isLocalEmergencyNumber(context, info.phoneNumber)
+                || info.isVoiceMailNumber()
+            ? new long[0]
+            : getDirectoryIds(context);
+    DirectoryQueryMerger merger =
+        new DirectoryQueryMerger(context, token, cookie, directoryIds.length, listener);
+    startDefaultDirectoryQuery(token, context, info, merger.newDefaultDirectoryListener(), cookie);
+    // The remote directories are queried at the same time as the default directory rather than
+    // after it missed, so that a remote contact is found without waiting for both in turn.
+    startOtherDirectoriesQuery(token, context, info, merger, cookie, directoryIds);
+    merger.startTimeout(
+        ConfigProviderBindings.get(context)
+            .getLong(CONFIG_DIRECTORY_TIMEOUT_MILLIS, DEFAULT_DIRECTORY_TIMEOUT_MILLIS));
   }
 
   // Private methods
@@ -128,7 +132,7 @@ public class CallerInfoAsyncQuery {
       Object cookie) {
     // Construct the URI object and query params, and start the query.
     Uri uri = ContactInfoHelper.getContactInfoLookupUri(info.phoneNumber);
-    startQueryInternal(token, context, info, listener, cookie, uri);
+    startQueryInternal(token, context, info, listener, cookie, uri, false);
   }
 
   /**
@@ -146,7 +150,8 @@ public class CallerInfoAsyncQuery {
       CallerInfo info,
       OnQueryCompleteListener listener,
       Object cookie,
-      Uri contactRef) {
+      Uri contactRef,
+      boolean isRemoteDirectory) {
     if (DBG) {
       Log.d(LOG_TAG, "==> contactRef: " + sanitizeUriToString(contactRef));
     }
@@ -154,7 +159,10 @@ public class CallerInfoAsyncQuery {
     if ((context == null) || (contactRef == null)) {
       throw new QueryPoolException("Bad context or query uri.");
     }
-    CallerInfoAsyncQueryHandler handler = new CallerInfoAsyncQueryHandler(context, contactRef);
+    CallerInfoAsyncQueryHandler handler =
+        isRemoteDirectory
+            ? new DirectoryQueryHandler(context, contactRef)
+            : new CallerInfoAsyncQueryHandler(context, contactRef);
 
     //create cookieWrapper, start query
     CookieWrapper cw = new CookieWrapper();
@@ -182,36 +190,38 @@ public class CallerInfoAsyncQuery {
         null); // orderBy
   }
 
-  // Return value indicates if listener was notified.
-  private static boolean startOtherDirectoriesQuery(
+  private static void startOtherDirectoriesQuery(
       int token,
       Context context,
       CallerInfo info,
-      OnQueryCompleteListener listener,
-      Object cookie) {
-    long[] directoryIds = getDirectoryIds(context);
-    int size = directoryIds.length;
-    if (size == 0) {
-      return false;
-    }
-
-    DirectoryQueryCompleteListenerFactory listenerFactory =
-        new DirectoryQueryCompleteListenerFactory(context, size, listener);
-
-    // The current implementation of multiple async query runs in single handler thread
-    // in AsyncQueryHandler.
-    // intermediateListener.onQueryComplete is also called from the same caller thread.
-    // TODO(b/26019872): use thread pool instead of single thread.
-    for (int i = 0; i < size; i++) {
-      long directoryId = directoryIds[i];
+      DirectoryQueryMerger merger,
+      Object cookie,
+      long[] directoryIds) {
+    // Each remote directory is queried by its own handler, on one of the directory query threads.
+    for (long directoryId : directoryIds) {
       Uri uri = ContactInfoHelper.getContactInfoLookupUri(info.phoneNumber, directoryId);
       if (DBG) {
         Log.d(LOG_TAG, "directoryId: " + directoryId + " uri: " + uri);
       }
-      OnQueryCompleteListener intermediateListener = listenerFactory.newListener(directoryId);
-      startQueryInternal(token, context, info, intermediateListener, cookie, uri);
+      OnQueryCompleteListener intermediateListener = merger.newDirectoryListener(directoryId);
+      startQueryInternal(token, context, info, intermediateListener, cookie, uri, true);
     }
-    return true;
+  }
+
+  /** Returns the looper of the next of the threads used to query remote directories. */
+  private static synchronized Looper getDirectoryLooper() {
+    if (sDirectoryLoopers == null) {
+      sDirectoryLoopers = new Looper[DIRECTORY_THREAD_COUNT];
+      for (int i = 0; i < DIRECTORY_THREAD_COUNT; i++) {
+        HandlerThread thread =
+            new HandlerThread("CallerInfoDirectoryQuery" + i, Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        sDirectoryLoopers[i] = thread.getLooper();
+      }
+    }
+    Looper looper = sDirectoryLoopers[sNextDirectoryLooper];
+    sNextDirectoryLooper = (sNextDirectoryLooper + 1) % DIRECTORY_THREAD_COUNT;
+    return looper;
   }
 
   private static long[] getDirectoryIds(Context context) {
@@ -278,41 +288,132 @@ public class CallerInfoAsyncQuery {
     }
   }
 
-  private static final class DirectoryQueryCompleteListenerFactory {
+  /**
+   * Merges the results of the query of the default directory and of the queries of the remote
+   * directories, which run at the same time, and notifies the listener once.
+   *
+   * <p>The default directory has the highest priority: its result is loaded as soon as it is
+   * available, and completes the query if it found a contact. Otherwise the first remote directory
+   * which found a contact is loaded. Remote directories which have not answered once the timeout
+   * elapsed are not waited for.
+   */
+  private static final class DirectoryQueryMerger {
 
-    private final OnQueryCompleteListener mListener;
     private final Context mContext;
+    private final int mToken;
+    private final Object mCookie;
+    private final OnQueryCompleteListener mListener;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mTimeoutRunnable = this::onTimeout;
+
+    // The following are guarded by this.
+    private int mPendingDirectoryCount;
+    private CallerInfo mDefaultDirectoryInfo;
+    private CallerInfo mDirectoryInfo;
+    private long mDirectoryId;
+    private boolean mIsTimedOut;
     // Make sure listener to be called once and only once
-    private int mCount;
     private boolean mIsListenerCalled;
 
-    DirectoryQueryCompleteListenerFactory(
-        Context context, int size, OnQueryCompleteListener listener) {
-      mCount = size;
-      mListener = listener;
-      mIsListenerCalled = false;
+    DirectoryQueryMerger(
+        Context context,
+        int token,
+        Object cookie,
+        int directoryCount,
+        OnQueryCompleteListener listener) {
       mContext = context;
+      mToken = token;
+      mCookie = cookie;
+      mPendingDirectoryCount = directoryCount;
+      mListener = listener;
     }
 
-    private void onDirectoryQueryComplete(
-        int token, Object cookie, CallerInfo ci, long directoryId) {
-      boolean shouldCallListener = false;
+    @MainThread
+    synchronized void startTimeout(long timeoutMillis) {
+      if (mPendingDirectoryCount > 0) {
+        mMainHandler.postDelayed(mTimeoutRunnable, timeoutMillis);
+      }
+    }
+
+    @WorkerThread
+    private void onDefaultDirectoryDataLoaded(CallerInfo ci) {
+      // Load the local result right away, it's shown while remote directories are still queried.
+      mListener.onDataLoaded(mToken, mCookie, ci);
+      CallerInfo directoryInfo;
       synchronized (this) {
-        mCount = mCount - 1;
-        if (!mIsListenerCalled && (ci.contactExists || mCount == 0)) {
-          mIsListenerCalled = true;
-          shouldCallListener = true;
+        mDefaultDirectoryInfo = ci;
+        if (!ci.contactExists
+            && mDirectoryInfo == null
+            && mPendingDirectoryCount > 0
+            && !mIsTimedOut) {
+          return;
         }
+        mIsListenerCalled = true;
+        directoryInfo = ci.contactExists ? null : mDirectoryInfo;
+      }
+      if (directoryInfo != null) {
+        onDirectoryContactFound(directoryInfo);
+      } else {
+        notifyQueryComplete(ci);
       }
+    }
 
-      // Don't call callback in synchronized block because mListener.onQueryComplete may
-      // take long time to complete
-      if (shouldCallListener && mListener != null) {
-        addCallerInfoIntoCache(ci, directoryId);
-        mListener.onQueryComplete(token, cookie, ci);
+    @WorkerThread
+    private void onDirectoryDataLoaded(CallerInfo ci, long directoryId) {
+      CallerInfo result;
+      synchronized (this) {
+        mPendingDirectoryCount--;
+        if (mIsListenerCalled) {
+          return;
+        }
+        if (ci.contactExists && mDirectoryInfo == null) {
+          mDirectoryInfo = ci;
+          mDirectoryId = directoryId;
+        }
+        // The default directory has priority, and must be loaded first.
+        if (mDefaultDirectoryInfo == null
+            || (mDirectoryInfo == null && mPendingDirectoryCount > 0)) {
+          return;
+        }
+        mIsListenerCalled = true;
+        result = mDirectoryInfo != null ? mDirectoryInfo : mDefaultDirectoryInfo;
+      }
+      if (result.contactExists) {
+        onDirectoryContactFound(result);
+      } else {
+        notifyQueryComplete(result);
       }
     }
 
+    @MainThread
+    private void onTimeout() {
+      CallerInfo defaultDirectoryInfo;
+      int pendingDirectoryCount;
+      synchronized (this) {
+        mIsTimedOut = true;
+        if (mIsListenerCalled || mDefaultDirectoryInfo == null) {
+          return;
+        }
+        mIsListenerCalled = true;
+        defaultDirectoryInfo = mDefaultDirectoryInfo;
+        pendingDirectoryCount = mPendingDirectoryCount;
+      }
+      Log.d(LOG_TAG, "directory queries timed out, " + pendingDirectoryCount + " pending");
+      mListener.onQueryComplete(mToken, mCookie, defaultDirectoryInfo);
+    }
+
+    @WorkerThread
+    private void onDirectoryContactFound(CallerInfo ci) {
+      addCallerInfoIntoCache(ci, mDirectoryId);
+      mListener.onDataLoaded(mToken, mCookie, ci);
+      notifyQueryComplete(ci);
+    }
+
+    private void notifyQueryComplete(CallerInfo ci) {
+      mMainHandler.removeCallbacks(mTimeoutRunnable);
+      mMainHandler.post(() -> mListener.onQueryComplete(mToken, mCookie, ci));
+    }
+
     private void addCallerInfoIntoCache(CallerInfo ci, long directoryId) {
       CachedNumberLookupService cachedNumberLookupService =
           PhoneNumberCache.get(mContext).getCachedNumberLookupService();
@@ -338,7 +439,23 @@ public class CallerInfoAsyncQuery {
       }
     }
 
-    OnQueryCompleteListener newListener(long directoryId) {
+    OnQueryCompleteListener newDefaultDirectoryListener() {
+      return new OnQueryCompleteListener() {
+        @Override
+        public void onDataLoaded(int token, Object cookie, CallerInfo ci) {
+          Log.d(LOG_TAG, "contactsProviderQueryCompleteListener onDataLoaded");
+          onDefaultDirectoryDataLoaded(ci);
+        }
+
+        @Override
+        public void onQueryComplete(int token, Object cookie, CallerInfo ci) {
+          // The listener is notified once the results are merged.
+          Log.d(LOG_TAG, "contactsProviderQueryCompleteListener onQueryComplete");
+        }
+      };
+    }
+
+    OnQueryCompleteListener newDirectoryListener(long directoryId) {
       return new DirectoryQueryCompleteListener(directoryId);
     }
 
@@ -353,17 +470,33 @@ public class CallerInfoAsyncQuery {
       @Override
       public void onDataLoaded(int token, Object cookie, CallerInfo ci) {
         Log.d(LOG_TAG, "DirectoryQueryCompleteListener.onDataLoaded");
-        mListener.onDataLoaded(token, cookie, ci);
+        onDirectoryDataLoaded(ci, mDirectoryId);
       }
 
       @Override
       public void onQueryComplete(int token, Object cookie, CallerInfo ci) {
+        // The listener is notified once the results are merged.
         Log.d(LOG_TAG, "DirectoryQueryCompleteListener.onQueryComplete");
-        onDirectoryQueryComplete(token, cookie, ci, mDirectoryId);
       }
     }
   }
 
+  /**
+   * Query handler for the remote directories. Their queries may go over the network, so they run on
+   * threads of their own rather than delaying the queries of the default directory.
+   */
+  private static class DirectoryQueryHandler extends CallerInfoAsyncQueryHandler {
+
+    private DirectoryQueryHandler(Context context, Uri contactRef) {
+      super(context, contactRef);
+    }
+
+    @Override
+    Looper getWorkerLooper(Looper defaultLooper) {
+      return getDirectoryLooper();
+    }
+  }
+
   /** Our own implementation of the AsyncQueryHandler. */
   private static class CallerInfoAsyncQueryHandler extends AsyncQueryHandler {
 
@@ -416,7 +549,16 @@ public class CallerInfoAsyncQuery {
 
     @Override
     protected Handler createHandler(Looper looper) {
-      return new CallerInfoWorkerHandler(looper);
+      return new CallerInfoWorkerHandler(getWorkerLooper(looper));
+    }
+
+    /**
+     * Returns the looper of the thread running the query. Called from the constructor.
+     *
+     * @param defaultLooper the looper of the thread shared by all {@link AsyncQueryHandler}s.
+     */
+    Looper getWorkerLooper(Looper defaultLooper) {
+      return defaultLooper;
     }
 
     /**
@@ -40,11 +40,13 @@ import android.telephony.PhoneNumberUtils;
 import android.text.TextUtils;
 import android.util.ArrayMap;
 import android.util.ArraySet;
+import android.util.Pair;
 import com.android.contacts.common.ContactsUtils;
 import com.android.dialer.common.Assert;
 import com.android.dialer.common.concurrent.DialerExecutor;
 import com.android.dialer.common.concurrent.DialerExecutor.Worker;
 import com.android.dialer.common.concurrent.DialerExecutors;
+import com.android.dialer.location.GeoUtil;
 import com.android.dialer.logging.ContactLookupResult;
 import com.android.dialer.logging.ContactSource;
 import com.android.dialer.oem.CequintCallerIdManager;
@@ -52,14 +54,17 @@ import com.android.dialer.oem.CequintCallerIdManager.CequintCallerIdContact;
 import com.android.dialer.phonenumbercache.CachedNumberLookupService;
 import com.android.dialer.phonenumbercache.CachedNumberLookupService.CachedContactInfo;
 import com.android.dialer.phonenumbercache.ContactInfo;
+import com.android.dialer.phonenumbercache.NumberLookupCache;
 import com.android.dialer.phonenumbercache.PhoneNumberCache;
 import com.android.dialer.phonenumberutil.PhoneNumberHelper;
 import com.android.dialer.util.MoreStrings;
+import com.android.dialer.util.PermissionsUtil;
 import com.android.incallui.CallerInfoAsyncQuery.OnQueryCompleteListener;
 import com.android.incallui.ContactsAsyncHelper.OnImageLoadCompleteListener;
 import com.android.incallui.bindings.PhoneNumberService;
 import com.android.incallui.call.DialerCall;
 import com.android.incallui.incall.protocol.ContactPhotoType;
+import java.util.ArrayList;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
@@ -88,6 +93,15 @@ public class ContactInfoCache implements OnImageLoadCompleteListener {
   private int mQueryId;
   private final DialerExecutor<CnapInformationWrapper> cachedNumberLookupExecutor =
       DialerExecutors.createNonUiTaskBuilder(new CachedNumberLookupWorker()).build();
+  private final DialerExecutor<CachedNumberLookupRequest> cachedNumberPrewarmExecutor =
+      DialerExecutors.createNonUiTaskBuilder(new CachedNumberPrewarmWorker())
+          .onSuccess(this::onCachedNumberLookupComplete)
+          .build();
+  // Results of the lookups started by prewarmCachedNumberLookup, by number without separators.
+  // Misses are stored as ContactInfo.EMPTY. Read by the worker threads of the caller info queries.
+  private final ConcurrentHashMap<String, ContactInfo> mCachedNumberLookupResults =
+      new ConcurrentHashMap<>();
+  private final Set<String> mPendingCachedNumberLookups = new ArraySet<>();
 
   private static class CachedNumberLookupWorker implements Worker<CnapInformationWrapper, Void> {
     @Nullable
@@ -122,6 +136,37 @@ public class ContactInfoCache implements OnImageLoadCompleteListener {
     }
   }
 
+  private static final class CachedNumberLookupRequest {
+    final Context context;
+    final CachedNumberLookupService service;
+    final String number;
+
+    CachedNumberLookupRequest(Context context, CachedNumberLookupService service, String number) {
+      this.context = context;
+      this.service = service;
+      this.number = number;
+    }
+  }
+
+  private static class CachedNumberPrewarmWorker
+      implements Worker<CachedNumberLookupRequest, Pair<String, ContactInfo>> {
+    @Nullable
+    @Override
+    public Pair<String, ContactInfo> doInBackground(@Nullable CachedNumberLookupRequest input) {
+      if (input == null) {
+        return null;
+      }
+      long start = SystemClock.uptimeMillis();
+      CachedContactInfo cachedContactInfo =
+          input.service.lookupCachedContactFromNumber(input.context, input.number);
+      Log.d(
+          TAG, "Cached number lookup takes " + (SystemClock.uptimeMillis() - start) + " ms.");
+      ContactInfo contactInfo =
+          cachedContactInfo == null ? ContactInfo.EMPTY : cachedContactInfo.getContactInfo();
+      return new Pair<>(input.number, contactInfo == null ? ContactInfo.EMPTY : contactInfo);
+    }
+  }
+
   private ContactInfoCache(Context context) {
     mContext = context;
     mPhoneNumberService = Bindings.get(context).newPhoneNumberService(context);
@@ -390,6 +435,9 @@ public class ContactInfoCache implements OnImageLoadCompleteListener {
      * such as those for voicemail and emergency call information, will not perform an additional
      * asynchronous query.
      */
+    if (isIncoming) {
+      prewarmCachedNumberLookup(call.getNumber(), call.getNumberPresentation());
+    }
     final CallerInfoQueryToken queryToken = new CallerInfoQueryToken(mQueryId, callId);
     mQueryId++;
     final CallerInfo callerInfo =
@@ -407,6 +455,7 @@ public class ContactInfoCache implements OnImageLoadCompleteListener {
       cacheEntry.queryId = queryToken.mQueryId;
       Log.d(TAG, "There is an existing cache. Do not override until new query is back");
     } else {
+      maybeUpdateFromNumberLookupCache(call, callerInfo);
       ContactCacheEntry initialCacheEntry =
           updateCallerInfoInCacheOnAnyThread(
               callId, call.getNumberPresentation(), callerInfo, false, queryToken);
@@ -414,6 +463,122 @@ public class ContactInfoCache implements OnImageLoadCompleteListener {
     }
   }
 
+  /**
+   * Starts looking the number of an incoming call up in the {@link CachedNumberLookupService}, so
+   * that the name found there can be shown until the query for the caller finds a contact. This
+   * is called as soon as the call is added, to run in parallel with the check whether the number
+   * is blocked, and again when the call is looked up.
+   */
+  @MainThread
+  public void prewarmCachedNumberLookup(@Nullable String number, int numberPresentation) {
+    Assert.isMainThread();
+    CachedNumberLookupService cachedNumberLookupService =
+        PhoneNumberCache.get(mContext).getCachedNumberLookupService();
+    if (cachedNumberLookupService == null
+        || TextUtils.isEmpty(number)
+        || numberPresentation != TelecomManager.PRESENTATION_ALLOWED
+        || !UserManagerCompat.isUserUnlocked(mContext)) {
+      return;
+    }
+    String key = PhoneNumberUtils.stripSeparators(number);
+    if (mCachedNumberLookupResults.containsKey(key) || !mPendingCachedNumberLookups.add(key)) {
+      return;
+    }
+    cachedNumberPrewarmExecutor.executeParallel(
+        new CachedNumberLookupRequest(mContext, cachedNumberLookupService, key));
+  }
+
+  /**
+   * Shows the name found in the {@link CachedNumberLookupService} for the calls which are still
+   * being looked up and have no name yet. Any name found by the query for the caller has priority.
+   */
+  @MainThread
+  private void onCachedNumberLookupComplete(@Nullable Pair<String, ContactInfo> result) {
+    Assert.isMainThread();
+    if (result == null) {
+      return;
+    }
+    mPendingCachedNumberLookups.remove(result.first);
+    mCachedNumberLookupResults.put(result.first, result.second);
+    if (TextUtils.isEmpty(result.second.name)) {
+      return;
+    }
+    for (String callId : new ArrayList<>(mCallBacks.keySet())) {
+      ContactCacheEntry entry = mInfoMap.get(callId);
+      if (entry == null
+          || !TextUtils.isEmpty(entry.namePrimary)
+          || !TextUtils.equals(
+              result.first, PhoneNumberUtils.stripSeparators(entry.originalPhoneNumber))) {
+        continue;
+      }
+      Log.d(TAG, "Contact lookup. Cached number lookup hit");
+      entry.namePrimary = result.second.name;
+      entry.nameAlternative = result.second.nameAlternative;
+      if (result.second.type == Phone.TYPE_CUSTOM) {
+        entry.label = result.second.label;
+      } else {
+        entry.label =
+            Phone.getTypeLabel(mContext.getResources(), result.second.type, result.second.label)
+                .toString();
+      }
+      sendInfoNotifications(callId, entry);
+    }
+  }
+
+  /**
+   * Fills in the name and label of the caller from the {@link NumberLookupCache} if the call log
+   * looked up the number recently, or else from the result of {@link #prewarmCachedNumberLookup},
+   * so that they can be shown before the query for the caller completes. The query still runs as
+   * it also provides the ringtone and photo of the contact.
+   */
+  private void maybeUpdateFromNumberLookupCache(DialerCall call, CallerInfo callerInfo) {
+    if (callerInfo.numberPresentation != TelecomManager.PRESENTATION_ALLOWED
+        || !TextUtils.isEmpty(callerInfo.name)
+        || !PermissionsUtil.hasContactsReadPermissions(mContext)) {
+      return;
+    }
+    ContactInfo contactInfo =
+        NumberLookupCache.get(mContext)
+            .getCachedContactInfo(call.getNumber(), GeoUtil.getCurrentCountryIso(mContext));
+    if (contactInfo == null || TextUtils.isEmpty(contactInfo.name)) {
+      maybeUpdateFromCachedNumberLookup(callerInfo);
+      return;
+    }
+    Log.d(TAG, "Contact lookup. Number lookup cache hit");
+    updateFromContactInfo(callerInfo, contactInfo);
+  }
+
+  /**
+   * Fills in the name and label of a caller which is not a contact from the result of {@link
+   * #prewarmCachedNumberLookup}, if it's available.
+   */
+  @AnyThread
+  private void maybeUpdateFromCachedNumberLookup(CallerInfo callerInfo) {
+    if (callerInfo.contactExists
+        || !TextUtils.isEmpty(callerInfo.name)
+        || TextUtils.isEmpty(callerInfo.phoneNumber)) {
+      return;
+    }
+    ContactInfo contactInfo =
+        mCachedNumberLookupResults.get(PhoneNumberUtils.stripSeparators(callerInfo.phoneNumber));
+    if (contactInfo == null || TextUtils.isEmpty(contactInfo.name)) {
+      return;
+    }
+    Log.d(TAG, "Contact lookup. Cached number lookup hit");
+    updateFromContactInfo(callerInfo, contactInfo);
+  }
+
+  private void updateFromContactInfo(CallerInfo callerInfo, ContactInfo contactInfo) {
+    callerInfo.name = contactInfo.name;
+    callerInfo.nameAlternative = contactInfo.nameAlternative;
+    callerInfo.numberType = contactInfo.type;
+    callerInfo.numberLabel = contactInfo.label;
+    callerInfo.phoneLabel =
+        Phone.getTypeLabel(mContext.getResources(), contactInfo.type, contactInfo.label)
+            .toString();
+    callerInfo.lookupKeyOrNull = contactInfo.lookupKey;
+  }
+
   @AnyThread
   private ContactCacheEntry updateCallerInfoInCacheOnAnyThread(
       String callId,
@@ -443,6 +608,11 @@ public class ContactInfoCache implements OnImageLoadCompleteListener {
       }
     }
 
+    // Keep showing the name found in the cached number lookup if no contact was found.
+    if (didLocalLookup && numberPresentation == TelecomManager.PRESENTATION_ALLOWED) {
+      maybeUpdateFromCachedNumberLookup(callerInfo);
+    }
+
     int presentationMode = numberPresentation;
     if (callerInfo.contactExists
         || callerInfo.isEmergencyNumber()
@@ -600,6 +770,7 @@ public class ContactInfoCache implements OnImageLoadCompleteListener {
   public void clearCache() {
     mInfoMap.clear();
     mCallBacks.clear();
+    mCachedNumberLookupResults.clear();
     mQueryId = 0;
   }
 
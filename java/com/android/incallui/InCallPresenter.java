@@ -94,6 +94,7 @@ public class InCallPresenter implements CallList.Listener {
    */
   private final Set<InCallStateListener> mListeners =
       Collections.newSetFromMap(new ConcurrentHashMap<InCallStateListener, Boolean>(8, 0.9f, 1));
+  private final InCallStateDispatcher mStateDispatcher = new InCallStateDispatcher(mListeners);
 
   private final List<IncomingCallListener> mIncomingCallListeners = new CopyOnWriteArrayList<>();
   private final Set<InCallDetailsListener> mDetailsListeners =
@@ -372,6 +373,8 @@ public class InCallPresenter implements CallList.Listener {
     VideoPauseController.getInstance().setUp(this);
 
     mFilteredQueryHandler = filteredNumberQueryHandler;
+    // Check the numbers of the calls added next against the cache rather than the database.
+    mFilteredQueryHandler.preloadBlockedNumbers();
     mContext
         .getSystemService(TelephonyManager.class)
         .listen(mPhoneStateListener, PhoneStateListener.LISTEN_CALL_STATE);
@@ -518,6 +521,13 @@ public class InCallPresenter implements CallList.Listener {
 
   public void onCallAdded(final android.telecom.Call call) {
     LatencyReport latencyReport = new LatencyReport(call);
+    if (call.getState() == android.telecom.Call.STATE_RINGING
+        && !call.getDetails().hasProperty(CallCompat.Details.PROPERTY_IS_EXTERNAL_CALL)
+        && mContactInfoCache != null) {
+      // Start looking the caller up while checking whether the number is blocked.
+      mContactInfoCache.prewarmCachedNumberLookup(
+          TelecomCallUtil.getNumber(call), call.getDetails().getHandlePresentation());
+    }
     if (shouldAttemptBlocking(call)) {
       maybeBlockCall(call, latencyReport);
     } else {
@@ -736,12 +746,7 @@ public class InCallPresenter implements CallList.Listener {
     mInCallState = newState;
 
     // notify listeners of new state
-    for (InCallStateListener listener : mListeners) {
-      LogUtil.d(
-          "InCallPresenter.onCallListChange",
-          "Notify " + listener + " of state " + mInCallState.toString());
-      listener.onStateChange(oldState, mInCallState, callList);
-    }
+    mStateDispatcher.dispatch(oldState, mInCallState, callList);
 
     if (isActivityStarted()) {
       final boolean hasCall =
@@ -758,6 +763,9 @@ public class InCallPresenter implements CallList.Listener {
 
     LogUtil.i(
         "InCallPresenter.onIncomingCall", "Phone switching state: " + oldState + " -> " + newState);
+    if (oldState != newState) {
+      mStateDispatcher.flush();
+    }
     mInCallState = newState;
 
     for (IncomingCallListener listener : mIncomingCallListeners) {
@@ -877,6 +885,7 @@ public class InCallPresenter implements CallList.Listener {
     mBoundAndWaitingForOutgoingCall = isBound;
     mThemeColorManager.setPendingPhoneAccountHandle(handle);
     if (isBound && mInCallState == InCallState.NO_CALLS) {
+      mStateDispatcher.flush();
       mInCallState = InCallState.OUTGOING;
     }
   }
@@ -1472,6 +1481,8 @@ public class InCallPresenter implements CallList.Listener {
       mInCallActivity = null;
       mManageConferenceActivity = null;
 
+      mStateDispatcher.cancel();
+      mStateDispatcher.logAndResetStats();
       mListeners.clear();
       mIncomingCallListeners.clear();
       mDetailsListeners.clear();
@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.incallui;
+
+import android.os.SystemClock;
+import android.support.annotation.MainThread;
+import android.util.ArrayMap;
+import android.view.Choreographer;
+import com.android.dialer.common.Assert;
+import com.android.dialer.common.LogUtil;
+import com.android.incallui.InCallPresenter.InCallState;
+import com.android.incallui.InCallPresenter.InCallStateListener;
+import com.android.incallui.call.CallList;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Dispatches the {@link InCallState} to the {@link InCallStateListener}s of {@link
+ * InCallPresenter}.
+ *
+ * <p>Telecom reports the details, state and conference changes of calls in bursts, each of which
+ * changes the call list. Changes which keep the in-call state are therefore coalesced and
+ * dispatched once, on the next frame. A change of the in-call state is dispatched right away and
+ * replaces the pending dispatch, so listeners see every transition, in order.
+ */
+@MainThread
+final class InCallStateDispatcher {
+
+  /** Listeners taking longer than this to handle a dispatch are logged. */
+  private static final long SLOW_LISTENER_MILLIS = 8;
+
+  private final Set<InCallStateListener> mListeners;
+
+  private final Choreographer.FrameCallback mFrameCallback =
+      new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+          flush();
+        }
+      };
+
+  /** The state of the pending dispatch, or null if there is none. */
+  private InCallState mPendingState;
+
+  private CallList mPendingCallList;
+
+  private int mDispatchCount;
+  private int mSuppressedDispatchCount;
+
+  /** Time spent in each listener by class name. */
+  private final Map<String, ListenerStats> mListenerStats = new ArrayMap<>();
+
+  private static final class ListenerStats {
+    int dispatchCount;
+    long totalNanos;
+    long maxNanos;
+  }
+
+  InCallStateDispatcher(Set<InCallStateListener> listeners) {
+    mListeners = listeners;
+  }
+
+  /**
+   * Dispatches the state to the listeners, right away if it changed and on the next frame if not.
+   */
+  void dispatch(InCallState oldState, InCallState newState, CallList callList) {
+    Assert.isMainThread();
+    if (oldState != newState) {
+      if (mPendingState != null) {
+        cancel();
+        mSuppressedDispatchCount++;
+      }
+      dispatchNow(oldState, newState, callList);
+      return;
+    }
+    if (mPendingState != null) {
+      mPendingCallList = callList;
+      mSuppressedDispatchCount++;
+      return;
+    }
+    mPendingState = newState;
+    mPendingCallList = callList;
+    Choreographer.getInstance().postFrameCallback(mFrameCallback);
+  }
+
+  /**
+   * Dispatches the pending dispatch right away, if any. Must be called before the in-call state
+   * changes without being dispatched, as the pending dispatch is for the previous state.
+   */
+  void flush() {
+    Assert.isMainThread();
+    InCallState state = mPendingState;
+    CallList callList = mPendingCallList;
+    cancel();
+    if (state != null) {
+      dispatchNow(state, state, callList);
+    }
+  }
+
+  /** Drops the pending dispatch, if any. */
+  void cancel() {
+    Assert.isMainThread();
+    if (mPendingState != null) {
+      Choreographer.getInstance().removeFrameCallback(mFrameCallback);
+      mPendingState = null;
+      mPendingCallList = null;
+    }
+  }
+
+  /** Logs and resets the number of dispatches and the time spent in each listener. */
+  void logAndResetStats() {
+    Assert.isMainThread();
+    LogUtil.i(
+        "InCallStateDispatcher.logAndResetStats",
+        "dispatched: %d, suppressed: %d",
+        mDispatchCount,
+        mSuppressedDispatchCount);
+    for (Map.Entry<String, ListenerStats> entry : mListenerStats.entrySet()) {
+      ListenerStats stats = entry.getValue();
+      LogUtil.i(
+          "InCallStateDispatcher.logAndResetStats",
+          "%s: %d dispatches, %d ms total, %d ms max",
+          entry.getKey(),
+          stats.dispatchCount,
+          TimeUnit.NANOSECONDS.toMillis(stats.totalNanos),
+          TimeUnit.NANOSECONDS.toMillis(stats.maxNanos));
+    }
+    mDispatchCount = 0;
+    mSuppressedDispatchCount = 0;
+    mListenerStats.clear();
+  }
+
+  private void dispatchNow(InCallState oldState, InCallState newState, CallList callList) {
+    mDispatchCount++;
+    for (InCallStateListener listener : mListeners) {
+      LogUtil.d(
+          "InCallStateDispatcher.dispatchNow", "Notify " + listener + " of state " + newState);
+      long start = SystemClock.elapsedRealtimeNanos();
+      listener.onStateChange(oldState, newState, callList);
+      long elapsedNanos = SystemClock.elapsedRealtimeNanos() - start;
+
+      String name = listener.getClass().getSimpleName();
+      ListenerStats stats = mListenerStats.get(name);
+      if (stats == null) {
+        stats = new ListenerStats();
+        mListenerStats.put(name, stats);
+      }
+      stats.dispatchCount++;
+      stats.totalNanos += elapsedNanos;
+      stats.maxNanos = Math.max(stats.maxNanos, elapsedNanos);
+      if (elapsedNanos > TimeUnit.MILLISECONDS.toNanos(SLOW_LISTENER_MILLIS)) {
+        LogUtil.i(
+            "InCallStateDispatcher.dispatchNow",
+            "%s took %d ms",
+            name,
+            TimeUnit.NANOSECONDS.toMillis(elapsedNanos));
+      }
+    }
+  }
+}
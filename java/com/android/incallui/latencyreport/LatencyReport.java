@@ -54,6 +54,9 @@ public class LatencyReport {
   // Time elapsed since boot when the InCallUI was shown.
   private long mInCallUiShownTimeMillis = INVALID_TIME;
 
+  // Time elapsed since boot when the name of the caller was first shown on the call card.
+  private long mCallerNameShownTimeMillis = INVALID_TIME;
+
   // Whether the call was shown to the user as a heads up notification instead of a full screen
   // UI.
   private boolean mDidDisplayHeadsUpNotification;
@@ -134,6 +137,16 @@ public class LatencyReport {
     }
   }
 
+  public long getCallerNameShownTimeMillis() {
+    return mCallerNameShownTimeMillis;
+  }
+
+  public void onCallerNameShown() {
+    if (mCallerNameShownTimeMillis == INVALID_TIME) {
+      mCallerNameShownTimeMillis = SystemClock.elapsedRealtime();
+    }
+  }
+
   public boolean getDidDisplayHeadsUpNotification() {
     return mDidDisplayHeadsUpNotification;
   }
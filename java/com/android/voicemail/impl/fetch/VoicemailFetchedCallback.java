@@ -29,6 +29,7 @@ import com.android.voicemail.impl.R;
 import com.android.voicemail.impl.VvmLog;
 import com.android.voicemail.impl.imap.VoicemailPayload;
 import com.android.voicemail.impl.transcribe.TranscriptionService;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.OutputStream;
 import org.apache.commons.io.IOUtils;
@@ -75,24 +76,52 @@ public class VoicemailFetchedCallback {
     }
 
     VvmLog.d(TAG, String.format("Writing new voicemail content: %s", mUri));
-    OutputStream outputStream = null;
+    OutputStream outputStream = openOutputStream();
+    if (outputStream == null) {
+      return;
+    }
 
     try {
-      outputStream = mContentResolver.openOutputStream(mUri);
       byte[] inputBytes = voicemailPayload.getBytes();
       if (inputBytes != null) {
         outputStream.write(inputBytes);
       }
     } catch (IOException e) {
-      VvmLog.w(TAG, String.format("File not found for %s", mUri));
+      VvmLog.w(TAG, String.format("Error writing content for %s", mUri));
       return;
     } finally {
       IOUtils.closeQuietly(outputStream);
     }
 
+    setVoicemailContentWritten(voicemailPayload.getMimeType());
+  }
+
+  /**
+   * Opens the data file of the voicemail, so that the payload can be written while it is being
+   * downloaded. {@link #setVoicemailContentWritten(String)} must be called once it is complete.
+   *
+   * @return the stream, or null if the file can't be opened
+   */
+  @Nullable
+  public OutputStream openOutputStream() {
+    Assert.isWorkerThread();
+    try {
+      return mContentResolver.openOutputStream(mUri);
+    } catch (FileNotFoundException e) {
+      VvmLog.w(TAG, String.format("File not found for %s", mUri));
+      return null;
+    }
+  }
+
+  /**
+   * Sets the "has_content" bit of the voicemail to "1" after its payload was written to the stream
+   * returned by {@link #openOutputStream()}, and schedules its transcription.
+   */
+  public void setVoicemailContentWritten(String mimeType) {
+    Assert.isWorkerThread();
     // Update mime_type & has_content after we are done with file update.
     ContentValues values = new ContentValues();
-    values.put(Voicemails.MIME_TYPE, voicemailPayload.getMimeType());
+    values.put(Voicemails.MIME_TYPE, mimeType);
     values.put(Voicemails.HAS_CONTENT, true);
     if (updateVoicemail(values)) {
       ThreadUtil.postOnUiThread(
@@ -21,6 +21,7 @@ import android.net.Network;
 import android.net.NetworkInfo;
 import android.support.annotation.Nullable;
 import android.telecom.PhoneAccountHandle;
+import android.util.ArrayMap;
 import android.util.Base64;
 import com.android.voicemail.impl.OmtpConstants;
 import com.android.voicemail.impl.OmtpConstants.ChangePinResult;
@@ -40,6 +41,7 @@ import com.android.voicemail.impl.mail.Flag;
 import com.android.voicemail.impl.mail.Message;
 import com.android.voicemail.impl.mail.MessagingException;
 import com.android.voicemail.impl.mail.Multipart;
+import com.android.voicemail.impl.mail.Part;
 import com.android.voicemail.impl.mail.TempDirectory;
 import com.android.voicemail.impl.mail.internet.MimeMessage;
 import com.android.voicemail.impl.mail.store.ImapConnection;
@@ -54,10 +56,12 @@ import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import org.apache.commons.io.IOUtils;
 
 /** A helper interface to abstract commands sent across IMAP interface for a given account. */
@@ -68,6 +72,9 @@ public class ImapHelper implements Closeable {
   private ImapFolder mFolder;
   private ImapStore mImapStore;
 
+  private long mLastUidValidity = -1;
+  private long mLastHighestUid;
+
   private final Context mContext;
   private final PhoneAccountHandle mPhoneAccount;
   private final Network mNetwork;
@@ -136,7 +143,7 @@ public class ImapHelper implements Closeable {
 
   @Override
   public void close() {
-    mImapStore.closeConnection();
+    mImapStore.releaseConnection();
   }
 
   public boolean isRoaming() {
@@ -203,8 +210,6 @@ public class ImapHelper implements Closeable {
    * @return A list of voicemail objects containing data about voicemails stored on the server.
    */
   public List<Voicemail> fetchAllVoicemails() {
-    List<Voicemail> result = new ArrayList<Voicemail>();
-    Message[] messages;
     try {
       mFolder = openImapFolder(ImapFolder.MODE_READ_WRITE);
       if (mFolder == null) {
@@ -212,17 +217,66 @@ public class ImapHelper implements Closeable {
         return null;
       }
 
-      // This method retrieves lightweight messages containing only the uid of the message.
-      messages = mFolder.getMessages(null);
+      // Get the voicemail details (message structure) of all messages with a single command, and
+      // the transcriptions with another, instead of a few round trips per message.
+      MessageStructureFetchedListener structureListener = new MessageStructureFetchedListener();
+      Message[] messages =
+          mFolder.fetchAll(createMessageStructureFetchProfile(), structureListener);
+      List<Voicemail> result = fetchVoicemails(structureListener.getMessageStructures(), 0);
+      mLastUidValidity = mFolder.getUidValidity();
+      mLastHighestUid = getHighestUid(messages, 0);
+      return result;
+    } catch (MessagingException e) {
+      LogUtils.e(TAG, e, "Messaging Exception");
+      return null;
+    } finally {
+      closeImapFolder();
+    }
+  }
+
+  /**
+   * Fetches the voicemails added to the server since the sync which saw UIDs up to {@code
+   * lastUid}, and the read state of the older messages. Only the flags of the older messages are
+   * fetched, so the cost of the sync mostly depends on the number of new messages.
+   *
+   * @return null if the folder could not be fetched or its UIDVALIDITY is not {@code
+   *     uidValidity}, in which case the old UIDs can't be trusted and all voicemails must be
+   *     fetched instead
+   */
+  @Nullable
+  public IncrementalFetchResult fetchVoicemailsSince(long uidValidity, long lastUid) {
+    try {
+      mFolder = openImapFolder(ImapFolder.MODE_READ_WRITE);
+      if (mFolder == null) {
+        // This means we were unable to successfully open the folder.
+        return null;
+      }
+      if (mFolder.getUidValidity() == -1 || mFolder.getUidValidity() != uidValidity) {
+        VvmLog.i(
+            TAG, "UIDVALIDITY changed from " + uidValidity + " to " + mFolder.getUidValidity());
+        return null;
+      }
 
-      for (Message message : messages) {
-        // Get the voicemail details (message structure).
-        MessageStructureWrapper messageStructureWrapper = fetchMessageStructure(message);
-        if (messageStructureWrapper != null) {
-          result.add(getVoicemailFromMessageStructure(messageStructureWrapper));
+      ArrayMap<String, Boolean> existingReadStates = new ArrayMap<>();
+      if (lastUid > 0) {
+        FetchProfile flagsProfile = new FetchProfile();
+        flagsProfile.add(FetchProfile.Item.FLAGS);
+        for (Message message : mFolder.fetchUidRange("1:" + lastUid, flagsProfile, null)) {
+          if (!message.isSet(Flag.DELETED)) {
+            existingReadStates.put(message.getUid(), message.isSet(Flag.SEEN));
+          }
         }
       }
-      return result;
+
+      MessageStructureFetchedListener structureListener = new MessageStructureFetchedListener();
+      Message[] messages =
+          mFolder.fetchUidRange(
+              (lastUid + 1) + ":*", createMessageStructureFetchProfile(), structureListener);
+      List<Voicemail> newVoicemails =
+          fetchVoicemails(structureListener.getMessageStructures(), lastUid);
+      mLastUidValidity = uidValidity;
+      mLastHighestUid = getHighestUid(messages, lastUid);
+      return new IncrementalFetchResult(newVoicemails, existingReadStates);
     } catch (MessagingException e) {
       LogUtils.e(TAG, e, "Messaging Exception");
       return null;
@@ -232,20 +286,70 @@ public class ImapHelper implements Closeable {
   }
 
   /**
-   * Extract voicemail details from the message structure. Also fetch transcription if a
-   * transcription exists.
+   * Returns the UIDVALIDITY of the folder seen by the last successful {@link #fetchAllVoicemails()}
+   * or {@link #fetchVoicemailsSince(long, long)}, or -1 if unknown.
    */
-  private Voicemail getVoicemailFromMessageStructure(
-      MessageStructureWrapper messageStructureWrapper) throws MessagingException {
-    Message messageDetails = messageStructureWrapper.messageStructure;
+  public long getLastUidValidity() {
+    return mLastUidValidity;
+  }
 
-    TranscriptionFetchedListener listener = new TranscriptionFetchedListener();
-    if (messageStructureWrapper.transcriptionBodyPart != null) {
-      FetchProfile fetchProfile = new FetchProfile();
-      fetchProfile.add(messageStructureWrapper.transcriptionBodyPart);
+  /**
+   * Returns the highest UID seen by the last successful {@link #fetchAllVoicemails()} or {@link
+   * #fetchVoicemailsSince(long, long)}.
+   */
+  public long getLastHighestUid() {
+    return mLastHighestUid;
+  }
 
-      mFolder.fetch(new Message[] {messageDetails}, fetchProfile, listener);
+  /**
+   * Fetches the transcriptions of the messages with a UID above {@code minUid} and returns them as
+   * voicemails.
+   */
+  private List<Voicemail> fetchVoicemails(
+      List<MessageStructureWrapper> messageStructures, long minUid) throws MessagingException {
+    List<MessageStructureWrapper> newMessageStructures = new ArrayList<>();
+    List<Message> transcriptionMessages = new ArrayList<>();
+    List<Part> transcriptionParts = new ArrayList<>();
+    for (MessageStructureWrapper messageStructureWrapper : messageStructures) {
+      if (ImapFolder.parseUid(messageStructureWrapper.messageStructure.getUid()) <= minUid) {
+        continue;
+      }
+      newMessageStructures.add(messageStructureWrapper);
+      if (messageStructureWrapper.transcriptionBodyPart != null) {
+        transcriptionMessages.add(messageStructureWrapper.messageStructure);
+        transcriptionParts.add(messageStructureWrapper.transcriptionBodyPart);
+      }
     }
+    TranscriptionFetchedListener transcriptionListener = new TranscriptionFetchedListener();
+    mFolder.fetchParts(
+        transcriptionMessages.toArray(new Message[transcriptionMessages.size()]),
+        transcriptionParts.toArray(new Part[transcriptionParts.size()]),
+        transcriptionListener);
+
+    List<Voicemail> result = new ArrayList<Voicemail>();
+    for (MessageStructureWrapper messageStructureWrapper : newMessageStructures) {
+      result.add(
+          getVoicemailFromMessageStructure(
+              messageStructureWrapper,
+              transcriptionListener.getVoicemailTranscription(
+                  messageStructureWrapper.messageStructure.getUid())));
+    }
+    return result;
+  }
+
+  private static long getHighestUid(Message[] messages, long lastUid) {
+    long highestUid = lastUid;
+    for (Message message : messages) {
+      highestUid = Math.max(highestUid, ImapFolder.parseUid(message.getUid()));
+    }
+    return highestUid;
+  }
+
+  /** Extract voicemail details from the message structure and the fetched transcription. */
+  private Voicemail getVoicemailFromMessageStructure(
+      MessageStructureWrapper messageStructureWrapper, @Nullable String transcription)
+      throws MessagingException {
+    Message messageDetails = messageStructureWrapper.messageStructure;
 
     // Found an audio attachment, this is a valid voicemail.
     long time = messageDetails.getSentDate().getTime();
@@ -258,7 +362,7 @@ public class ImapHelper implements Closeable {
             .setSourcePackage(mContext.getPackageName())
             .setSourceData(messageDetails.getUid())
             .setIsRead(isRead)
-            .setTranscription(listener.getVoicemailTranscription());
+            .setTranscription(transcription);
     if (duration != null) {
       builder.setDuration(duration);
     }
@@ -299,17 +403,28 @@ public class ImapHelper implements Closeable {
 
     MessageStructureFetchedListener listener = new MessageStructureFetchedListener();
 
+    // The IMAP folder fetch method will call "messageRetrieved" on the listener when the
+    // message is successfully retrieved.
+    mFolder.fetch(new Message[] {message}, createMessageStructureFetchProfile(), listener);
+    List<MessageStructureWrapper> messageStructures = listener.getMessageStructures();
+    return messageStructures.isEmpty() ? null : messageStructures.get(0);
+  }
+
+  private static FetchProfile createMessageStructureFetchProfile() {
     FetchProfile fetchProfile = new FetchProfile();
     fetchProfile.addAll(
         Arrays.asList(
             FetchProfile.Item.FLAGS, FetchProfile.Item.ENVELOPE, FetchProfile.Item.STRUCTURE));
-
-    // The IMAP folder fetch method will call "messageRetrieved" on the listener when the
-    // message is successfully retrieved.
-    mFolder.fetch(new Message[] {message}, fetchProfile, listener);
-    return listener.getMessageStructure();
+    return fetchProfile;
   }
 
+  /**
+   * Downloads the audio of a voicemail into the voicemail provider. Only the structure of the
+   * message is parsed in memory, the audio is decoded and written to the provider while it is
+   * received.
+   *
+   * @return whether the voicemail was found and its payload downloaded
+   */
   public boolean fetchVoicemailPayload(VoicemailFetchedCallback callback, final String uid) {
     try {
       mFolder = openImapFolder(ImapFolder.MODE_READ_WRITE);
@@ -321,31 +436,58 @@ public class ImapHelper implements Closeable {
       if (message == null) {
         return false;
       }
-      VoicemailPayload voicemailPayload = fetchVoicemailPayload(message);
-      callback.setVoicemailContent(voicemailPayload);
-      return true;
+      LogUtils.d(TAG, "Fetching message body for " + uid);
+      FetchProfile fetchProfile = new FetchProfile();
+      fetchProfile.add(FetchProfile.Item.STRUCTURE);
+      mFolder.fetch(new Message[] {message}, fetchProfile, null);
+
+      BodyPart audioPart = getAudioPart(message);
+      if (audioPart == null) {
+        callback.setVoicemailContent(null);
+        return true;
+      }
+
+      OutputStream outputStream = callback.openOutputStream();
+      if (outputStream == null) {
+        return false;
+      }
+      boolean received;
+      try {
+        received = mFolder.fetchPartToStream(message, audioPart, outputStream);
+      } finally {
+        IOUtils.closeQuietly(outputStream);
+      }
+      if (received) {
+        callback.setVoicemailContentWritten(audioPart.getMimeType().toLowerCase());
+      }
+      return received;
     } catch (MessagingException e) {
+      LogUtils.e(TAG, e, "Messaging Exception");
     } finally {
       closeImapFolder();
     }
     return false;
   }
 
-  /**
-   * Fetches the body of the given message and returns the parsed voicemail payload.
-   *
-   * @throws MessagingException if fetching the body of the message fails
-   */
-  private VoicemailPayload fetchVoicemailPayload(Message message) throws MessagingException {
-    LogUtils.d(TAG, "Fetching message body for " + message.getUid());
-
-    MessageBodyFetchedListener listener = new MessageBodyFetchedListener();
-
-    FetchProfile fetchProfile = new FetchProfile();
-    fetchProfile.add(FetchProfile.Item.BODY);
-
-    mFolder.fetch(new Message[] {message}, fetchProfile, listener);
-    return listener.getVoicemailPayload();
+  /** Returns the audio attachment of a message with a fetched structure, or null if none. */
+  @Nullable
+  private static BodyPart getAudioPart(Message message) throws MessagingException {
+    if (!(message.getBody() instanceof Multipart)) {
+      LogUtils.e(TAG, "Voicemail is not multipart, mimeType:" + message.getMimeType());
+      return null;
+    }
+    Multipart multipart = (Multipart) message.getBody();
+    List<String> mimeTypes = new ArrayList<>();
+    for (int i = 0; i < multipart.getCount(); ++i) {
+      BodyPart bodyPart = multipart.getBodyPart(i);
+      String bodyPartMimeType = bodyPart.getMimeType().toLowerCase();
+      mimeTypes.add(bodyPartMimeType);
+      if (bodyPartMimeType.startsWith("audio/")) {
+        return bodyPart;
+      }
+    }
+    LogUtils.e(TAG, "No audio attachment found on this voicemail, mimeTypes:" + mimeTypes);
+    return null;
   }
 
   public boolean fetchTranscription(TranscriptionFetchedCallback callback, String uid) {
@@ -371,7 +513,7 @@ public class ImapHelper implements Closeable {
           // This method is called synchronously so the transcription will be populated
           // in the listener once the next method is called.
           mFolder.fetch(new Message[] {message}, fetchProfile, listener);
-          callback.setVoicemailTranscription(listener.getVoicemailTranscription());
+          callback.setVoicemailTranscription(listener.getVoicemailTranscription(uid));
         }
       }
       return true;
@@ -508,6 +650,25 @@ public class ImapHelper implements Closeable {
     LogUtils.i(TAG, "Updated quota occupied and total");
   }
 
+  /** Result of {@link #fetchVoicemailsSince(long, long)}. */
+  public static class IncrementalFetchResult {
+
+    /** The voicemails with a UID above the last one synced. */
+    public final List<Voicemail> newVoicemails;
+
+    /**
+     * The UIDs of the messages which were already synced and are still on the server, mapped to
+     * whether they are read.
+     */
+    public final Map<String, Boolean> existingReadStates;
+
+    public IncrementalFetchResult(
+        List<Voicemail> newVoicemails, Map<String, Boolean> existingReadStates) {
+      this.newVoicemails = newVoicemails;
+      this.existingReadStates = existingReadStates;
+    }
+  }
+
   /**
    * A wrapper to hold a message with its header details and the structure for transcriptions (so
    * they can be fetched in the future).
@@ -524,27 +685,33 @@ public class ImapHelper implements Closeable {
   private final class MessageStructureFetchedListener
       implements ImapFolder.MessageRetrievalListener {
 
-    private MessageStructureWrapper mMessageStructure;
+    private final List<MessageStructureWrapper> mMessageStructures = new ArrayList<>();
 
     public MessageStructureFetchedListener() {}
 
-    public MessageStructureWrapper getMessageStructure() {
-      return mMessageStructure;
+    /** Returns the structures of the retrieved voicemails, in the order they were retrieved. */
+    public List<MessageStructureWrapper> getMessageStructures() {
+      return mMessageStructures;
     }
 
     @Override
     public void messageRetrieved(Message message) {
       LogUtils.d(TAG, "Fetched message structure for " + message.getUid());
       LogUtils.d(TAG, "Message retrieved: " + message);
+      if (message.isSet(Flag.DELETED)) {
+        LogUtils.d(TAG, "Ignored deleted message");
+        return;
+      }
       try {
-        mMessageStructure = getMessageOrNull(message);
-        if (mMessageStructure == null) {
+        MessageStructureWrapper messageStructure = getMessageOrNull(message);
+        if (messageStructure == null) {
           LogUtils.d(TAG, "This voicemail does not have an attachment...");
           return;
         }
+        mMessageStructures.add(messageStructure);
       } catch (MessagingException e) {
+        // The rest of the response is still being read, so only skip this message.
         LogUtils.e(TAG, e, "Messaging Exception");
-        closeImapFolder();
       }
     }
 
@@ -587,63 +754,23 @@ public class ImapHelper implements Closeable {
     }
   }
 
-  /** Listener for the message body being fetched. */
-  private final class MessageBodyFetchedListener implements ImapFolder.MessageRetrievalListener {
-
-    private VoicemailPayload mVoicemailPayload;
-
-    /** Returns the fetch voicemail payload. */
-    public VoicemailPayload getVoicemailPayload() {
-      return mVoicemailPayload;
-    }
-
-    @Override
-    public void messageRetrieved(Message message) {
-      LogUtils.d(TAG, "Fetched message body for " + message.getUid());
-      LogUtils.d(TAG, "Message retrieved: " + message);
-      try {
-        mVoicemailPayload = getVoicemailPayloadFromMessage(message);
-      } catch (MessagingException e) {
-        LogUtils.e(TAG, "Messaging Exception:", e);
-      } catch (IOException e) {
-        LogUtils.e(TAG, "IO Exception:", e);
-      }
-    }
-
-    private VoicemailPayload getVoicemailPayloadFromMessage(Message message)
-        throws MessagingException, IOException {
-      Multipart multipart = (Multipart) message.getBody();
-      List<String> mimeTypes = new ArrayList<>();
-      for (int i = 0; i < multipart.getCount(); ++i) {
-        BodyPart bodyPart = multipart.getBodyPart(i);
-        String bodyPartMimeType = bodyPart.getMimeType().toLowerCase();
-        mimeTypes.add(bodyPartMimeType);
-        if (bodyPartMimeType.startsWith("audio/")) {
-          byte[] bytes = getDataFromBody(bodyPart.getBody());
-          LogUtils.d(TAG, String.format("Fetched %s bytes of data", bytes.length));
-          return new VoicemailPayload(bodyPartMimeType, bytes);
-        }
-      }
-      LogUtils.e(TAG, "No audio attachment found on this voicemail, mimeTypes:" + mimeTypes);
-      return null;
-    }
-  }
-
   /** Listener for the transcription being fetched. */
   private final class TranscriptionFetchedListener implements ImapFolder.MessageRetrievalListener {
 
-    private String mVoicemailTranscription;
+    private final ArrayMap<String, String> mVoicemailTranscriptions = new ArrayMap<>();
 
-    /** Returns the fetched voicemail transcription. */
-    public String getVoicemailTranscription() {
-      return mVoicemailTranscription;
+    /** Returns the fetched transcription of the voicemail with the given UID. */
+    @Nullable
+    public String getVoicemailTranscription(String uid) {
+      return mVoicemailTranscriptions.get(uid);
     }
 
     @Override
     public void messageRetrieved(Message message) {
       LogUtils.d(TAG, "Fetched transcription for " + message.getUid());
       try {
-        mVoicemailTranscription = new String(getDataFromBody(message.getBody()));
+        mVoicemailTranscriptions.put(
+            message.getUid(), new String(getDataFromBody(message.getBody())));
       } catch (MessagingException e) {
         LogUtils.e(TAG, "Messaging Exception:", e);
       } catch (IOException e) {
@@ -53,7 +53,7 @@ public class MailTransport {
       HttpsURLConnection.getDefaultHostnameVerifier();
 
   private final Context mContext;
-  private final ImapHelper mImapHelper;
+  private ImapHelper mImapHelper;
   private final Network mNetwork;
   private final String mHost;
   private final int mPort;
@@ -260,6 +260,19 @@ public class MailTransport {
     }
   }
 
+  /**
+   * Sets the {@link ImapHelper} events are reported to, for a connection reused by another {@link
+   * ImapStore}.
+   */
+  public void setImapHelper(ImapHelper imapHelper) {
+    mImapHelper = imapHelper;
+  }
+
+  /** Sets the read timeout of the open socket, in milliseconds. */
+  public void setSoTimeout(int timeoutMillis) throws IOException {
+    mSocket.setSoTimeout(timeoutMillis);
+  }
+
   public boolean isOpen() {
     return (mIn != null
         && mOut != null
@@ -15,6 +15,7 @@
  */
 package com.android.voicemail.impl.mail.store;
 
+import android.support.annotation.Nullable;
 import android.util.ArraySet;
 import android.util.Base64;
 import com.android.voicemail.impl.OmtpEvents;
@@ -28,6 +29,7 @@ import com.android.voicemail.impl.mail.store.imap.DigestMd5Utils;
 import com.android.voicemail.impl.mail.store.imap.ImapConstants;
 import com.android.voicemail.impl.mail.store.imap.ImapResponse;
 import com.android.voicemail.impl.mail.store.imap.ImapResponseParser;
+import com.android.voicemail.impl.mail.store.imap.ImapResponseParser.LiteralConsumer;
 import com.android.voicemail.impl.mail.store.imap.ImapUtility;
 import com.android.voicemail.impl.mail.utils.LogUtils;
 import java.io.IOException;
@@ -47,9 +49,13 @@ public class ImapConnection {
   private MailTransport mTransport;
   private ImapResponseParser mParser;
   private Set<String> mCapabilities = new ArraySet<>();
+  private boolean mAuthenticated;
 
   static final String IMAP_REDACTED_LOG = "[IMAP command redacted]";
 
+  /** Read timeout of the NOOP checking whether an idle connection is still alive. */
+  private static final int NOOP_TIMEOUT_MILLIS = 5000;
+
   /**
    * Next tag to use. All connections associated to the same ImapStore instance share the same
    * counter to make tests simpler. (Some of the tests involve multiple connections but only have a
@@ -67,6 +73,10 @@ public class ImapConnection {
     // changed, the connection will not be reestablished.
     mImapStore = store;
     mLoginPhrase = null;
+    // A connection reused by another store reports its events to the ImapHelper of that store.
+    if (store != null && mTransport != null) {
+      mTransport.setImapHelper(store.getImapHelper());
+    }
   }
 
   /**
@@ -123,6 +133,7 @@ public class ImapConnection {
 
       // LOGIN
       doLogin();
+      mAuthenticated = true;
     } catch (SSLException e) {
       LogUtils.d(TAG, "SSLException ", e);
       mImapStore.getImapHelper().handleEvent(OmtpEvents.DATA_SSL_EXCEPTION);
@@ -155,16 +166,54 @@ public class ImapConnection {
    * {@link #setStore(ImapStore)} is called.
    */
   void close() {
+    close(true);
+  }
+
+  /**
+   * Same as {@link #close()}, but only logs out if {@code logout} is true. Should be false if the
+   * server can't be reached anymore.
+   */
+  void close(boolean logout) {
     if (mTransport != null) {
-      logout();
+      if (logout) {
+        logout();
+      }
       mTransport.close();
       mTransport = null;
     }
+    mAuthenticated = false;
     destroyResponses();
     mParser = null;
     mImapStore = null;
   }
 
+  /** Whether the connection is open and logged in, so it can be used without logging in again. */
+  boolean isAuthenticated() {
+    return mAuthenticated && mTransport != null && mTransport.isOpen();
+  }
+
+  /**
+   * Sends a NOOP to check whether the server still accepts commands on this logged in connection.
+   * The connection should be closed if this returns false.
+   */
+  boolean isAlive() {
+    if (!isAuthenticated()) {
+      return false;
+    }
+    try {
+      // Don't block the task for the whole read timeout if the server went away.
+      mTransport.setSoTimeout(NOOP_TIMEOUT_MILLIS);
+      executeSimpleCommand(ImapConstants.NOOP);
+      mTransport.setSoTimeout(MailTransport.SOCKET_READ_TIMEOUT);
+      return true;
+    } catch (IOException | MessagingException e) {
+      VvmLog.w(TAG, "NOOP failed: " + e);
+      return false;
+    } finally {
+      destroyResponses();
+    }
+  }
+
   /** Attempts to convert the connection into secure connection. */
   private void maybeDoStartTls() throws IOException, MessagingException {
     // STARTTLS is required in the OMTP standard but not every implementation support it.
@@ -328,6 +377,17 @@ public class ImapConnection {
     return mParser.readResponse(false);
   }
 
+  /**
+   * Sets the consumer of the literals of the responses read next, see {@link
+   * ImapResponseParser#setLiteralConsumer(LiteralConsumer)}. Must be called after {@link
+   * #sendCommand(String, boolean)} has opened the connection.
+   */
+  public void setLiteralConsumer(@Nullable LiteralConsumer consumer) {
+    if (mParser != null) {
+      mParser.setLiteralConsumer(consumer);
+    }
+  }
+
   public List<ImapResponse> executeSimpleCommand(String command)
       throws IOException, MessagingException {
     return executeSimpleCommand(command, false);
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.voicemail.impl.mail.store;
+
+import android.net.Network;
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
+import android.util.ArrayMap;
+import com.android.voicemail.impl.VvmLog;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the logged in {@link ImapConnection} of each account open for a while after its {@link
+ * ImapStore} is done with it, so tasks ran back to back can skip connecting, negotiating TLS and
+ * authenticating again.
+ *
+ * <p>A connection is only handed out again on the {@link Network} it was opened on and with the
+ * same password. The {@link ImapStore} should check it is still alive before using it. Connections
+ * idle for {@link #IDLE_TIMEOUT_MILLIS} are logged out. Connections on a network which is lost or
+ * whose request is released are dropped with {@link #closeConnections(Network)}, so connections
+ * are only reused while their network is held. The network of an account is held for a while
+ * after its task, see {@link com.android.voicemail.impl.sync.VvmNetworkRequest}.
+ */
+public final class ImapConnectionCache {
+
+  private static final String TAG = "ImapConnectionCache";
+
+  public static final long IDLE_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(2);
+
+  /** Idle connections by the user name, server, port and flags of their {@link ImapStore}. */
+  private static final Map<String, Entry> sIdleConnections = new ArrayMap<>();
+
+  /** Runs the idle timeouts, only while there are idle connections. */
+  private static ScheduledExecutorService sExecutor;
+
+  private static final class Entry {
+    final ImapConnection connection;
+    final Network network;
+    final String password;
+    ScheduledFuture<?> expiry;
+
+    Entry(ImapConnection connection, Network network, String password) {
+      this.connection = connection;
+      this.network = network;
+      this.password = password;
+    }
+  }
+
+  private ImapConnectionCache() {}
+
+  /**
+   * Removes and returns the idle connection of the account, or {@code null} if there is none that
+   * can be used on {@code network} with {@code password}.
+   */
+  @Nullable
+  static ImapConnection acquire(String key, Network network, String password) {
+    Entry entry;
+    synchronized (ImapConnectionCache.class) {
+      entry = sIdleConnections.remove(key);
+      if (entry == null) {
+        return null;
+      }
+      entry.expiry.cancel(false);
+      maybeShutdownExecutor();
+    }
+    if (!entry.network.equals(network) || !TextUtils.equals(entry.password, password)) {
+      // The previous network may have been torn down, don't wait for a LOGOUT over it.
+      VvmLog.i(TAG, "network or credentials changed, closing idle connection");
+      entry.connection.close(false);
+      return null;
+    }
+    VvmLog.i(TAG, "reusing idle connection");
+    return entry.connection;
+  }
+
+  /**
+   * Keeps {@code connection} for the next {@link #acquire(String, Network, String)} of the account,
+   * replacing any other idle connection of it. The connection is closed instead if it is not logged
+   * in.
+   */
+  static void release(String key, Network network, String password, ImapConnection connection) {
+    if (!connection.isAuthenticated()) {
+      connection.close();
+      return;
+    }
+    // Detach from the previous store while idle. The transport is pointed at the ImapHelper of the
+    // next store when it's acquired.
+    connection.setStore(null);
+    Entry entry = new Entry(connection, network, password);
+    Entry previous;
+    synchronized (ImapConnectionCache.class) {
+      previous = sIdleConnections.put(key, entry);
+      if (previous != null) {
+        previous.expiry.cancel(false);
+      }
+      entry.expiry =
+          getExecutor()
+              .schedule(() -> expire(key, entry), IDLE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+    if (previous != null) {
+      previous.connection.close();
+    }
+  }
+
+  /**
+   * Closes the idle connections opened on {@code network} without logging out, as the network has
+   * been lost or its request released.
+   */
+  public static void closeConnections(Network network) {
+    List<Entry> lostEntries = new ArrayList<>();
+    synchronized (ImapConnectionCache.class) {
+      Iterator<Entry> iterator = sIdleConnections.values().iterator();
+      while (iterator.hasNext()) {
+        Entry entry = iterator.next();
+        if (entry.network.equals(network)) {
+          iterator.remove();
+          entry.expiry.cancel(false);
+          lostEntries.add(entry);
+        }
+      }
+      maybeShutdownExecutor();
+    }
+    for (Entry entry : lostEntries) {
+      VvmLog.i(TAG, "network released, closing idle connection");
+      entry.connection.close(false);
+    }
+  }
+
+  private static void expire(String key, Entry entry) {
+    synchronized (ImapConnectionCache.class) {
+      if (sIdleConnections.get(key) != entry) {
+        // Acquired or replaced in the meantime.
+        return;
+      }
+      sIdleConnections.remove(key);
+      maybeShutdownExecutor();
+    }
+    VvmLog.i(TAG, "closing idle connection");
+    entry.connection.close();
+  }
+
+  private static ScheduledExecutorService getExecutor() {
+    if (sExecutor == null) {
+      sExecutor = Executors.newSingleThreadScheduledExecutor();
+    }
+    return sExecutor;
+  }
+
+  /**
+   * Shuts the executor down once there are no idle connections, so its thread doesn't outlive them.
+   * The expiry of every removed connection must have been cancelled or ran already.
+   */
+  private static void maybeShutdownExecutor() {
+    if (sIdleConnections.isEmpty() && sExecutor != null) {
+      sExecutor.shutdown();
+      sExecutor = null;
+    }
+  }
+}
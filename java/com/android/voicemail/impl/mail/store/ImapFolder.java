@@ -62,6 +62,7 @@ public class ImapFolder {
   private final ImapStore mStore;
   private final String mName;
   private int mMessageCount = -1;
+  private long mUidValidity = -1;
   private ImapConnection mConnection;
   private String mMode;
   private boolean mExists;
@@ -140,6 +141,7 @@ public class ImapFolder {
       }
     }
     mMessageCount = -1;
+    mUidValidity = -1;
     synchronized (this) {
       mConnection = null;
     }
@@ -149,6 +151,14 @@ public class ImapFolder {
     return mMessageCount;
   }
 
+  /**
+   * Returns the UIDVALIDITY of the folder reported when it was opened, or -1 if the server did not
+   * report one. UIDs seen before are only valid as long as this value doesn't change.
+   */
+  public long getUidValidity() {
+    return mUidValidity;
+  }
+
   String[] getSearchUids(List<ImapResponse> responses) {
     // S: * SEARCH 2 3 6
     final ArrayList<String> uids = new ArrayList<String>();
@@ -250,7 +260,61 @@ public class ImapFolder {
     for (Message m : messages) {
       messageMap.put(m.getUid(), m);
     }
+    fetchInternal(ImapStore.joinMessageUids(messages), messageMap, null, fp, listener);
+  }
+
+  /**
+   * Fetches the items in {@code fp} for every message in the folder with a single {@code UID FETCH
+   * 1:*}, rather than searching for the UIDs first and fetching them afterwards. The listener is
+   * called as each response is parsed.
+   *
+   * <p>Unlike {@link #getMessages(String[])} the result includes messages flagged as deleted, so
+   * {@link FetchProfile.Item#FLAGS} should be fetched to tell them apart.
+   *
+   * @return the messages returned by the server, in the order of the responses
+   */
+  public Message[] fetchAll(FetchProfile fp, MessageRetrievalListener listener)
+      throws MessagingException {
+    return fetchUidRange("1:*", fp, listener);
+  }
+
+  /**
+   * Like {@link #fetchAll(FetchProfile, MessageRetrievalListener)}, but only for the messages in
+   * {@code uidSet}. Note that a range ending in "*" always includes the message with the highest
+   * UID, even if that UID is below the start of the range.
+   *
+   * @param uidSet the UIDs to fetch, in IMAP sequence set syntax, for example "42:*"
+   */
+  public Message[] fetchUidRange(String uidSet, FetchProfile fp, MessageRetrievalListener listener)
+      throws MessagingException {
+    checkOpen();
+    if (mMessageCount == 0) {
+      // Some servers reject "1:*" on an empty mailbox.
+      return Message.EMPTY_ARRAY;
+    }
+    final List<Message> messages = new ArrayList<Message>();
+    try {
+      fetchInternal(uidSet, new ArrayMap<String, Message>(), messages, fp, listener);
+    } catch (RuntimeException e) { // Probably a parser error.
+      VvmLog.w(TAG, "Exception detected: " + e.getMessage());
+      throw e;
+    }
+    return messages.toArray(Message.EMPTY_ARRAY);
+  }
 
+  /**
+   * @param uidSet the UIDs to fetch, in IMAP sequence set syntax
+   * @param messageMap the messages to fill in, keyed by UID
+   * @param newMessages if not null, messages not in {@code messageMap} are created, added to the
+   *     map and to this list; otherwise their responses are ignored
+   */
+  private void fetchInternal(
+      String uidSet,
+      ArrayMap<String, Message> messageMap,
+      @Nullable List<Message> newMessages,
+      FetchProfile fp,
+      MessageRetrievalListener listener)
+      throws MessagingException {
     /*
      * Figure out what command we are going to run:
      * FLAGS     - UID FETCH (FLAGS)
@@ -300,7 +364,7 @@ public class ImapFolder {
           String.format(
               Locale.US,
               ImapConstants.UID_FETCH + " %s (%s)",
-              ImapStore.joinMessageUids(messages),
+              uidSet,
               Utility.combine(fetchFields.toArray(new String[fetchFields.size()]), ' ')),
           false);
       ImapResponse response;
@@ -317,7 +381,12 @@ public class ImapFolder {
           if (TextUtils.isEmpty(uid)) continue;
 
           ImapMessage message = (ImapMessage) messageMap.get(uid);
-          if (message == null) continue;
+          if (message == null) {
+            if (newMessages == null) continue;
+            message = new ImapMessage(uid, this);
+            messageMap.put(uid, message);
+            newMessages.add(message);
+          }
 
           if (fp.contains(FetchProfile.Item.FLAGS)) {
             final ImapList flags = fetchList.getKeyedListOrEmpty(ImapConstants.FLAGS);
@@ -376,37 +445,7 @@ public class ImapFolder {
             }
           }
           if (fetchPart != null) {
-            InputStream bodyStream = fetchList.getKeyedStringOrEmpty("BODY[", true).getAsStream();
-            String[] encodings = fetchPart.getHeader(MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING);
-
-            String contentTransferEncoding = null;
-            if (encodings != null && encodings.length > 0) {
-              contentTransferEncoding = encodings[0];
-            } else {
-              // According to http://tools.ietf.org/html/rfc2045#section-6.1
-              // "7bit" is the default.
-              contentTransferEncoding = "7bit";
-            }
-
-            try {
-              // TODO Don't create 2 temp files.
-              // decodeBody creates BinaryTempFileBody, but we could avoid this
-              // if we implement ImapStringBody.
-              // (We'll need to share a temp file.  Protect it with a ref-count.)
-              message.setBody(
-                  decodeBody(
-                      mStore.getContext(),
-                      bodyStream,
-                      contentTransferEncoding,
-                      fetchPart.getSize(),
-                      listener));
-            } catch (Exception e) {
-              // TODO: Figure out what kinds of exceptions might actually be thrown
-              // from here. This blanket catch-all is because we're not sure what to
-              // do if we don't have a contentTransferEncoding, and we don't have
-              // time to figure out what exceptions might be thrown.
-              VvmLog.e(TAG, "Error fetching body %s", e);
-            }
+            parsePart(message, fetchPart, fetchList, listener);
           }
 
           if (listener != null) {
@@ -422,6 +461,183 @@ public class ImapFolder {
     }
   }
 
+  /**
+   * Decodes the body of {@code fetchPart} from a FETCH response and sets it as the body of the
+   * message.
+   */
+  private void parsePart(
+      ImapMessage message, Part fetchPart, ImapList fetchList, MessageRetrievalListener listener)
+      throws MessagingException {
+    InputStream bodyStream = fetchList.getKeyedStringOrEmpty("BODY[", true).getAsStream();
+    String[] encodings = fetchPart.getHeader(MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING);
+
+    String contentTransferEncoding = null;
+    if (encodings != null && encodings.length > 0) {
+      contentTransferEncoding = encodings[0];
+    } else {
+      // According to http://tools.ietf.org/html/rfc2045#section-6.1
+      // "7bit" is the default.
+      contentTransferEncoding = "7bit";
+    }
+
+    try {
+      // TODO Don't create 2 temp files.
+      // decodeBody creates BinaryTempFileBody, but we could avoid this
+      // if we implement ImapStringBody.
+      // (We'll need to share a temp file.  Protect it with a ref-count.)
+      message.setBody(
+          decodeBody(
+              mStore.getContext(),
+              bodyStream,
+              contentTransferEncoding,
+              fetchPart.getSize(),
+              listener));
+    } catch (Exception e) {
+      // TODO: Figure out what kinds of exceptions might actually be thrown
+      // from here. This blanket catch-all is because we're not sure what to
+      // do if we don't have a contentTransferEncoding, and we don't have
+      // time to figure out what exceptions might be thrown.
+      VvmLog.e(TAG, "Error fetching body %s", e);
+    }
+  }
+
+  /**
+   * Fetches one part of each message, {@code parts[i]} being the part of {@code messages[i]}. The
+   * parts usually have the same ID in every message, in which case a single {@code UID FETCH} is
+   * sent. Otherwise one command is sent per part ID, all of them before reading any response, so
+   * that the whole fetch takes a single round trip.
+   */
+  public void fetchParts(Message[] messages, Part[] parts, MessageRetrievalListener listener)
+      throws MessagingException {
+    if (messages.length != parts.length) {
+      throw new IllegalArgumentException("Expected one part per message");
+    }
+    if (messages.length == 0) {
+      return;
+    }
+    checkOpen();
+    final ArrayMap<String, List<Message>> messagesByPartId = new ArrayMap<>();
+    final ArrayMap<String, Message> messageMap = new ArrayMap<>();
+    final ArrayMap<String, Part> partMap = new ArrayMap<>();
+    for (int i = 0; i < messages.length; i++) {
+      final String[] partIds = parts[i].getHeader(MimeHeader.HEADER_ANDROID_ATTACHMENT_STORE_DATA);
+      if (partIds == null) {
+        continue;
+      }
+      List<Message> group = messagesByPartId.get(partIds[0]);
+      if (group == null) {
+        group = new ArrayList<>();
+        messagesByPartId.put(partIds[0], group);
+      }
+      group.add(messages[i]);
+      messageMap.put(messages[i].getUid(), messages[i]);
+      partMap.put(messages[i].getUid(), parts[i]);
+    }
+
+    try {
+      for (int i = 0; i < messagesByPartId.size(); i++) {
+        mConnection.sendCommand(
+            String.format(
+                Locale.US,
+                ImapConstants.UID_FETCH + " %s (%s %s[%s])",
+                ImapStore.joinMessageUids(messagesByPartId.valueAt(i).toArray(Message.EMPTY_ARRAY)),
+                ImapConstants.UID,
+                ImapConstants.FETCH_FIELD_BODY_PEEK_BARE,
+                messagesByPartId.keyAt(i)),
+            false);
+      }
+      int pendingCommands = messagesByPartId.size();
+      while (pendingCommands > 0) {
+        try {
+          final ImapResponse response = mConnection.readResponse();
+          if (response.isTagged()) {
+            pendingCommands--;
+            continue;
+          }
+          if (!response.isDataResponse(1, ImapConstants.FETCH)) {
+            continue; // Ignore
+          }
+          final ImapList fetchList = response.getListOrEmpty(2);
+          final String uid = fetchList.getKeyedStringOrEmpty(ImapConstants.UID).getString();
+          final ImapMessage message = (ImapMessage) messageMap.get(uid);
+          if (message == null) {
+            continue;
+          }
+          parsePart(message, partMap.get(uid), fetchList, listener);
+          if (listener != null) {
+            listener.messageRetrieved(message);
+          }
+        } finally {
+          destroyResponses();
+        }
+      }
+    } catch (IOException ioe) {
+      mStore.getImapHelper().handleEvent(OmtpEvents.DATA_GENERIC_IMAP_IOE);
+      throw ioExceptionHandler(mConnection, ioe);
+    } catch (RuntimeException e) { // Probably a parser error.
+      VvmLog.w(TAG, "Exception detected: " + e.getMessage());
+      throw e;
+    }
+  }
+
+  /**
+   * Fetches the content of {@code part}, removes its content transfer encoding and writes it to
+   * {@code out} while it is being received. Unlike fetching the part with {@link #fetch}, the
+   * content is neither held in memory nor copied to a temp file first.
+   *
+   * @return whether the server returned the part
+   */
+  public boolean fetchPartToStream(Message message, Part part, final OutputStream out)
+      throws MessagingException {
+    checkOpen();
+    final String[] partIds = part.getHeader(MimeHeader.HEADER_ANDROID_ATTACHMENT_STORE_DATA);
+    if (partIds == null) {
+      throw new MessagingException("Part has no ID");
+    }
+    final String[] encodings = part.getHeader(MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING);
+    // According to http://tools.ietf.org/html/rfc2045#section-6.1 "7bit" is the default.
+    final String contentTransferEncoding =
+        encodings != null && encodings.length > 0 ? encodings[0] : "7bit";
+    final boolean[] received = new boolean[1];
+    final ImapConnection connection = mConnection;
+    try {
+      connection.sendCommand(
+          String.format(
+              Locale.US,
+              ImapConstants.UID_FETCH + " %s (%s %s[%s])",
+              message.getUid(),
+              ImapConstants.UID,
+              ImapConstants.FETCH_FIELD_BODY_PEEK_BARE,
+              partIds[0]),
+          false);
+      connection.setLiteralConsumer(
+          in -> {
+            InputStream decoded =
+                MimeUtility.getInputStreamForContentTransferEncoding(in, contentTransferEncoding);
+            byte[] buffer = new byte[COPY_BUFFER_SIZE];
+            int n;
+            while ((n = decoded.read(buffer)) != -1) {
+              out.write(buffer, 0, n);
+            }
+            received[0] = true;
+          });
+      ImapResponse response;
+      do {
+        try {
+          response = connection.readResponse();
+        } finally {
+          destroyResponses();
+        }
+      } while (!response.isTagged());
+      return received[0];
+    } catch (IOException ioe) {
+      mStore.getImapHelper().handleEvent(OmtpEvents.DATA_GENERIC_IMAP_IOE);
+      throw ioExceptionHandler(connection, ioe);
+    } finally {
+      connection.setLiteralConsumer(null);
+    }
+  }
+
   /**
    * Removes any content transfer encoding from the stream and returns a Body. This code is
    * taken/condensed from MimeUtility.decodeBody
@@ -720,6 +936,7 @@ public class ImapFolder {
     // Assume the folder is opened read-write; unless we are notified otherwise
     mMode = MODE_READ_WRITE;
     int messageCount = -1;
+    long uidValidity = -1;
     for (ImapResponse response : responses) {
       if (response.isDataResponse(1, ImapConstants.EXISTS)) {
         messageCount = response.getStringOrEmpty(0).getNumberOrZero();
@@ -729,6 +946,9 @@ public class ImapFolder {
           mMode = MODE_READ_ONLY;
         } else if (responseCode.is(ImapConstants.READ_WRITE)) {
           mMode = MODE_READ_WRITE;
+        } else if (responseCode.is(ImapConstants.UIDVALIDITY)) {
+          // UIDVALIDITY is a 32 bit unsigned number, which may not fit in an int.
+          uidValidity = parseUid(response.getListOrEmpty(1).getStringOrEmpty(1).getString());
         }
       } else if (response.isTagged()) { // Not OK
         mStore.getImapHelper().handleEvent(OmtpEvents.DATA_MAILBOX_OPEN_FAILED);
@@ -740,9 +960,19 @@ public class ImapFolder {
       throw new MessagingException("Did not find message count during select");
     }
     mMessageCount = messageCount;
+    mUidValidity = uidValidity;
     mExists = true;
   }
 
+  /** Parses a UID or UIDVALIDITY, returning -1 if it is not a number. */
+  public static long parseUid(String uid) {
+    try {
+      return Long.parseLong(uid);
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
   public class Quota {
 
     public final int occupied;
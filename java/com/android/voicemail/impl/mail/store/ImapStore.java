@@ -18,6 +18,7 @@ package com.android.voicemail.impl.mail.store;
 
 import android.content.Context;
 import android.net.Network;
+import com.android.voicemail.impl.VvmLog;
 import com.android.voicemail.impl.imap.ImapHelper;
 import com.android.voicemail.impl.mail.MailTransport;
 import com.android.voicemail.impl.mail.Message;
@@ -28,6 +29,8 @@ import java.io.InputStream;
 import org.apache.james.mime4j.MimeException;
 
 public class ImapStore {
+  private static final String TAG = "ImapStore";
+
   /**
    * A global suggestion to Store implementors on how much of the body should be returned on
    * FetchProfile.Item.BODY_SANE requests. We'll use 125k now.
@@ -39,6 +42,8 @@ public class ImapStore {
   private final String mUsername;
   private final String mPassword;
   private final MailTransport mTransport;
+  private final Network mNetwork;
+  private final String mConnectionCacheKey;
   private ImapConnection mConnection;
 
   public static final int FLAG_NONE = 0x00; // No flags
@@ -63,6 +68,8 @@ public class ImapStore {
     mUsername = username;
     mPassword = password;
     mTransport = new MailTransport(context, this.getImapHelper(), network, serverName, port, flags);
+    mNetwork = network;
+    mConnectionCacheKey = username + "@" + serverName + ":" + port + "/" + flags;
   }
 
   public Context getContext() {
@@ -173,9 +180,35 @@ public class ImapStore {
     }
   }
 
+  /**
+   * Hands the connection over to {@link ImapConnectionCache}, so the next store of the same account
+   * can reuse it while it is still logged in.
+   */
+  public void releaseConnection() {
+    if (mConnection != null) {
+      ImapConnectionCache.release(mConnectionCacheKey, mNetwork, mPassword, mConnection);
+      mConnection = null;
+    }
+  }
+
+  /**
+   * Returns the connection of this store. An idle connection of the same account is reused if the
+   * server still answers a NOOP on it, otherwise a new connection which will log in when the first
+   * command is sent is returned.
+   */
   public ImapConnection getConnection() {
     if (mConnection == null) {
-      mConnection = new ImapConnection(this);
+      ImapConnection connection =
+          ImapConnectionCache.acquire(mConnectionCacheKey, mNetwork, mPassword);
+      if (connection != null) {
+        connection.setStore(this);
+        if (!connection.isAlive()) {
+          VvmLog.i(TAG, "idle connection is dead, reconnecting");
+          connection.close(false);
+          connection = null;
+        }
+      }
+      mConnection = connection != null ? connection : new ImapConnection(this);
     }
     return mConnection;
   }
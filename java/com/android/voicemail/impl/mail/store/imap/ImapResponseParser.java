@@ -16,13 +16,14 @@
 
 package com.android.voicemail.impl.mail.store.imap;
 
+import android.support.annotation.Nullable;
 import android.text.TextUtils;
 import com.android.voicemail.impl.VvmLog;
 import com.android.voicemail.impl.mail.FixedLengthInputStream;
 import com.android.voicemail.impl.mail.MessagingException;
-import com.android.voicemail.impl.mail.PeekableInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 
 /** IMAP response parser. */
@@ -32,8 +33,53 @@ public class ImapResponseParser {
   /** Literal larger than this will be stored in temp file. */
   public static final int LITERAL_KEEP_IN_MEMORY_THRESHOLD = 2 * 1024 * 1024;
 
+  /** Size of {@link #mBuffer}. Reads of literals at least this large bypass it. */
+  private static final int BUFFER_SIZE = 16 * 1024;
+
   /** Input stream */
-  private final PeekableInputStream mIn;
+  private final InputStream mIn;
+
+  /**
+   * The bytes read from {@link #mIn} which haven't been parsed yet are {@code mBuffer[mPosition]}
+   * to {@code mBuffer[mLimit - 1]}. Atoms and quoted strings are scanned in the buffer directly
+   * instead of being read from the stream one byte at a time.
+   */
+  private final byte[] mBuffer = new byte[BUFFER_SIZE];
+
+  private int mPosition;
+  private int mLimit;
+
+  /** Stream of the buffered bytes followed by the rest of {@link #mIn}, for reading literals. */
+  private final InputStream mBufferedIn =
+      new InputStream() {
+        @Override
+        public int read() throws IOException {
+          if (mPosition == mLimit && !fill()) {
+            return -1;
+          }
+          return mBuffer[mPosition++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int offset, int length) throws IOException {
+          if (length == 0) {
+            return 0;
+          }
+          if (mPosition == mLimit) {
+            if (length >= BUFFER_SIZE) {
+              // Don't copy large literals through the buffer.
+              return mIn.read(b, offset, length);
+            }
+            if (!fill()) {
+              return -1;
+            }
+          }
+          final int count = Math.min(length, mLimit - mPosition);
+          System.arraycopy(mBuffer, mPosition, b, offset, count);
+          mPosition += count;
+          return count;
+        }
+      };
 
   private final int mLiteralKeepInMemoryThreshold;
 
@@ -49,6 +95,18 @@ public class ImapResponseParser {
    */
   private final ArrayList<ImapResponse> mResponsesToDestroy = new ArrayList<ImapResponse>();
 
+  /** If set, literals are passed to it as they are read instead of being stored. */
+  @Nullable private LiteralConsumer mLiteralConsumer;
+
+  /** Reads literals straight from the stream, for content too large to be stored. */
+  public interface LiteralConsumer {
+    /**
+     * Called when a literal starts. Bytes of {@code in} which haven't been read when this returns
+     * are skipped. The literal is replaced by an empty string in the response.
+     */
+    void consumeLiteral(FixedLengthInputStream in) throws IOException;
+  }
+
   /**
    * Exception thrown when we receive BYE. It derives from IOException, so it'll be treated in the
    * same way EOF does.
@@ -68,10 +126,18 @@ public class ImapResponseParser {
 
   /** Constructor for testing to override the literal size threshold. */
   /* package for test */ ImapResponseParser(InputStream in, int literalKeepInMemoryThreshold) {
-    mIn = new PeekableInputStream(in);
+    mIn = in;
     mLiteralKeepInMemoryThreshold = literalKeepInMemoryThreshold;
   }
 
+  /**
+   * Sets the consumer of the literals of the following responses, or {@code null} to store them in
+   * the responses again.
+   */
+  public void setLiteralConsumer(@Nullable LiteralConsumer consumer) {
+    mLiteralConsumer = consumer;
+  }
+
   private static IOException newEOSException() {
     final String message = "End of stream reached";
     VvmLog.d(TAG, message);
@@ -79,31 +145,72 @@ public class ImapResponseParser {
   }
 
   /**
-   * Peek next one byte.
+   * Reads more bytes from {@link #mIn} into the empty buffer.
+   *
+   * @return false if the end of the stream was reached
+   */
+  private boolean fill() throws IOException {
+    final int count = mIn.read(mBuffer, 0, BUFFER_SIZE);
+    if (count <= 0) {
+      return false;
+    }
+    mPosition = 0;
+    mLimit = count;
+    return true;
+  }
+
+  /**
+   * Makes sure the buffer is not empty.
    *
    * <p>Throws IOException() if reaches EOF. As long as logical response lines end with \r\n, we
    * shouldn't see EOF during parsing.
    */
-  private int peek() throws IOException {
-    final int next = mIn.peek();
-    if (next == -1) {
+  private void ensureBuffered() throws IOException {
+    if (mPosition == mLimit && !fill()) {
       throw newEOSException();
     }
-    return next;
   }
 
   /**
-   * Read and return one byte from {@link #mIn}, and put it in {@link #mDiscourseLogger}.
+   * Peek next one byte.
+   *
+   * <p>Throws IOException() if reaches EOF. As long as logical response lines end with \r\n, we
+   * shouldn't see EOF during parsing.
+   */
+  private int peek() throws IOException {
+    ensureBuffered();
+    return mBuffer[mPosition] & 0xff;
+  }
+
+  /**
+   * Read and return one byte from {@link #mIn}.
    *
    * <p>Throws IOException() if reaches EOF. As long as logical response lines end with \r\n, we
    * shouldn't see EOF during parsing.
    */
   private int readByte() throws IOException {
-    int next = mIn.read();
-    if (next == -1) {
-      throw newEOSException();
+    ensureBuffered();
+    return mBuffer[mPosition++] & 0xff;
+  }
+
+  /** Appends {@code mBuffer[start]} to {@code mBuffer[end - 1]} as ISO-8859-1 characters. */
+  private void appendBuffered(StringBuilder sb, int start, int end) {
+    for (int i = start; i < end; i++) {
+      sb.append((char) (mBuffer[i] & 0xff));
+    }
+  }
+
+  /**
+   * Returns the content of the builder followed by {@code mBuffer[start]} to {@code mBuffer[end -
+   * 1]}. Tokens which don't span a refill of the buffer are decoded without copying them into the
+   * builder.
+   */
+  private String toBufferedString(StringBuilder sb, int start, int end) {
+    if (sb.length() == 0) {
+      return new String(mBuffer, start, end - start, StandardCharsets.ISO_8859_1);
     }
-    return next;
+    appendBuffered(sb, start, end);
+    return sb.toString();
   }
 
   /**
@@ -194,12 +301,17 @@ public class ImapResponseParser {
   /* package for test */ String readUntil(char end) throws IOException {
     mBufferReadUntil.setLength(0);
     for (; ; ) {
-      final int ch = readByte();
-      if (ch != end) {
-        mBufferReadUntil.append((char) ch);
-      } else {
-        return mBufferReadUntil.toString();
+      ensureBuffered();
+      final int start = mPosition;
+      while (mPosition < mLimit && (mBuffer[mPosition] & 0xff) != end) {
+        mPosition++;
+      }
+      if (mPosition < mLimit) {
+        final String result = toBufferedString(mBufferReadUntil, start, mPosition);
+        mPosition++; // Skip end
+        return result;
       }
+      appendBuffered(mBufferReadUntil, start, mPosition);
     }
   }
 
@@ -328,50 +440,63 @@ public class ImapResponseParser {
   private ImapString parseBareString() throws IOException, MessagingException {
     mParseBareString.setLength(0);
     for (; ; ) {
-      final int ch = peek();
-
-      // TODO Can we clean this up?  (This condition is from the old parser.)
-      if (ch == '('
-          || ch == ')'
-          || ch == '{'
-          || ch == ' '
-          ||
-          // ']' is not part of atom (it's in resp-specials)
-          ch == ']'
-          ||
-          // docs claim that flags are \ atom but atom isn't supposed to
-          // contain
-          // * and some flags contain *
-          // ch == '%' || ch == '*' ||
-          ch == '%'
-          ||
-          // TODO probably should not allow \ and should recognize
-          // it as a flag instead
-          // ch == '"' || ch == '\' ||
-          ch == '"'
-          || (0x00 <= ch && ch <= 0x1f)
-          || ch == 0x7f) {
-        if (mParseBareString.length() == 0) {
-          throw new MessagingException("Expected string, none found.");
-        }
-        String s = mParseBareString.toString();
-
-        // NIL will be always converted into the empty string.
-        if (ImapConstants.NIL.equalsIgnoreCase(s)) {
-          return ImapString.EMPTY;
-        }
-        return new ImapSimpleString(s);
-      } else if (ch == '[') {
+      ensureBuffered();
+      final int start = mPosition;
+      while (mPosition < mLimit && isAtomChar(mBuffer[mPosition] & 0xff)) {
+        mPosition++;
+      }
+      if (mPosition == mLimit) {
+        appendBuffered(mParseBareString, start, mPosition);
+        continue;
+      }
+      if (mBuffer[mPosition] == '[') {
         // Eat all until next ']'
+        appendBuffered(mParseBareString, start, mPosition);
         mParseBareString.append((char) readByte());
         mParseBareString.append(readUntil(']'));
         mParseBareString.append(']'); // readUntil won't include the end char.
-      } else {
-        mParseBareString.append((char) readByte());
+        continue;
+      }
+      if (mParseBareString.length() == 0 && start == mPosition) {
+        throw new MessagingException("Expected string, none found.");
       }
+      String s = toBufferedString(mParseBareString, start, mPosition);
+
+      // NIL will be always converted into the empty string.
+      if (ImapConstants.NIL.equalsIgnoreCase(s)) {
+        return ImapString.EMPTY;
+      }
+      return new ImapSimpleString(s);
     }
   }
 
+  /** Whether the character can be part of an atom parsed by {@link #parseBareString()}. */
+  private static boolean isAtomChar(int ch) {
+    // TODO Can we clean this up?  (This condition is from the old parser.)
+    return !(ch == '('
+        || ch == ')'
+        || ch == '{'
+        || ch == ' '
+        ||
+        // ']' is not part of atom (it's in resp-specials)
+        ch == ']'
+        ||
+        // docs claim that flags are \ atom but atom isn't supposed to
+        // contain
+        // * and some flags contain *
+        // ch == '%' || ch == '*' ||
+        ch == '%'
+        ||
+        // TODO probably should not allow \ and should recognize
+        // it as a flag instead
+        // ch == '"' || ch == '\' ||
+        ch == '"'
+        || (0x00 <= ch && ch <= 0x1f)
+        || ch == 0x7f
+        // '[' starts a section which is parsed separately.
+        || ch == '[');
+  }
+
   private void parseElements(ImapList list, char end) throws IOException, MessagingException {
     for (; ; ) {
       for (; ; ) {
@@ -414,11 +539,23 @@ public class ImapResponseParser {
     }
     expect('\r');
     expect('\n');
-    FixedLengthInputStream in = new FixedLengthInputStream(mIn, size);
+    FixedLengthInputStream in = new FixedLengthInputStream(mBufferedIn, size);
+    if (mLiteralConsumer != null) {
+      mLiteralConsumer.consumeLiteral(in);
+      skipRemaining(in);
+      return ImapString.EMPTY;
+    }
     if (size > mLiteralKeepInMemoryThreshold) {
       return new ImapTempFileLiteral(in);
     } else {
       return new ImapMemoryLiteral(in);
     }
   }
+
+  private static void skipRemaining(FixedLengthInputStream in) throws IOException {
+    final byte[] buffer = new byte[1024];
+    while (in.read(buffer) != -1) {
+      // Discard
+    }
+  }
 }
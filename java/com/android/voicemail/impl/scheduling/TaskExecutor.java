@@ -25,15 +25,22 @@ import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 import android.support.annotation.MainThread;
 import android.support.annotation.Nullable;
 import android.support.annotation.VisibleForTesting;
 import android.support.annotation.WorkerThread;
+import android.telecom.PhoneAccountHandle;
+import android.util.ArrayMap;
+import android.util.ArraySet;
 import com.android.voicemail.impl.Assert;
 import com.android.voicemail.impl.NeededForTesting;
 import com.android.voicemail.impl.VvmLog;
 import com.android.voicemail.impl.scheduling.TaskQueue.NextTask;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * A singleton to queue and run {@link Task} with the {@link android.app.job.JobScheduler}. A task
@@ -52,8 +59,10 @@ import java.util.List;
  * new task will be pushed into the queue of the scheduled job. If the job is already running, the
  * job will be queued in process memory.
  *
- * <p>Only one task will be ran at a time, and same task cannot exist in the queue at the same time.
- * Refer to {@link TaskQueue} for queuing and execution order.
+ * <p>Tasks are ran on up to {@link #MAX_WORKER_THREADS} worker threads. Only one task will be ran
+ * at a time for each {@link android.telecom.PhoneAccountHandle}, so tasks of different accounts do
+ * not block each other, and same task cannot exist in the queue at the same time. Refer to {@link
+ * TaskQueue} for queuing and execution order.
  *
  * <p>If there are still tasks in the queue but none are executable immediately, the service will
  * enter a "sleep", pushing all remaining task into a new job and end the current job.
@@ -94,6 +103,12 @@ final class TaskExecutor {
 
   private static final int READY_TOLERANCE_MILLISECONDS = 100;
 
+  /**
+   * Maximum number of tasks ran at the same time. Tasks of the same account are never ran at the
+   * same time, so this only matters on devices with more than one SIM.
+   */
+  private static final int MAX_WORKER_THREADS = 2;
+
   /**
    * Threshold to determine whether to do a short or long sleep when a task is scheduled in the
    * future.
@@ -116,8 +131,20 @@ final class TaskExecutor {
   /** Interval between polling of whether the job is finished. */
   private static final int TERMINATE_POLLING_INTERVAL_MILLISECONDS = 1_000;
 
-  // The thread to run tasks on
-  private final WorkerThreadHandler workerThreadHandler;
+  // The threads to run tasks on
+  private final List<WorkerThreadHandler> workerThreadHandlers = new ArrayList<>();
+
+  /** Main thread only, the worker threads not running any task. */
+  private final List<WorkerThreadHandler> idleWorkerThreadHandlers = new ArrayList<>();
+
+  /** Main thread only, the tasks being ran in a worker thread and the thread running them. */
+  private final Map<Task, WorkerThreadHandler> runningTasks = new ArrayMap<>();
+
+  /** Main thread only, the {@link SystemClock#elapsedRealtime()} each queued task was added at. */
+  private final Map<Task, Long> taskAddedTimes = new ArrayMap<>();
+
+  /** Main thread only, the queue wait and execution time of tasks, by task type. */
+  private final Map<String, TaskTimings> taskTimings = new ArrayMap<>();
 
   private static TaskExecutor instance;
 
@@ -134,8 +161,6 @@ final class TaskExecutor {
   /** Main thread only, access through {@link #getTasks()} */
   private final TaskQueue tasks = new TaskQueue();
 
-  private boolean isWorkerThreadBusy = false;
-
   private boolean isTerminating = false;
 
   private Job job;
@@ -154,6 +179,15 @@ final class TaskExecutor {
         }
       };
 
+  private final Runnable maybeRunNextTaskRunnable =
+      new Runnable() {
+        @MainThread
+        @Override
+        public void run() {
+          maybeRunNextTask();
+        }
+      };
+
   /**
    * Reschedule the {@link TaskSchedulerJobService} and terminate the executor when the {@link Job}
    * is truly finished. If the job is still not finished, this runnable will requeue itself on the
@@ -190,6 +224,38 @@ final class TaskExecutor {
     }
   };
 
+  /** Accumulated queue wait and execution time of a type of task. */
+  private static final class TaskTimings {
+    int count;
+    long totalWaitMillis;
+    long maxWaitMillis;
+    long totalExecutionMillis;
+    long maxExecutionMillis;
+
+    void add(long waitMillis, long executionMillis) {
+      count++;
+      totalWaitMillis += waitMillis;
+      maxWaitMillis = Math.max(maxWaitMillis, waitMillis);
+      totalExecutionMillis += executionMillis;
+      maxExecutionMillis = Math.max(maxExecutionMillis, executionMillis);
+    }
+
+    @Override
+    public String toString() {
+      return "count="
+          + count
+          + ", wait avg/max="
+          + totalWaitMillis / count
+          + "/"
+          + maxWaitMillis
+          + "ms, execution avg/max="
+          + totalExecutionMillis / count
+          + "/"
+          + maxExecutionMillis
+          + "ms";
+    }
+  }
+
   /** Should attempt to run the next task when a task has finished or been added. */
   private boolean taskAutoRunDisabledForTesting = false;
 
@@ -205,6 +271,7 @@ final class TaskExecutor {
     public void handleMessage(Message msg) {
       Assert.isNotMainThread();
       Task task = (Task) msg.obj;
+      long startTimeMillis = SystemClock.elapsedRealtime();
       try {
         VvmLog.i(TAG, "executing task " + task);
         task.onExecuteInBackgroundThread();
@@ -214,6 +281,7 @@ final class TaskExecutor {
 
       Message schedulerMessage = mainThreadHandler.obtainMessage();
       schedulerMessage.obj = task;
+      schedulerMessage.arg1 = (int) (SystemClock.elapsedRealtime() - startTimeMillis);
       messageSender.send(schedulerMessage);
     }
   }
@@ -232,8 +300,12 @@ final class TaskExecutor {
       Assert.isMainThread();
       Task task = (Task) msg.obj;
       getTasks().remove(task);
+      WorkerThreadHandler workerThreadHandler = runningTasks.remove(task);
+      if (workerThreadHandler != null) {
+        idleWorkerThreadHandlers.add(workerThreadHandler);
+      }
+      onTaskExecuted(task, msg.arg1);
       task.onCompleted();
-      isWorkerThreadBusy = false;
       if (!isJobRunning() || isTerminating()) {
         // TaskExecutor was terminated when the task is running in background, don't need to run the
         // next task or terminate again
@@ -260,10 +332,12 @@ final class TaskExecutor {
 
   private TaskExecutor(Context context) {
     this.context = context;
-    HandlerThread thread = new HandlerThread("VvmTaskExecutor");
-    thread.start();
-
-    workerThreadHandler = new WorkerThreadHandler(thread.getLooper());
+    for (int i = 0; i < MAX_WORKER_THREADS; i++) {
+      HandlerThread thread = new HandlerThread("VvmTaskExecutor-" + i);
+      thread.start();
+      workerThreadHandlers.add(new WorkerThreadHandler(thread.getLooper()));
+    }
+    idleWorkerThreadHandlers.addAll(workerThreadHandlers);
     mainThreadHandler = new MainThreadHandler(Looper.getMainLooper());
   }
 
@@ -272,7 +346,10 @@ final class TaskExecutor {
     VvmLog.i(TAG, "terminated");
     Assert.isMainThread();
     job = null;
-    workerThreadHandler.getLooper().quit();
+    for (WorkerThreadHandler workerThreadHandler : workerThreadHandlers) {
+      workerThreadHandler.getLooper().quit();
+    }
+    logTaskTimings();
     instance = null;
     TaskReceiver.resendDeferredBroadcasts(context);
   }
@@ -280,7 +357,9 @@ final class TaskExecutor {
   @MainThread
   void addTask(Task task) {
     Assert.isMainThread();
-    getTasks().add(task);
+    if (getTasks().add(task)) {
+      taskAddedTimes.put(task, SystemClock.elapsedRealtime());
+    }
     VvmLog.i(TAG, task + " added");
     mainThreadHandler.removeCallbacks(stopServiceWithDelay);
     maybeRunNextTask();
@@ -297,7 +376,7 @@ final class TaskExecutor {
   private void maybeRunNextTask() {
     Assert.isMainThread();
 
-    if (isWorkerThreadBusy) {
+    if (idleWorkerThreadHandlers.isEmpty()) {
       return;
     }
     if (taskAutoRunDisabledForTesting) {
@@ -317,21 +396,69 @@ final class TaskExecutor {
       prepareStop();
       return;
     }
-    NextTask nextTask = getTasks().getNextTask(READY_TOLERANCE_MILLISECONDS);
+    NextTask nextTask = getTasks().getNextTask(READY_TOLERANCE_MILLISECONDS, getBusyAccounts());
 
     if (nextTask.task != null) {
-      nextTask.task.onBeforeExecute();
+      Task task = nextTask.task;
+      task.onBeforeExecute();
+      WorkerThreadHandler workerThreadHandler = idleWorkerThreadHandlers.remove(0);
+      runningTasks.put(task, workerThreadHandler);
       Message message = workerThreadHandler.obtainMessage();
-      message.obj = nextTask.task;
-      isWorkerThreadBusy = true;
+      message.obj = task;
       messageSender.send(message);
+      // Another account might have a task ready for the remaining worker threads.
+      maybeRunNextTask();
       return;
     }
     VvmLog.i(TAG, "minimal wait time:" + nextTask.minimalWaitTimeMillis);
-    if (!taskAutoRunDisabledForTesting && nextTask.minimalWaitTimeMillis != null) {
+    if (taskAutoRunDisabledForTesting || nextTask.minimalWaitTimeMillis == null) {
+      return;
+    }
+    if (runningTasks.isEmpty()) {
       // No tasks are currently ready. Sleep until the next one should be.
       // If a new task is added during the sleep the service will wake immediately.
       sleep(nextTask.minimalWaitTimeMillis);
+    } else if (nextTask.minimalWaitTimeMillis < SHORT_SLEEP_THRESHOLD_MILLISECONDS) {
+      // The job cannot be finished while tasks are running. Tasks ready later than the threshold
+      // will be picked up, or slept for, when the running tasks complete.
+      mainThreadHandler.removeCallbacks(maybeRunNextTaskRunnable);
+      mainThreadHandler.postDelayed(maybeRunNextTaskRunnable, nextTask.minimalWaitTimeMillis);
+    }
+  }
+
+  @MainThread
+  private Set<PhoneAccountHandle> getBusyAccounts() {
+    Set<PhoneAccountHandle> busyAccounts = new ArraySet<>();
+    for (Task task : runningTasks.keySet()) {
+      busyAccounts.add(task.getId().phoneAccountHandle);
+    }
+    return busyAccounts;
+  }
+
+  @MainThread
+  private void onTaskExecuted(Task task, long executionMillis) {
+    Long addedTimeMillis = taskAddedTimes.remove(task);
+    if (addedTimeMillis == null) {
+      return;
+    }
+    long waitMillis =
+        Math.max(0, SystemClock.elapsedRealtime() - addedTimeMillis - executionMillis);
+    String taskType = task.getClass().getSimpleName();
+    VvmLog.i(
+        TAG,
+        taskType + " waited " + waitMillis + " millis, executed in " + executionMillis + " millis");
+    TaskTimings timings = taskTimings.get(taskType);
+    if (timings == null) {
+      timings = new TaskTimings();
+      taskTimings.put(taskType, timings);
+    }
+    timings.add(waitMillis, executionMillis);
+  }
+
+  @MainThread
+  private void logTaskTimings() {
+    for (Map.Entry<String, TaskTimings> entry : taskTimings.entrySet()) {
+      VvmLog.i(TAG, entry.getKey() + ": " + entry.getValue());
     }
   }
 
@@ -392,6 +519,10 @@ final class TaskExecutor {
     VvmLog.i(TAG, "onStartJob");
     this.job = job;
     tasks.fromBundles(context, pendingTasks);
+    long nowMillis = SystemClock.elapsedRealtime();
+    for (Task task : tasks) {
+      taskAddedTimes.put(task, nowMillis);
+    }
     maybeRunNextTask();
   }
 
@@ -454,6 +585,7 @@ final class TaskExecutor {
     job.finishAsync();
     isTerminating = true;
     mainThreadHandler.removeCallbacks(stopServiceWithDelay);
+    mainThreadHandler.removeCallbacks(maybeRunNextTaskRunnable);
   }
 
   private boolean isJobRunning() {
@@ -20,14 +20,17 @@ import android.content.Context;
 import android.os.Bundle;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.telecom.PhoneAccountHandle;
 import com.android.voicemail.impl.Assert;
 import com.android.voicemail.impl.VvmLog;
 import com.android.voicemail.impl.scheduling.Task.TaskId;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Queue;
+import java.util.Set;
 
 /**
  * A queue that manages priority and duplication of {@link Task}. A task is identified by a {@link
@@ -93,7 +96,7 @@ class TaskQueue implements Iterable<Task> {
   }
 
   /**
-   * Packed return value of {@link #getNextTask(long)}. If a runnable task is found {@link
+   * Packed return value of {@link #getNextTask(long, Set)}. If a runnable task is found {@link
    * #minimalWaitTimeMillis} will be {@code null}. If no tasks is runnable {@link #task} will be
    * {@code null}, and {@link #minimalWaitTimeMillis} will contain the time to wait. If there are no
    * tasks at all both will be {@code null}.
@@ -116,8 +119,21 @@ class TaskQueue implements Iterable<Task> {
    */
   @NonNull
   NextTask getNextTask(long readyToleranceMillis) {
+    return getNextTask(readyToleranceMillis, Collections.emptySet());
+  }
+
+  /**
+   * Same as {@link #getNextTask(long)}, but tasks operating on one of {@code busyAccounts} are
+   * ignored. Running tasks stay in the queue until they are completed, so this also keeps them from
+   * being returned again and keeps the tasks of each account running one at a time.
+   */
+  @NonNull
+  NextTask getNextTask(long readyToleranceMillis, Set<PhoneAccountHandle> busyAccounts) {
     Long minimalWaitTime = null;
     for (Task task : queue) {
+      if (busyAccounts.contains(task.getId().phoneAccountHandle)) {
+        continue;
+      }
       long waitTime = task.getReadyInMilliSeconds();
       if (waitTime < readyToleranceMillis) {
         return new NextTask(task, 0L);
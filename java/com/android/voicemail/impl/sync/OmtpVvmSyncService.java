@@ -31,10 +31,12 @@ import com.android.voicemail.impl.Assert;
 import com.android.voicemail.impl.OmtpEvents;
 import com.android.voicemail.impl.OmtpVvmCarrierConfigHelper;
 import com.android.voicemail.impl.Voicemail;
+import com.android.voicemail.impl.VisualVoicemailPreferences;
 import com.android.voicemail.impl.VoicemailStatus;
 import com.android.voicemail.impl.VvmLog;
 import com.android.voicemail.impl.fetch.VoicemailFetchedCallback;
 import com.android.voicemail.impl.imap.ImapHelper;
+import com.android.voicemail.impl.imap.ImapHelper.IncrementalFetchResult;
 import com.android.voicemail.impl.imap.ImapHelper.InitializingException;
 import com.android.voicemail.impl.mail.store.ImapFolder.Quota;
 import com.android.voicemail.impl.scheduling.BaseTask;
@@ -42,7 +44,8 @@ import com.android.voicemail.impl.settings.VisualVoicemailSettingsUtil;
 import com.android.voicemail.impl.sync.VvmNetworkRequest.NetworkWrapper;
 import com.android.voicemail.impl.sync.VvmNetworkRequest.RequestFailedException;
 import com.android.voicemail.impl.utils.LoggerUtils;
-import com.android.voicemail.impl.utils.VoicemailDatabaseUtil;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
@@ -63,6 +66,11 @@ public class OmtpVvmSyncService {
   /** Threshold for whether we should archive and delete voicemails from the remote VM server. */
   private static final float AUTO_DELETE_ARCHIVE_VM_THRESHOLD = 0.75f;
 
+  /** UIDVALIDITY of the inbox when it was last synced, only set if all of it was synced. */
+  private static final String LAST_SYNCED_UID_VALIDITY = "last_synced_uid_validity";
+  /** Highest UID seen when the inbox was last synced. */
+  private static final String LAST_SYNCED_UID = "last_synced_uid";
+
   private final Context mContext;
 
   private VoicemailsQueryHelper mQueryHelper;
@@ -208,7 +216,10 @@ public class OmtpVvmSyncService {
     List<Voicemail> oldestVoicemails = mQueryHelper.oldestVoicemailsOnServer(numVoicemails);
     VvmLog.w(TAG, "number of voicemails to delete " + numVoicemails);
     if (!oldestVoicemails.isEmpty()) {
-      mQueryHelper.markArchivedInDatabase(oldestVoicemails);
+      if (!mQueryHelper.markArchivedInDatabase(oldestVoicemails)) {
+        // Only delete voicemails from the server once they are archived on the device.
+        return;
+      }
       imapHelper.markMessagesAsDeleted(oldestVoicemails);
       VvmLog.i(
           TAG,
@@ -227,7 +238,9 @@ public class OmtpVvmSyncService {
       uploadSuccess = upload(account, imapHelper);
     }
     if (SYNC_FULL_SYNC.equals(action) || SYNC_DOWNLOAD_ONLY.equals(action)) {
-      downloadSuccess = download(imapHelper, account);
+      // A download only sync is triggered by a new message notification, so only new messages
+      // are expected. Full syncs still fetch everything to recover from any drift.
+      downloadSuccess = download(imapHelper, account, SYNC_DOWNLOAD_ONLY.equals(action));
     }
 
     VvmLog.v(
@@ -281,11 +294,48 @@ public class OmtpVvmSyncService {
     return success;
   }
 
-  private boolean download(ImapHelper imapHelper, PhoneAccountHandle account) {
+  private boolean download(
+      ImapHelper imapHelper, PhoneAccountHandle account, boolean incremental) {
+    VisualVoicemailPreferences prefs = new VisualVoicemailPreferences(mContext, account);
+    // Only the flags of the already synced messages are fetched, not their transcriptions. IMAP
+    // messages can't be modified, so a server adding a transcription stores it as a new message,
+    // with a new UID, which is fetched. Full syncs still compare every transcription.
+    if (incremental && prefs.contains(LAST_SYNCED_UID_VALIDITY)) {
+      IncrementalFetchResult result =
+          imapHelper.fetchVoicemailsSince(
+              prefs.getLong(LAST_SYNCED_UID_VALIDITY, -1), prefs.getLong(LAST_SYNCED_UID, 0));
+      if (result != null) {
+        return download(
+            imapHelper, account, prefs, result.newVoicemails, result.existingReadStates);
+      }
+      VvmLog.i(TAG, "Incremental download failed, downloading all voicemails");
+    }
+
     List<Voicemail> serverVoicemails = imapHelper.fetchAllVoicemails();
+    if (serverVoicemails == null) {
+      // Null value means the query failed.
+      return false;
+    }
+    return download(imapHelper, account, prefs, serverVoicemails, Collections.emptyMap());
+  }
+
+  /**
+   * Updates the local voicemails to match the server.
+   *
+   * @param serverVoicemails the voicemails fetched from the server
+   * @param existingReadStates the read state of the messages on the server which were not fetched,
+   *     keyed by UID. Local voicemails neither in this map nor in {@code serverVoicemails} were
+   *     removed from the server.
+   */
+  private boolean download(
+      ImapHelper imapHelper,
+      PhoneAccountHandle account,
+      VisualVoicemailPreferences prefs,
+      List<Voicemail> serverVoicemails,
+      Map<String, Boolean> existingReadStates) {
     List<Voicemail> localVoicemails = mQueryHelper.getAllVoicemails(account);
 
-    if (localVoicemails == null || serverVoicemails == null) {
+    if (localVoicemails == null) {
       // Null value means the query failed.
       return false;
     }
@@ -300,42 +350,68 @@ public class OmtpVvmSyncService {
     // Voicemails that were removed automatically from the server, are marked as
     // archived and are stored locally. We do not delete them, as they were removed from the server
     // by design (to make space).
+    // All changes are written in a single batch, so observers of the voicemails are not refreshed
+    // for each of them.
+    VoicemailsQueryHelper.Batch batch = mQueryHelper.newBatch();
     for (int i = 0; i < localVoicemails.size(); i++) {
       Voicemail localVoicemail = localVoicemails.get(i);
       Voicemail remoteVoicemail = remoteMap.remove(localVoicemail.getSourceData());
 
-      // Do not delete voicemails that are archived marked as archived.
       if (remoteVoicemail == null) {
-        mQueryHelper.deleteNonArchivedFromDatabase(localVoicemail);
+        Boolean isRemoteRead = existingReadStates.get(localVoicemail.getSourceData());
+        if (isRemoteRead == null) {
+          // Do not delete voicemails that are archived marked as archived.
+          batch.deleteNonArchived(localVoicemail);
+        } else if (isRemoteRead && !localVoicemail.isRead()) {
+          batch.markRead(localVoicemail);
+        }
       } else {
         if (remoteVoicemail.isRead() && !localVoicemail.isRead()) {
-          mQueryHelper.markReadInDatabase(localVoicemail);
+          batch.markRead(localVoicemail);
         }
 
         if (!TextUtils.isEmpty(remoteVoicemail.getTranscription())
             && TextUtils.isEmpty(localVoicemail.getTranscription())) {
           LoggerUtils.logImpressionOnMainThread(
               mContext, DialerImpression.Type.VVM_TRANSCRIPTION_DOWNLOADED);
-          mQueryHelper.updateWithTranscription(localVoicemail, remoteVoicemail.getTranscription());
+          batch.updateTranscription(localVoicemail, remoteVoicemail.getTranscription());
         }
       }
     }
 
     // The leftover messages are messages that exist on the server but not locally.
-    boolean prefetchEnabled = shouldPerformPrefetch(account, imapHelper);
-    for (Voicemail remoteVoicemail : remoteMap.values()) {
+    List<Voicemail> newVoicemails = new ArrayList<>(remoteMap.values());
+    for (Voicemail remoteVoicemail : newVoicemails) {
       if (!TextUtils.isEmpty(remoteVoicemail.getTranscription())) {
         LoggerUtils.logImpressionOnMainThread(
             mContext, DialerImpression.Type.VVM_TRANSCRIPTION_DOWNLOADED);
       }
-      Uri uri = VoicemailDatabaseUtil.insert(mContext, remoteVoicemail);
-      if (prefetchEnabled) {
+      batch.insert(remoteVoicemail);
+    }
+    List<Uri> newVoicemailUris = batch.apply();
+    if (newVoicemailUris == null) {
+      return false;
+    }
+
+    if (shouldPerformPrefetch(account, imapHelper)) {
+      for (int i = 0; i < newVoicemails.size(); i++) {
         VoicemailFetchedCallback fetchedCallback =
-            new VoicemailFetchedCallback(mContext, uri, account);
-        imapHelper.fetchVoicemailPayload(fetchedCallback, remoteVoicemail.getSourceData());
+            new VoicemailFetchedCallback(mContext, newVoicemailUris.get(i), account);
+        imapHelper.fetchVoicemailPayload(fetchedCallback, newVoicemails.get(i).getSourceData());
       }
     }
 
+    // Only remember the UIDs once they are in the local database, so that an interrupted sync is
+    // retried from the same point.
+    if (imapHelper.getLastUidValidity() != -1) {
+      prefs
+          .edit()
+          .putLong(LAST_SYNCED_UID_VALIDITY, imapHelper.getLastUidValidity())
+          .putLong(LAST_SYNCED_UID, imapHelper.getLastHighestUid())
+          .apply();
+    } else {
+      prefs.edit().remove(LAST_SYNCED_UID_VALIDITY).apply();
+    }
     return true;
   }
 
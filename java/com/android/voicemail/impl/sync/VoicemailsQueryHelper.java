@@ -16,24 +16,33 @@
 package com.android.voicemail.impl.sync;
 
 import android.annotation.TargetApi;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Build.VERSION_CODES;
+import android.os.RemoteException;
 import android.provider.VoicemailContract;
 import android.provider.VoicemailContract.Voicemails;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.telecom.PhoneAccountHandle;
 import com.android.dialer.common.Assert;
 import com.android.voicemail.impl.Voicemail;
+import com.android.voicemail.impl.VvmLog;
+import com.android.voicemail.impl.utils.VoicemailDatabaseUtil;
 import java.util.ArrayList;
 import java.util.List;
 
 /** Construct queries to interact with the voicemails table. */
 public class VoicemailsQueryHelper {
+  private static final String TAG = "VoicemailsQueryHelper";
+
   static final String[] PROJECTION =
       new String[] {
         Voicemails._ID, // 0
@@ -157,12 +166,21 @@ public class VoicemailsQueryHelper {
         new String[] {Long.toString(voicemail.getId())});
   }
 
+  /**
+   * Marks the voicemails as read in a single batch.
+   *
+   * @return The number of voicemails updated, 0 if the batch could not be applied
+   */
   public int markReadInDatabase(List<Voicemail> voicemails) {
-    int count = voicemails.size();
-    for (int i = 0; i < count; i++) {
-      markReadInDatabase(voicemails.get(i));
+    Batch batch = newBatch();
+    for (Voicemail voicemail : voicemails) {
+      batch.markRead(voicemail);
+    }
+    if (batch.apply() == null) {
+      VvmLog.e(TAG, "failed to mark " + voicemails.size() + " voicemails as read");
+      return 0;
     }
-    return count;
+    return voicemails.size();
   }
 
   /** Utility method to mark single message as read. */
@@ -183,11 +201,12 @@ public class VoicemailsQueryHelper {
    * @return The number of voicemails updated
    */
   public int markCleanInDatabase(List<Voicemail> voicemails) {
-    int count = voicemails.size();
-    for (int i = 0; i < count; i++) {
-      markCleanInDatabase(voicemails.get(i));
+    // Not batched: ContentProviderOperation rejects an update without values, and only a blank
+    // update from the source clears the dirty bit.
+    for (Voicemail voicemail : voicemails) {
+      markCleanInDatabase(voicemail);
     }
-    return count;
+    return voicemails.size();
   }
 
   /** Utility method to mark single message as clean. */
@@ -251,11 +270,20 @@ public class VoicemailsQueryHelper {
    * Marks voicemails in the local database as archived. This indicates that the voicemails from the
    * server were removed automatically to make space for new voicemails, and are stored locally on
    * the users devices, without a corresponding server copy.
+   *
+   * @return whether the voicemails were marked, which must be the case before they are deleted from
+   *     the server
    */
-  public void markArchivedInDatabase(List<Voicemail> voicemails) {
+  public boolean markArchivedInDatabase(List<Voicemail> voicemails) {
+    Batch batch = newBatch();
     for (Voicemail voicemail : voicemails) {
-      markArchiveInDatabase(voicemail);
+      batch.markArchived(voicemail);
+    }
+    if (batch.apply() == null) {
+      VvmLog.e(TAG, "failed to mark " + voicemails.size() + " voicemails as archived");
+      return false;
     }
+    return true;
   }
 
   /** Utility method to mark single voicemail as archived. */
@@ -297,4 +325,100 @@ public class VoicemailsQueryHelper {
       return voicemails;
     }
   }
+
+  /** Returns an empty {@link Batch} of changes to the voicemails of this source. */
+  public Batch newBatch() {
+    return new Batch();
+  }
+
+  /**
+   * Changes to voicemails which are written to the voicemail content provider with a single {@link
+   * ContentResolver#applyBatch(String, ArrayList)}. Reconciling a mailbox with the server may touch
+   * every voicemail, and writing them one by one costs a binder call and a change notification,
+   * which refreshes the call log, per voicemail.
+   */
+  public class Batch {
+
+    private final ArrayList<ContentProviderOperation> mOperations = new ArrayList<>();
+    private final List<Integer> mInsertIndices = new ArrayList<>();
+
+    private Batch() {}
+
+    /** Adds a new voicemail, see {@link VoicemailDatabaseUtil#insert(Context, Voicemail)}. */
+    public Batch insert(Voicemail voicemail) {
+      mInsertIndices.add(mOperations.size());
+      mOperations.add(
+          ContentProviderOperation.newInsert(mSourceUri)
+              .withValues(VoicemailDatabaseUtil.getContentValues(voicemail))
+              .build());
+      return this;
+    }
+
+    /** See {@link #markReadInDatabase(Voicemail)}. */
+    public Batch markRead(Voicemail voicemail) {
+      mOperations.add(
+          ContentProviderOperation.newUpdate(getUri(voicemail))
+              .withValue(Voicemails.IS_READ, "1")
+              .build());
+      return this;
+    }
+
+    /** See {@link #markArchiveInDatabase(Voicemail)}. */
+    public Batch markArchived(Voicemail voicemail) {
+      mOperations.add(
+          ContentProviderOperation.newUpdate(getUri(voicemail))
+              .withValue(Voicemails.ARCHIVED, "1")
+              .build());
+      return this;
+    }
+
+    /** See {@link #updateWithTranscription(Voicemail, String)}. */
+    public Batch updateTranscription(Voicemail voicemail, String transcription) {
+      mOperations.add(
+          ContentProviderOperation.newUpdate(getUri(voicemail))
+              .withValue(Voicemails.TRANSCRIPTION, transcription)
+              .build());
+      return this;
+    }
+
+    /** See {@link #deleteNonArchivedFromDatabase(Voicemail)}. */
+    public Batch deleteNonArchived(Voicemail voicemail) {
+      mOperations.add(
+          ContentProviderOperation.newDelete(Voicemails.CONTENT_URI)
+              .withSelection(
+                  Voicemails._ID + "=? AND " + Voicemails.ARCHIVED + "= 0",
+                  new String[] {Long.toString(voicemail.getId())})
+              .build());
+      return this;
+    }
+
+    /**
+     * Writes all changes of the batch.
+     *
+     * @return the URIs of the inserted voicemails, in the order they were added, or {@code null}
+     *     if the batch could not be applied
+     */
+    @Nullable
+    public List<Uri> apply() {
+      List<Uri> insertedUris = new ArrayList<>(mInsertIndices.size());
+      if (mOperations.isEmpty()) {
+        return insertedUris;
+      }
+      ContentProviderResult[] results;
+      try {
+        results = mContentResolver.applyBatch(VoicemailContract.AUTHORITY, mOperations);
+      } catch (RemoteException | OperationApplicationException e) {
+        VvmLog.e(TAG, "failed to apply " + mOperations.size() + " operations", e);
+        return null;
+      }
+      for (int index : mInsertIndices) {
+        insertedUris.add(results[index].uri);
+      }
+      return insertedUris;
+    }
+
+    private Uri getUri(Voicemail voicemail) {
+      return ContentUris.withAppendedId(mSourceUri, voicemail.getId());
+    }
+  }
 }
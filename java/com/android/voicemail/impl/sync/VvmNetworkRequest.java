@@ -19,15 +19,22 @@ package com.android.voicemail.impl.sync;
 import android.annotation.TargetApi;
 import android.net.Network;
 import android.os.Build.VERSION_CODES;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.telecom.PhoneAccountHandle;
+import android.util.ArrayMap;
 import com.android.voicemail.impl.OmtpVvmCarrierConfigHelper;
 import com.android.voicemail.impl.VoicemailStatus;
 import com.android.voicemail.impl.VvmLog;
+import com.android.voicemail.impl.mail.store.ImapConnectionCache;
 import java.io.Closeable;
+import java.util.Map;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Class to retrieve a {@link Network} synchronously. {@link #getNetwork(OmtpVvmCarrierConfigHelper,
@@ -39,16 +46,32 @@ public class VvmNetworkRequest {
 
   private static final String TAG = "VvmNetworkRequest";
 
+  /**
+   * How long the network of an account is held after a task is done with it, so the next task can
+   * reuse it and the IMAP connection cached on it. Slightly longer than {@link
+   * ImapConnectionCache#IDLE_TIMEOUT_MILLIS}, so idle connections are logged out before the network
+   * is released.
+   */
+  private static final long NETWORK_IDLE_TIMEOUT_MILLIS =
+      ImapConnectionCache.IDLE_TIMEOUT_MILLIS + TimeUnit.SECONDS.toMillis(10);
+
+  /** Networks no task is using anymore, by account. */
+  private static final Map<PhoneAccountHandle, FutureNetworkRequestCallback> sIdleNetworks =
+      new ArrayMap<>();
+
+  private static final Handler sHandler = new Handler(Looper.getMainLooper());
+
   /**
    * A wrapper around a Network returned by a {@link VvmNetworkRequestCallback}, which should be
-   * closed once not needed anymore.
+   * closed once not needed anymore. The network is then held for {@link
+   * #NETWORK_IDLE_TIMEOUT_MILLIS} in case another task of the account needs it.
    */
   public static class NetworkWrapper implements Closeable {
 
     private final Network mNetwork;
-    private final VvmNetworkRequestCallback mCallback;
+    private final FutureNetworkRequestCallback mCallback;
 
-    private NetworkWrapper(Network network, VvmNetworkRequestCallback callback) {
+    private NetworkWrapper(Network network, FutureNetworkRequestCallback callback) {
       mNetwork = network;
       mCallback = callback;
     }
@@ -59,7 +82,7 @@ public class VvmNetworkRequest {
 
     @Override
     public void close() {
-      mCallback.releaseNetwork();
+      mCallback.hold();
     }
   }
 
@@ -74,6 +97,10 @@ public class VvmNetworkRequest {
   public static NetworkWrapper getNetwork(
       OmtpVvmCarrierConfigHelper config, PhoneAccountHandle handle, VoicemailStatus.Editor status)
       throws RequestFailedException {
+    NetworkWrapper idleNetwork = takeIdleNetwork(handle, status);
+    if (idleNetwork != null) {
+      return idleNetwork;
+    }
     FutureNetworkRequestCallback callback =
         new FutureNetworkRequestCallback(config, handle, status);
     callback.requestNetwork();
@@ -86,6 +113,22 @@ public class VvmNetworkRequest {
     }
   }
 
+  @Nullable
+  private static NetworkWrapper takeIdleNetwork(
+      PhoneAccountHandle handle, VoicemailStatus.Editor status) {
+    FutureNetworkRequestCallback callback;
+    synchronized (VvmNetworkRequest.class) {
+      callback = sIdleNetworks.remove(handle);
+    }
+    if (callback == null) {
+      return null;
+    }
+    sHandler.removeCallbacks(callback.mReleaseRunnable);
+    VvmLog.i(TAG, "reusing held network");
+    callback.setVoicemailStatusEditor(status);
+    return new NetworkWrapper(callback.mNetwork, callback);
+  }
+
   private static class FutureNetworkRequestCallback extends VvmNetworkRequestCallback {
 
     /**
@@ -94,6 +137,13 @@ public class VvmNetworkRequest {
      */
     private final CompletableFuture<NetworkWrapper> mFuture = new CompletableFuture<>();
 
+    private final Runnable mReleaseRunnable = this::releaseIfIdle;
+
+    private Network mNetwork;
+
+    /** Whether the network has been released or has failed. Guarded by VvmNetworkRequest.class */
+    private boolean mReleased;
+
     public FutureNetworkRequestCallback(
         OmtpVvmCarrierConfigHelper config,
         PhoneAccountHandle phoneAccount,
@@ -108,13 +158,62 @@ public class VvmNetworkRequest {
     @Override
     public void onAvailable(Network network) {
       super.onAvailable(network);
+      mNetwork = network;
       mFuture.complete(new NetworkWrapper(network, this));
     }
 
     @Override
     public void onFailed(String reason) {
+      boolean idle;
+      synchronized (VvmNetworkRequest.class) {
+        mReleased = true;
+        idle = sIdleNetworks.remove(mPhoneAccount, this);
+      }
+      if (idle) {
+        // No task is using the network, so there is no failure to report.
+        VvmLog.i(TAG, "idle network failed: " + reason);
+        sHandler.removeCallbacks(mReleaseRunnable);
+        releaseNetwork();
+        return;
+      }
       super.onFailed(reason);
       mFuture.complete(null);
     }
+
+    /** Keeps the network for the next task of the account, until the idle timeout. */
+    private void hold() {
+      FutureNetworkRequestCallback previous;
+      synchronized (VvmNetworkRequest.class) {
+        if (mReleased) {
+          return;
+        }
+        previous = sIdleNetworks.put(mPhoneAccount, this);
+        if (previous != null) {
+          previous.mReleased = true;
+        }
+      }
+      if (previous != null) {
+        // Tasks of the account ran in parallel, only keep the last network.
+        sHandler.removeCallbacks(previous.mReleaseRunnable);
+        if (!previous.mNetwork.equals(mNetwork)) {
+          ImapConnectionCache.closeConnections(previous.mNetwork);
+        }
+        previous.releaseNetwork();
+      }
+      sHandler.postDelayed(mReleaseRunnable, NETWORK_IDLE_TIMEOUT_MILLIS);
+    }
+
+    private void releaseIfIdle() {
+      synchronized (VvmNetworkRequest.class) {
+        if (!sIdleNetworks.remove(mPhoneAccount, this)) {
+          return;
+        }
+        mReleased = true;
+      }
+      VvmLog.i(TAG, "releasing idle network");
+      // Idle IMAP connections can't be reused once the network isn't held anymore.
+      ImapConnectionCache.closeConnections(mNetwork);
+      releaseNetwork();
+    }
   }
 }
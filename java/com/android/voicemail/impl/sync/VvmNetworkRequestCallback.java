@@ -32,6 +32,7 @@ import com.android.voicemail.impl.OmtpEvents;
 import com.android.voicemail.impl.OmtpVvmCarrierConfigHelper;
 import com.android.voicemail.impl.VoicemailStatus;
 import com.android.voicemail.impl.VvmLog;
+import com.android.voicemail.impl.mail.store.ImapConnectionCache;
 
 /**
  * Base class for network request call backs for visual voicemail syncing with the Imap server. This
@@ -53,7 +54,7 @@ public abstract class VvmNetworkRequestCallback extends ConnectivityManager.Netw
   protected NetworkRequest mNetworkRequest;
   private ConnectivityManager mConnectivityManager;
   private final OmtpVvmCarrierConfigHelper mCarrierConfigHelper;
-  private final VoicemailStatus.Editor mStatus;
+  private VoicemailStatus.Editor mStatus;
   private boolean mRequestSent = false;
   private boolean mResultReceived = false;
 
@@ -81,6 +82,11 @@ public abstract class VvmNetworkRequestCallback extends ConnectivityManager.Netw
     return mStatus;
   }
 
+  /** Reports the failures of the network to {@code status}, when it is reused by another task. */
+  protected void setVoicemailStatusEditor(VoicemailStatus.Editor status) {
+    mStatus = status;
+  }
+
   /**
    * @return NetworkRequest for a proper transport type. Use only cellular network if the carrier
    *     requires it. Otherwise use whatever available.
@@ -115,6 +121,7 @@ public abstract class VvmNetworkRequestCallback extends ConnectivityManager.Netw
   @CallSuper
   public void onLost(Network network) {
     VvmLog.d(TAG, "onLost");
+    ImapConnectionCache.closeConnections(network);
     mResultReceived = true;
     onFailed(NETWORK_REQUEST_FAILED_LOST);
   }